@@ -0,0 +1,47 @@
+#!/bin/bash
+# run the JMH benchmarks of ColorList on test.jar then of ColorList and Hash on test-valuetypified.jar,
+# each benchmark runs in forked VMs and reports the throughput, the latency percentiles (sample mode)
+# and the allocation rate (gc profiler).
+# Then run the benchmarks of the transformer itself (classes/s and bytes allocated per class).
+#
+# sh build.sh must have been run before,
+# JMH_CLASSPATH must contain the JMH jars (jmh-core, jmh-generator-annprocess, jopt-simple, commons-math3),
+# MVT_JAVA_HOME is the JDK of the MVT project used to run the valuetypified jar.
+# The other arguments are passed to JMH, by example: sh bench.sh -p size=1000000 ColorList
+[ -z "$JAVA_HOME" ] && export JAVA_HOME=/usr/jdk/jdk-8
+[ -z "$MVT_JAVA_HOME" ] && export MVT_JAVA_HOME=$JAVA_HOME
+if [ -z "$JMH_CLASSPATH" ]; then
+  echo "JMH_CLASSPATH is not set"
+  exit 1
+fi
+
+export javac=$JAVA_HOME/bin/javac
+export java=$JAVA_HOME/bin/java
+export mvt_java=$MVT_JAVA_HOME/bin/java
+
+rm -fr target/output/bench target/bench
+mkdir -p target/output/bench target/bench
+
+echo "create the valuetypified test jar ..."
+$java -jar valuetypifier.jar test.jar || exit 1
+
+echo "compile the benchmarks ..."
+$javac -d target/output/bench -cp test.jar:valuetypifier.jar:$JMH_CLASSPATH -processorpath $JMH_CLASSPATH \
+       src/jmh/java/fr/umlv/valuetypify/*.java src/jmh/java/fr/umlv/valuetypify/bench/*.java || exit 1
+
+# Hash relies on the empty slots of its array being default value types, with test.jar
+# (or a jar generated by the stock backend) the slots are null and the first put throws a NPE,
+# so HashBenchmark only runs on test-valuetypified.jar
+echo "benchmark test.jar ..."
+$mvt_java -cp target/output/bench:$JMH_CLASSPATH:test.jar org.openjdk.jmh.Main \
+       -prof gc -rf json -rff target/bench/original.json -e HashBenchmark "$@" 'fr.umlv.valuetypify.bench.*'
+
+echo "benchmark test-valuetypified.jar ..."
+$mvt_java -XX:+EnableMVT -cp target/output/bench:$JMH_CLASSPATH:test-valuetypified.jar org.openjdk.jmh.Main \
+       -prof gc -rf json -rff target/bench/valuetypified.json "$@" 'fr.umlv.valuetypify.bench.*'
+
+echo "benchmark the transformer ..."
+$java -cp target/output/bench:$JMH_CLASSPATH:valuetypifier.jar org.openjdk.jmh.Main \
+       -prof gc -rf json -rff target/bench/transformer.json "$@" TransformerBenchmark
+
+echo "results in target/bench/original.json, target/bench/valuetypified.json and target/bench/transformer.json"
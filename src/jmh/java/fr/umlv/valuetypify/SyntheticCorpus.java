@@ -0,0 +1,152 @@
+package fr.umlv.valuetypify;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+/**
+ * Generates a set of classes that use a value capable class a lot, with big methods,
+ * to benchmark the transformer.
+ * 
+ * The value capable class is bench/Point (two floats), each kernel class bench/KernelN has several static methods
+ * {@code float kernelM(Point[] points, Point p)}, made of blocks that load a Point from the array, read its fields,
+ * store it back, merge two Points after a branch and call Point.plus().
+ */
+final class SyntheticCorpus {
+  static final String POINT = "bench/Point";
+  static final String POINT_DESC = "L" + POINT + ";";
+  
+  final HashMap<String, byte[]> classFiles = new HashMap<>();
+  final ArrayList<String> kernelNames = new ArrayList<>();
+  
+  SyntheticCorpus(int classCount, int methodCount, int blockCount) {
+    classFiles.put(POINT, point());
+    for(int i = 0; i < classCount; i++) {
+      String name = "bench/Kernel" + i;
+      kernelNames.add(name);
+      classFiles.put(name, kernel(name, methodCount, blockCount));
+    }
+  }
+  
+  Optional<InputStream> find(String className) {
+    byte[] classFile = classFiles.get(className);
+    return Optional.ofNullable(classFile).map(ByteArrayInputStream::new);
+  }
+  
+  List<byte[]> kernels() {
+    ArrayList<byte[]> kernels = new ArrayList<>();
+    kernelNames.forEach(name -> kernels.add(classFiles.get(name)));
+    return kernels;
+  }
+  
+  private static byte[] point() {
+    ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    writer.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, POINT, null, "java/lang/Object", null);
+    AnnotationVisitor annotation = writer.visitAnnotation(AnnotationOracle.VALUE_CAPABLE_CLASS_NAME, true);
+    annotation.visitEnd();
+    writer.visitField(ACC_FINAL, "x", "F", null, null).visitEnd();
+    writer.visitField(ACC_FINAL, "y", "F", null, null).visitEnd();
+    
+    MethodVisitor init = writer.visitMethod(ACC_PUBLIC, "<init>", "(FF)V", null, null);
+    init.visitCode();
+    init.visitVarInsn(ALOAD, 0);
+    init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+    init.visitVarInsn(ALOAD, 0);
+    init.visitVarInsn(FLOAD, 1);
+    init.visitFieldInsn(PUTFIELD, POINT, "x", "F");
+    init.visitVarInsn(ALOAD, 0);
+    init.visitVarInsn(FLOAD, 2);
+    init.visitFieldInsn(PUTFIELD, POINT, "y", "F");
+    init.visitInsn(RETURN);
+    init.visitMaxs(0, 0);
+    init.visitEnd();
+    
+    MethodVisitor plus = writer.visitMethod(ACC_PUBLIC, "plus", "(" + POINT_DESC + ")" + POINT_DESC, null, null);
+    plus.visitCode();
+    plus.visitTypeInsn(NEW, POINT);
+    plus.visitInsn(DUP);
+    for(String field: new String[] { "x", "y" }) {
+      plus.visitVarInsn(ALOAD, 0);
+      plus.visitFieldInsn(GETFIELD, POINT, field, "F");
+      plus.visitVarInsn(ALOAD, 1);
+      plus.visitFieldInsn(GETFIELD, POINT, field, "F");
+      plus.visitInsn(FADD);
+    }
+    plus.visitMethodInsn(INVOKESPECIAL, POINT, "<init>", "(FF)V", false);
+    plus.visitInsn(ARETURN);
+    plus.visitMaxs(0, 0);
+    plus.visitEnd();
+    
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+  
+  private static byte[] kernel(String name, int methodCount, int blockCount) {
+    ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+    writer.visit(V1_8, ACC_PUBLIC | ACC_SUPER, name, null, "java/lang/Object", null);
+    for(int m = 0; m < methodCount; m++) {
+      // locals: 0 points, 1 p, 2 q, 3 sum
+      MethodVisitor mv = writer.visitMethod(ACC_PUBLIC | ACC_STATIC, "kernel" + m, "([" + POINT_DESC + POINT_DESC + ")F", null, null);
+      mv.visitCode();
+      mv.visitInsn(FCONST_0);
+      mv.visitVarInsn(FSTORE, 3);
+      for(int b = 0; b < blockCount; b++) {
+        // Point q = points[b];
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitLdcInsn(b);
+        mv.visitInsn(AALOAD);
+        mv.visitVarInsn(ASTORE, 2);
+        
+        // sum += q.x + p.y;
+        mv.visitVarInsn(FLOAD, 3);
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitFieldInsn(GETFIELD, POINT, "x", "F");
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitFieldInsn(GETFIELD, POINT, "y", "F");
+        mv.visitInsn(FADD);
+        mv.visitInsn(FADD);
+        mv.visitVarInsn(FSTORE, 3);
+        
+        // points[b] = q;
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitLdcInsn(b);
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitInsn(AASTORE);
+        
+        // if (sum > 0) { p = q; }
+        Label end = new Label();
+        mv.visitVarInsn(FLOAD, 3);
+        mv.visitInsn(FCONST_0);
+        mv.visitInsn(FCMPL);
+        mv.visitJumpInsn(IFLE, end);
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitVarInsn(ASTORE, 1);
+        mv.visitLabel(end);
+        
+        // p = q.plus(p), from time to time
+        if (b % 8 == 7) {
+          mv.visitVarInsn(ALOAD, 2);
+          mv.visitVarInsn(ALOAD, 1);
+          mv.visitMethodInsn(INVOKEVIRTUAL, POINT, "plus", "(" + POINT_DESC + ")" + POINT_DESC, false);
+          mv.visitVarInsn(ASTORE, 1);
+        }
+      }
+      mv.visitVarInsn(FLOAD, 3);
+      mv.visitInsn(FRETURN);
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+    }
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+}
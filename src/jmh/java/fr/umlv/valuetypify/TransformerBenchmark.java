@@ -0,0 +1,162 @@
+package fr.umlv.valuetypify;
+
+import static org.objectweb.asm.Opcodes.ASM6;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of the different steps of the transformer on a {@link SyntheticCorpus},
+ * the scores are per class (or per method for analyze and rewrite, per scan of all the referenced classes
+ * for the oracle), run with the gc profiler
+ * (see bench.sh) to get the number of bytes allocated per class.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+public class TransformerBenchmark {
+  static final int CLASS_COUNT = 16;
+  static final int METHOD_COUNT = 8;
+  
+  @Param({ "10", "100", "1000" })
+  int blockCount;
+  
+  private SyntheticCorpus corpus;
+  private List<byte[]> kernels;
+  private List<byte[]> transformedKernels;
+  private ValueTypifier valueTypifier;
+  private ArrayList<ValueTypifier.MethodTransformer> methods;
+  private String[] referencedNames;
+  
+  @Setup(Level.Trial)
+  public void setup() throws IOException, AnalyzerException {
+    corpus = new SyntheticCorpus(CLASS_COUNT, METHOD_COUNT, blockCount);
+    kernels = corpus.kernels();
+    valueTypifier = new ValueTypifier(new AnnotationOracle(corpus::find));
+    transformedKernels = new ArrayList<>();
+    for(byte[] kernel: kernels) {
+      transformedKernels.add(valueTypifier.transform(kernel));
+    }
+    methods = methods(valueTypifier, kernels);
+    for(ValueTypifier.MethodTransformer method: methods) {
+      method.analyze();
+    }
+    
+    ArrayList<String> names = new ArrayList<>();
+    for(byte[] kernel: kernels) {
+      ConstantPoolScanner.anyReferencedClass(new ClassReader(kernel), names::add);
+    }
+    referencedNames = names.toArray(new String[0]);
+  }
+  
+  private static ArrayList<ValueTypifier.MethodTransformer> methods(ValueTypifier valueTypifier, List<byte[]> kernels) {
+    ArrayList<ValueTypifier.MethodTransformer> methods = new ArrayList<>();
+    for(byte[] kernel: kernels) {
+      ClassNode classNode = new ClassNode(ASM6);
+      new ClassReader(kernel).accept(classNode, 0);
+      ClassWriter writer = new ClassWriter(0);
+      for(MethodNode methodNode: classNode.methods) {
+        ValueTypifier.MethodTransformer method = valueTypifier.new MethodTransformer(classNode.name,
+            writer.visitMethod(methodNode.access, methodNode.name, methodNode.desc, methodNode.signature, null),
+            methodNode.access, methodNode.name, methodNode.desc, methodNode.signature, null) {
+          @Override
+          public void visitEnd() {
+            // analyze and rewrite are called by the benchmarks
+          }
+        };
+        methodNode.accept(method);
+        methods.add(method);
+      }
+    }
+    return methods;
+  }
+  
+  @State(Scope.Thread)
+  public static class RewriteState {
+    ArrayList<ValueTypifier.MethodTransformer> methods;
+    
+    // rewrite() replaces the instructions, so each invocation needs fresh analyzed methods
+    @Setup(Level.Invocation)
+    public void setup(TransformerBenchmark benchmark) throws AnalyzerException {
+      methods = methods(benchmark.valueTypifier, benchmark.kernels);
+      for(ValueTypifier.MethodTransformer method: methods) {
+        method.analyze();
+      }
+    }
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(CLASS_COUNT)
+  public void transform(Blackhole blackhole) throws IOException {
+    for(byte[] kernel: kernels) {
+      blackhole.consume(valueTypifier.transform(kernel));
+    }
+  }
+  
+  @Benchmark
+  public void oracleWarm(Blackhole blackhole) {
+    AnnotationOracle oracle = valueTypifier.oracle;
+    for(String name: referencedNames) {
+      blackhole.consume(oracle.isAValueCapableClass(name));
+    }
+  }
+  
+  @Benchmark
+  public void oracleCold(Blackhole blackhole) {
+    AnnotationOracle oracle = new AnnotationOracle(corpus::find);
+    for(String name: referencedNames) {
+      blackhole.consume(oracle.isAValueCapableClass(name));
+    }
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(CLASS_COUNT * METHOD_COUNT)
+  public void analyze() throws AnalyzerException {
+    for(ValueTypifier.MethodTransformer method: methods) {
+      method.analyze();
+    }
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(CLASS_COUNT * METHOD_COUNT)
+  public void rewrite(RewriteState state) {
+    for(ValueTypifier.MethodTransformer method: state.methods) {
+      method.rewrite();
+    }
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(CLASS_COUNT)
+  public void computeFrames(Blackhole blackhole) {
+    for(byte[] transformedKernel: transformedKernels) {
+      ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+      new ClassReader(transformedKernel).accept(writer, ClassReader.SKIP_FRAMES);
+      blackhole.consume(writer.toByteArray());
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package fr.umlv.valuetypify.bench;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.umlv.valuetypify.test.Color;
+import fr.umlv.valuetypify.test.ColorList;
+
+/**
+ * Benchmark of {@link ColorList}, run it once with test.jar and once with test-valuetypified.jar (see bench.sh),
+ * this class uses only the public API of ColorList so it works with both jars.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+public class ColorListBenchmark {
+  @Param({ "1000", "100000", "1000000", "10000000" })
+  int size;
+  
+  private ColorList list;
+  
+  @Setup(Level.Trial)
+  public void setup() {
+    list = create(size);
+  }
+  
+  private static ColorList create(int size) {
+    ColorList list = new ColorList();
+    for(int i = 0; i < size; i++) {
+      list.add(new Color(i, i, i));
+    }
+    return list;
+  }
+  
+  @Benchmark
+  public ColorList add() {
+    return create(size);
+  }
+  
+  @Benchmark
+  public Optional<Color> average() {
+    return list.average();
+  }
+}
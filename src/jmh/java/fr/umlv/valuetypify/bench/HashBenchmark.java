@@ -0,0 +1,68 @@
+package fr.umlv.valuetypify.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import fr.umlv.valuetypify.test.Hash;
+
+/**
+ * Benchmark of {@link Hash} (that stores its entries as a value capable class),
+ * run it with test-valuetypified.jar (see bench.sh), with test.jar the empty slots
+ * of the array of entries are null and Hash throws a NullPointerException.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+public class HashBenchmark {
+  @Param({ "1000", "100000", "1000000" })
+  int size;
+  
+  private Integer[] keys;
+  private Hash<Integer, Integer> hash;
+  
+  @Setup(Level.Trial)
+  public void setup() {
+    keys = new Integer[size];
+    for(int i = 0; i < size; i++) {
+      keys[i] = i;
+    }
+    hash = create(keys);
+  }
+  
+  private static Hash<Integer, Integer> create(Integer[] keys) {
+    Hash<Integer, Integer> hash = new Hash<>();
+    for(Integer key: keys) {
+      hash.put(key, key);
+    }
+    return hash;
+  }
+  
+  @Benchmark
+  public Hash<Integer, Integer> put() {
+    return create(keys);
+  }
+  
+  @Benchmark
+  public void get(Blackhole blackhole) {
+    Hash<Integer, Integer> hash = this.hash;
+    for(Integer key: keys) {
+      blackhole.consume(hash.get(key));
+    }
+  }
+}
@@ -1,12 +1,17 @@
 package fr.umlv.valuetypify;
 
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.UncheckedIOException;
-import java.util.HashMap;
+import java.lang.reflect.UndeclaredThrowableException;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.function.Function;
 
 import org.objectweb.asm.AnnotationVisitor;
@@ -19,24 +24,119 @@ import jvm.internal.value.ValueCapableClass;
 class AnnotationOracle {
   static final String VALUE_CAPABLE_CLASS_NAME = 'L' + ValueCapableClass.class.getName().replace('.', '/') + ';';
   
-  private final HashMap<String, Boolean> cache = new HashMap<>();
+  // a value is either a Boolean or the FutureTask<Boolean> of the thread that is analyzing the class
+  private final ConcurrentHashMap<String, Object> cache = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, String> classFileHashes = new ConcurrentHashMap<>();
   private final Function<String, Optional<InputStream>> classFileFinder;
+  private final BloomFilter knownClasses;   // null means that all classes may be found
   
   public AnnotationOracle(Function<String, Optional<InputStream>> classFileFinder) {
     this.classFileFinder = Objects.requireNonNull(classFileFinder);
+    this.knownClasses = null;
+  }
+  
+  /**
+   * Creates an oracle that only looks for the classes in {@code knownClasses},
+   * the other classes (java/lang/String, etc) are not value capable classes
+   * and are answered without calling the class file finder.
+   */
+  public AnnotationOracle(Function<String, Optional<InputStream>> classFileFinder, BloomFilter knownClasses) {
+    this.classFileFinder = Objects.requireNonNull(classFileFinder);
+    this.knownClasses = Objects.requireNonNull(knownClasses);
+  }
+
+  /**
+   * Register a class already known as a value capable class, by example from an index.
+   */
+  public void addValueCapableClass(String className) {
+    cache.put(className, true);
   }
 
+  /**
+   * Returns true if the class is annotated with {@link ValueCapableClass}.
+   * This method is thread safe, a class is analyzed only once even if several threads ask for it at the same time
+   * and once analyzed, a lookup doesn't allocate nor take a lock.
+   */
   public boolean isAValueCapableClass(String className) {
-    return cache.computeIfAbsent(className, this::analyzeClass);
+    if (knownClasses != null && !knownClasses.mightContain(className)) {
+      return false;
+    }
+    Object value = cache.get(className);
+    if (value instanceof Boolean) {   // fast path
+      return (Boolean)value;
+    }
+    if (value == null) {
+      FutureTask<Boolean> task = new FutureTask<>(() -> analyzeClass(className));
+      value = cache.putIfAbsent(className, task);
+      if (value == null) {
+        task.run();
+        value = task;
+      } else if (value instanceof Boolean) {
+        return (Boolean)value;
+      }
+    }
+    @SuppressWarnings("unchecked")
+    FutureTask<Boolean> task = (FutureTask<Boolean>)value;
+    return await(className, task);
   }
   
-  static class Found extends Error {
-    private static final long serialVersionUID = 1L;
-    static final Found FOUND = new Found();
-    
-    private Found() {
-      super(null, null, false, false);
+  private boolean await(String className, FutureTask<Boolean> task) {
+    boolean result;
+    try {
+      result = task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new UncheckedIOException(new InterruptedIOException("interrupted while analyzing " + className));
+    } catch (ExecutionException e) {
+      cache.remove(className, task);  // let another lookup retry
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new UndeclaredThrowableException(cause);
+    }
+    cache.replace(className, task, result);
+    return result;
+  }
+  
+  /**
+   * Returns the hash of the class file of a class (see {@link VCCIndex#hash(byte[])}),
+   * an empty string if the class is not found. Once computed, the hash is cached.
+   */
+  public String classFileHash(String className) {
+    String hash = classFileHashes.get(className);
+    if (hash != null) {
+      return hash;
     }
+    // the class file is read outside of the map, two threads may both read it, the first hash wins
+    hash = readClassFileHash(className);
+    String oldHash = classFileHashes.putIfAbsent(className, hash);
+    return (oldHash == null)? hash: oldHash;
+  }
+  
+  private String readClassFileHash(String className) {
+    Optional<InputStream> classFileInputStream = classFileFinder.apply(className);
+    if (!classFileInputStream.isPresent()) {
+      return "";
+    }
+    try(InputStream input = classFileInputStream.get()) {
+      return VCCIndex.hash(readAllBytes(input));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+  
+  private static byte[] readAllBytes(InputStream input) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream(8192);
+    byte[] buffer = new byte[8192];
+    int read;
+    while((read = input.read(buffer)) != -1) {
+      output.write(buffer, 0, read);
+    }
+    return output.toByteArray();
   }
   
   private boolean analyzeClass(String className) {
@@ -45,22 +145,29 @@ class AnnotationOracle {
       return false;
     }
     
+    byte[] classFile;
     try(InputStream input = classFileInputStream.get()) {
-      ClassReader reader = new ClassReader(input);
-      reader.accept(new ClassVisitor(Opcodes.ASM6) {
-        @Override
-        public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
-          if (desc.equals(VALUE_CAPABLE_CLASS_NAME)) {
-            throw Found.FOUND;
-          }
-          return null;
-        }
-      }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG);
+      classFile = readAllBytes(input);
     } catch (IOException e) {
       throw new UncheckedIOException(e);
-    } catch(Found found) {
-      return true;
     }
-    return false;
+    
+    // most classes do not reference the annotation at all
+    if (!ConstantPoolScanner.containsUTF8(classFile, VALUE_CAPABLE_CLASS_NAME)) {
+      return false;
+    }
+    
+    // the annotation descriptor may be used elsewhere, check that the class is annotated
+    boolean[] found = { false };
+    new ClassReader(classFile).accept(new ClassVisitor(Opcodes.ASM6) {
+      @Override
+      public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+        if (desc.equals(VALUE_CAPABLE_CLASS_NAME)) {
+          found[0] = true;
+        }
+        return null;
+      }
+    }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    return found[0];
   }
 }
@@ -0,0 +1,256 @@
+package fr.umlv.valuetypify;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.util.LinkedHashMap;
+import java.util.function.Consumer;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+
+/**
+ * The intrinsics of the methods of {@link java.util.Arrays} on the arrays of value types.
+ *
+ * A call to Arrays.copyOf, Arrays.copyOfRange or Arrays.fill on an array of a value capable class
+ * can not use the methods that take an Object[], so it is redirected to a private static synthetic helper
+ * (named {@code method$$varray}) generated in the class of the call that works on the flattened array directly,
+ * the copies use System.arraycopy that copies the flattened arrays in bulk.
+ * The segmented arrays have their own helpers, see {@link SegmentedArrays}.
+ */
+final class ArrayIntrinsics {
+  private static final String OBJECT_ARRAY = "[Ljava/lang/Object;";
+  private static final String OBJECT = "Ljava/lang/Object;";
+
+  final SegmentedArrays segmentedArrays;   // null if the arrays of the class are not segmented
+  private final LinkedHashMap<String, Type> requests = new LinkedHashMap<>();   // name + desc -> element type
+
+  ArrayIntrinsics(SegmentedArrays segmentedArrays) {
+    this.segmentedArrays = segmentedArrays;
+  }
+
+  /**
+   * Returns the name of the helper of a call to a method of java.util.Arrays or null if the method is not an intrinsic.
+   */
+  static String helperName(AbstractInsnNode insn) {
+    if (insn.getOpcode() != INVOKESTATIC) {
+      return null;
+    }
+    MethodInsnNode methodInsn = (MethodInsnNode)insn;
+    if (!methodInsn.owner.equals("java/util/Arrays")) {
+      return null;
+    }
+    switch(methodInsn.name + methodInsn.desc) {
+    case "copyOf([Ljava/lang/Object;I)[Ljava/lang/Object;":
+    case "copyOfRange([Ljava/lang/Object;II)[Ljava/lang/Object;":
+    case "fill([Ljava/lang/Object;Ljava/lang/Object;)V":
+    case "fill([Ljava/lang/Object;IILjava/lang/Object;)V":
+      return methodInsn.name + "$$varray";
+    default:
+      return null;
+    }
+  }
+
+  /**
+   * Returns the descriptor of the helper, the Object[] and the Object of the intrinsic are replaced
+   * by the array of value types and the value type.
+   */
+  static String helperDescriptor(String desc, Type elementType) {
+    String valueDesc = ValueTypifier.asValueDescriptor(elementType);
+    return helperDescriptor(desc, "[" + valueDesc, valueDesc);
+  }
+
+  /**
+   * Returns the descriptor of a helper, the Object[] and the Object are replaced by arrayDesc and valueDesc.
+   */
+  static String helperDescriptor(String desc, String arrayDesc, String valueDesc) {
+    StringBuilder builder = new StringBuilder().append('(');
+    for(Type type: Type.getArgumentTypes(desc)) {
+      builder.append(asHelperDescriptor(type.getDescriptor(), arrayDesc, valueDesc));
+    }
+    return builder.append(')').append(asHelperDescriptor(Type.getReturnType(desc).getDescriptor(), arrayDesc, valueDesc)).toString();
+  }
+
+  private static String asHelperDescriptor(String desc, String arrayDesc, String valueDesc) {
+    switch(desc) {
+    case OBJECT_ARRAY:
+      return arrayDesc;
+    case OBJECT:
+      return valueDesc;
+    default:
+      return desc;
+    }
+  }
+
+  void request(String name, String desc, Type elementType) {
+    requests.putIfAbsent(name + desc, elementType);
+  }
+
+  /**
+   * Generate the requested helpers in the class.
+   */
+  void generate(ClassVisitor cv) {
+    requests.forEach((nameAndDesc, elementType) -> {
+      int index = nameAndDesc.indexOf('(');
+      String name = nameAndDesc.substring(0, index);
+      String desc = nameAndDesc.substring(index);
+      MethodVisitor mv = cv.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, name, desc, null, null);
+      mv.visitCode();
+      String valueName = ValueTypifier.asValueInternalName(elementType);
+      switch(name) {
+      case "copyOf$$varray":
+        copyOf(mv, valueName);
+        break;
+      case "copyOfRange$$varray":
+        copyOfRange(mv, valueName);
+        break;
+      default:
+        if (Type.getArgumentTypes(desc).length == 2) {
+          fill(mv);
+        } else {
+          fillRange(mv);
+        }
+      }
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+    });
+    if (segmentedArrays != null) {
+      segmentedArrays.generate(cv);
+    }
+  }
+
+  // copyOf(array, newLength)
+  private static void copyOf(MethodVisitor mv, String valueName) {
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitTypeInsn(ANEWARRAY, valueName);
+    mv.visitVarInsn(ASTORE, 2);
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitInsn(ICONST_0);
+    mv.visitVarInsn(ALOAD, 2);
+    mv.visitInsn(ICONST_0);
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitInsn(ARRAYLENGTH);
+    mv.visitVarInsn(ILOAD, 1);
+    arraycopyMin(mv);
+    mv.visitVarInsn(ALOAD, 2);
+    mv.visitInsn(ARETURN);
+  }
+
+  // copyOfRange(array, from, to)
+  private static void copyOfRange(MethodVisitor mv, String valueName) {
+    mv.visitVarInsn(ILOAD, 2);
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitInsn(ISUB);
+    mv.visitVarInsn(ISTORE, 3);
+    Label ok = new Label();
+    mv.visitVarInsn(ILOAD, 3);
+    mv.visitJumpInsn(IFGE, ok);
+    throwNew(mv, "java/lang/IllegalArgumentException", "", 1, " > ", 2, "");
+    mv.visitLabel(ok);
+    mv.visitVarInsn(ILOAD, 3);
+    mv.visitTypeInsn(ANEWARRAY, valueName);
+    mv.visitVarInsn(ASTORE, 4);
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitVarInsn(ALOAD, 4);
+    mv.visitInsn(ICONST_0);
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitInsn(ARRAYLENGTH);
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitInsn(ISUB);
+    mv.visitVarInsn(ILOAD, 3);
+    arraycopyMin(mv);
+    mv.visitVarInsn(ALOAD, 4);
+    mv.visitInsn(ARETURN);
+  }
+
+  // System.arraycopy(src, srcPos, dest, destPos, Math.min(length1, length2))
+  private static void arraycopyMin(MethodVisitor mv) {
+    mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "min", "(II)I", false);
+    mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "arraycopy", "(Ljava/lang/Object;ILjava/lang/Object;II)V", false);
+  }
+
+  // fill(array, value)
+  private static void fill(MethodVisitor mv) {
+    mv.visitInsn(ICONST_0);
+    mv.visitVarInsn(ISTORE, 2);
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitInsn(ARRAYLENGTH);
+    mv.visitVarInsn(ISTORE, 3);
+    fillLoop(mv, 0, 1, 2, 3);
+  }
+
+  // fill(array, from, to, value), same checks as Arrays.rangeCheck
+  private static void fillRange(MethodVisitor mv) {
+    rangeCheck(mv, 0, 1, 2, visitor -> visitor.visitInsn(ARRAYLENGTH));
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitVarInsn(ISTORE, 4);
+    fillLoop(mv, 0, 3, 4, 2);
+  }
+
+  // the checks of Arrays.rangeCheck, length computes the length of the array on the stack
+  static void rangeCheck(MethodVisitor mv, int array, int from, int to, Consumer<MethodVisitor> length) {
+    Label fromOk = new Label();
+    mv.visitVarInsn(ILOAD, from);
+    mv.visitVarInsn(ILOAD, to);
+    mv.visitJumpInsn(IF_ICMPLE, fromOk);
+    throwNew(mv, "java/lang/IllegalArgumentException", "fromIndex(", from, ") > toIndex(", to, ")");
+    mv.visitLabel(fromOk);
+    Label startOk = new Label();
+    mv.visitVarInsn(ILOAD, from);
+    mv.visitJumpInsn(IFGE, startOk);
+    throwNew(mv, "java/lang/ArrayIndexOutOfBoundsException", "Array index out of range: ", from, "", -1, "");
+    mv.visitLabel(startOk);
+    Label endOk = new Label();
+    mv.visitVarInsn(ILOAD, to);
+    mv.visitVarInsn(ALOAD, array);
+    length.accept(mv);
+    mv.visitJumpInsn(IF_ICMPLE, endOk);
+    throwNew(mv, "java/lang/ArrayIndexOutOfBoundsException", "Array index out of range: ", to, "", -1, "");
+    mv.visitLabel(endOk);
+  }
+
+  // for(; i < end; i++) { array[i] = value; } return;
+  private static void fillLoop(MethodVisitor mv, int array, int value, int i, int end) {
+    Label loop = new Label();
+    Label exit = new Label();
+    mv.visitLabel(loop);
+    mv.visitVarInsn(ILOAD, i);
+    mv.visitVarInsn(ILOAD, end);
+    mv.visitJumpInsn(IF_ICMPGE, exit);
+    mv.visitVarInsn(ALOAD, array);
+    mv.visitVarInsn(ILOAD, i);
+    mv.visitVarInsn(VLOAD, value);
+    mv.visitInsn(VASTORE);
+    mv.visitIincInsn(i, 1);
+    mv.visitJumpInsn(GOTO, loop);
+    mv.visitLabel(exit);
+    mv.visitInsn(RETURN);
+  }
+
+  // throw new exception(prefix + int1 + middle + int2 + suffix), int2 is ignored if its slot is -1
+  static void throwNew(MethodVisitor mv, String exception, String prefix, int slot1, String middle, int slot2, String suffix) {
+    mv.visitTypeInsn(NEW, exception);
+    mv.visitInsn(DUP);
+    mv.visitTypeInsn(NEW, "java/lang/StringBuilder");
+    mv.visitInsn(DUP);
+    mv.visitLdcInsn(prefix);
+    mv.visitMethodInsn(INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "(Ljava/lang/String;)V", false);
+    mv.visitVarInsn(ILOAD, slot1);
+    mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(I)Ljava/lang/StringBuilder;", false);
+    if (slot2 != -1) {
+      mv.visitLdcInsn(middle);
+      mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+      mv.visitVarInsn(ILOAD, slot2);
+      mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(I)Ljava/lang/StringBuilder;", false);
+      mv.visitLdcInsn(suffix);
+      mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+    }
+    mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;", false);
+    mv.visitMethodInsn(INVOKESPECIAL, exception, "<init>", "(Ljava/lang/String;)V", false);
+    mv.visitInsn(ATHROW);
+  }
+}
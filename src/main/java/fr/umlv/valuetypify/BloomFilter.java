@@ -0,0 +1,59 @@
+package fr.umlv.valuetypify;
+
+/**
+ * A compact set of strings that may answer true for a string that was not added (false positive)
+ * but never answers false for a string that was added.
+ * 
+ * Adding and querying do not allocate, the hash functions are derived from {@link String#hashCode()}
+ * (which is cached by the string) using double hashing.
+ */
+final class BloomFilter {
+  private static final int HASH_COUNT = 7;  // optimal for a 1% false positive rate
+  
+  private final long[] bits;
+  private final int mask;
+  
+  /**
+   * Creates a Bloom filter sized for {@code expectedSize} elements with a false positive rate around 1%.
+   */
+  BloomFilter(int expectedSize) {
+    // 10 bits per element, rounded to a power of 2
+    long bitCount = Math.max(64, Long.highestOneBit(Math.max(1, expectedSize) * 10L - 1) << 1);
+    if (bitCount > (1L << 31)) {
+      throw new IllegalArgumentException("too many elements " + expectedSize);
+    }
+    this.bits = new long[(int)(bitCount >>> 6)];
+    this.mask = (int)(bitCount - 1);
+  }
+  
+  private static int mix(int hash) {
+    // murmur3 finalizer
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    return hash;
+  }
+  
+  void add(String element) {
+    int hash1 = mix(element.hashCode());
+    int hash2 = mix(hash1) | 1;
+    for(int i = 0; i < HASH_COUNT; i++) {
+      int bit = (hash1 + i * hash2) & mask;
+      bits[bit >>> 6] |= 1L << bit;
+    }
+  }
+  
+  boolean mightContain(String element) {
+    int hash1 = mix(element.hashCode());
+    int hash2 = mix(hash1) | 1;
+    for(int i = 0; i < HASH_COUNT; i++) {
+      int bit = (hash1 + i * hash2) & mask;
+      if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,174 @@
+package fr.umlv.valuetypify;
+
+import static org.objectweb.asm.Opcodes.ASTORE;
+import static org.objectweb.asm.Opcodes.DSTORE;
+import static org.objectweb.asm.Opcodes.FSTORE;
+import static org.objectweb.asm.Opcodes.ISTORE;
+import static org.objectweb.asm.Opcodes.LSTORE;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * The control flow graph of a method used to move the boxing of a local variable out of a loop
+ * when the local variable is not modified inside the loop.
+ *
+ * The loops are found using the back edges, an edge that goes backward in the instruction list,
+ * so only the loops generated by javac (reducible loops with the header before the body) are found.
+ * The back edges that go to the same header are part of the same loop.
+ */
+final class BoxHoisting {
+  /** The index of the entry of the method in the result of {@link #reachingStores(int, int)}. */
+  static final int ENTRY = -1;
+
+  private final InsnList instructions;
+  private final ArrayList<List<Integer>> predecessors;
+  private final ArrayList<int[]> backEdges = new ArrayList<>();
+  private Collection<BitSet> loops;    // lazily computed
+
+  BoxHoisting(InsnList instructions) {
+    this.instructions = instructions;
+    int size = instructions.size();
+    predecessors = new ArrayList<>(size);
+    for(int i = 0; i < size; i++) {
+      predecessors.add(new ArrayList<>(1));
+    }
+  }
+
+  /**
+   * Registers a control flow edge (or an exception edge) found by the analyzer.
+   */
+  void addEdge(int insn, int successor) {
+    List<Integer> list = predecessors.get(successor);
+    if (!list.contains(insn)) {
+      list.add(insn);
+      if (successor <= insn) {
+        backEdges.add(new int[] { insn, successor });
+      }
+    }
+  }
+
+  private Collection<BitSet> loops() {
+    if (loops != null) {
+      return loops;
+    }
+    HashMap<Integer, BitSet> loops = new HashMap<>();
+    for(int[] backEdge: backEdges) {
+      // the body is the header and all instructions that reach the back edge without going through the header
+      int header = backEdge[1];
+      BitSet body = loops.computeIfAbsent(header, __ -> new BitSet());
+      body.set(header);
+      ArrayDeque<Integer> work = new ArrayDeque<>();
+      work.push(backEdge[0]);
+      while(!work.isEmpty()) {
+        int index = work.pop();
+        if (body.get(index)) {
+          continue;
+        }
+        body.set(index);
+        predecessors.get(index).forEach(work::push);
+      }
+    }
+    return this.loops = loops.values();
+  }
+  
+  /**
+   * Returns the number of loops that contain the instruction at index.
+   */
+  int loopDepth(int index) {
+    int depth = 0;
+    for(BitSet body: loops()) {
+      if (body.get(index)) {
+        depth++;
+      }
+    }
+    return depth;
+  }
+
+  /**
+   * Returns the weight of the instruction at index in a cost model, a loop is supposed to run 10 times.
+   */
+  int weight(int index) {
+    int weight = 1;
+    for(int i = 0; i < Math.min(loopDepth(index), 4); i++) {
+      weight *= 10;
+    }
+    return weight;
+  }
+
+  /**
+   * Returns the index of the instructions that store a value in the local variable var and reach the instruction
+   * at index, {@link #ENTRY} is used if the value comes from the parameters of the method.
+   */
+  List<Integer> reachingStores(int index, int var) {
+    ArrayList<Integer> stores = new ArrayList<>();
+    if (index == 0) {
+      stores.add(ENTRY);
+    }
+    BitSet visited = new BitSet();
+    ArrayDeque<Integer> work = new ArrayDeque<>();
+    predecessors.get(index).forEach(work::push);
+    while(!work.isEmpty()) {
+      int predecessor = work.pop();
+      if (visited.get(predecessor)) {
+        continue;
+      }
+      visited.set(predecessor);
+      if (isStore(instructions.get(predecessor), var)) {
+        stores.add(predecessor);
+        continue;
+      }
+      if (predecessor == 0 && !stores.contains(ENTRY)) {
+        stores.add(ENTRY);
+      }
+      predecessors.get(predecessor).forEach(work::push);
+    }
+    return stores;
+  }
+
+  private static boolean isStore(AbstractInsnNode insn, int var) {
+    switch(insn.getOpcode()) {
+    case ISTORE:
+    case LSTORE:
+    case FSTORE:
+    case DSTORE:
+    case ASTORE:
+      return ((VarInsnNode)insn).var == var;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * Returns true if the instruction at index is inside a loop that contains none of the stores.
+   */
+  boolean isInvariantInALoop(int index, List<Integer> stores) {
+    for(BitSet body: loops()) {
+      if (body.get(index) && stores.stream().noneMatch(store -> store != ENTRY && body.get(store))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if the instruction at index is protected by an exception handler.
+   */
+  static boolean isInATryBlock(InsnList instructions, List<TryCatchBlockNode> tryCatchBlocks, int index) {
+    for(TryCatchBlockNode tryCatchBlock: tryCatchBlocks) {
+      if (index >= instructions.indexOf(tryCatchBlock.start) && index < instructions.indexOf(tryCatchBlock.end)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,316 @@
+package fr.umlv.valuetypify;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.objectweb.asm.Opcodes.ASM6;
+import static org.objectweb.asm.Opcodes.VALOAD;
+import static org.objectweb.asm.Opcodes.VASTORE;
+import static org.objectweb.asm.Opcodes.VBOX;
+import static org.objectweb.asm.Opcodes.VLOAD;
+import static org.objectweb.asm.Opcodes.VSTORE;
+import static org.objectweb.asm.Opcodes.VUNBOX;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.util.Printer;
+
+/**
+ * A report of the boxing done by the transformer for the classes of a jar,
+ * for each method, the number of value type opcodes emitted and for each box, the instruction that forces it.
+ *
+ * The report is a JSON file
+ * <pre>
+ * {
+ *   "jar": "foo.jar",
+ *   "summary": { "classes": 1, "methods": 2, "boxedMethods": 1, "boxedParameters": 1, "vbox": 1, ..., "causes": { "INVOKEVIRTUAL": 1 } },
+ *   "classes": [
+ *     { "name": "foo/Bar", "methods": [
+ *       { "name": "baz", "desc": "(Lfoo/Color;)V", "vbox": 1, "vunbox": 0, "vload": 2, "vstore": 1, "vaload": 0, "vastore": 0,
+ *         "parameters": [ { "slot": 1, "valueType": false, "valueUses": 0, "boxedUses": 1 } ],
+ *         "boxes": [ { "source": "ALOAD", "offset": 3, "cause": "INVOKEVIRTUAL", "causeOffset": 5, "line": 12 } ] }
+ *     ] }
+ *   ]
+ * }
+ * </pre>
+ * A box is a value that is not a value type anymore, either a VBOX is emitted after the source
+ * or the source (a call, a checkcast) already produces an object and the VUNBOX is not emitted.
+ * The offsets are the bytecode offsets in the original class, the cause of a box is "merge"
+ * if the value is boxed because it is merged with a value that is not a value type,
+ * the cause offset is then the offset of the instruction before the merge.
+ * The parameters are the decisions of the cost model for the parameters that are value capable classes,
+ * the uses are weighted by their loop depth.
+ *
+ * A report can be filled by several threads.
+ */
+final class BoxingReport {
+  /**
+   * A value that is boxed, the source is the instruction that produces the value.
+   */
+  static final class Box {
+    final String source;
+    final int offset;
+    final String cause;
+    final int causeOffset;
+    final int line;          // -1 if there is no line number
+
+    Box(String source, int offset, String cause, int causeOffset, int line) {
+      this.source = source;
+      this.offset = offset;
+      this.cause = cause;
+      this.causeOffset = causeOffset;
+      this.line = line;
+    }
+  }
+
+  /**
+   * The instruction that forces a value to be boxed.
+   */
+  static final class BoxCause {
+    final AbstractInsnNode insn;   // may be null
+    final boolean merge;
+
+    BoxCause(AbstractInsnNode insn, boolean merge) {
+      this.insn = insn;
+      this.merge = merge;
+    }
+  }
+
+  /**
+   * The decision of the cost model to unbox a parameter (or the receiver) or to leave it boxed.
+   */
+  static final class Decision {
+    final int slot;
+    final boolean valueType;
+    final int valueUses;
+    final int boxedUses;
+
+    Decision(int slot, boolean valueType, int valueUses, int boxedUses) {
+      this.slot = slot;
+      this.valueType = valueType;
+      this.valueUses = valueUses;
+      this.boxedUses = boxedUses;
+    }
+  }
+
+  static final class MethodReport {
+    final String name;
+    final String desc;
+    int vbox, vunbox, vload, vstore, vaload, vastore;
+    final ArrayList<Box> boxes = new ArrayList<>();
+    final ArrayList<Decision> decisions = new ArrayList<>();
+
+    MethodReport(String name, String desc) {
+      this.name = name;
+      this.desc = desc;
+    }
+
+    /**
+     * Returns a method visitor that counts the value type opcodes before delegating to the method visitor.
+     */
+    MethodVisitor counter(MethodVisitor mv) {
+      return new MethodVisitor(ASM6, mv) {
+        @Override
+        public void visitInsn(int opcode) {
+          if (opcode == VALOAD) {
+            vaload++;
+          } else if (opcode == VASTORE) {
+            vastore++;
+          }
+          super.visitInsn(opcode);
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+          if (opcode == VLOAD) {
+            vload++;
+          } else if (opcode == VSTORE) {
+            vstore++;
+          }
+          super.visitVarInsn(opcode, var);
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+          if (opcode == VBOX) {
+            vbox++;
+          } else if (opcode == VUNBOX) {
+            vunbox++;
+          }
+          super.visitTypeInsn(opcode, type);
+        }
+      };
+    }
+
+    /**
+     * Record the boxes, must be called before the instructions of the method are rewritten.
+     */
+    void addBoxes(ClassReader reader, MethodNode method, Map<AbstractInsnNode, BoxCause> causes) {
+      if (causes.isEmpty()) {
+        return;
+      }
+      InsnList instructions = method.instructions;
+      int[] offsets = offsets(reader, method);
+      int[] lines = lines(instructions);
+      causes.forEach((source, cause) -> {
+        int causeIndex = (cause.insn == null)? -1: instructions.indexOf(cause.insn);
+        boxes.add(new Box(opcodeName(source),
+            offsets[instructions.indexOf(source)],
+            cause.merge? "merge": opcodeName(cause.insn),
+            (causeIndex == -1)? -1: offsets[causeIndex],
+            (causeIndex == -1)? -1: lines[causeIndex]));
+      });
+      boxes.sort(Comparator.<Box>comparingInt(box -> box.offset).thenComparingInt(box -> box.causeOffset));
+    }
+  }
+
+  private static String opcodeName(AbstractInsnNode insn) {
+    return (insn == null)? "?": Printer.OPCODES[insn.getOpcode()];
+  }
+
+  // replay the instructions in a class writer that shares the constant pool of the original class
+  // so the instructions (ldc, wide, etc) have the same size as in the original class
+  static int[] offsets(ClassReader reader, MethodNode method) {
+    InsnList instructions = method.instructions;
+    Label[] marks = new Label[instructions.size()];
+    MethodVisitor mv = new ClassWriter(reader, 0).visitMethod(method.access, method.name, method.desc, null, null);
+    mv.visitCode();
+    instructions.resetLabels();
+    int index = 0;
+    for(AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+      Label mark = marks[index++] = new Label();
+      mv.visitLabel(mark);
+      insn.accept(mv);
+    }
+    instructions.resetLabels();
+    int[] offsets = new int[marks.length];
+    for(int i = 0; i < marks.length; i++) {
+      offsets[i] = marks[i].getOffset();
+    }
+    return offsets;
+  }
+
+  private static int[] lines(InsnList instructions) {
+    int[] lines = new int[instructions.size()];
+    int line = -1;
+    int index = 0;
+    for(AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+      if (insn instanceof LineNumberNode) {
+        line = ((LineNumberNode)insn).line;
+      }
+      lines[index++] = line;
+    }
+    return lines;
+  }
+
+  private final ConcurrentHashMap<String, List<MethodReport>> classes = new ConcurrentHashMap<>();
+
+  void add(String className, List<MethodReport> methods) {
+    classes.put(className, methods);
+  }
+
+  /**
+   * Write the report as JSON, the classes are sorted by name so the report is deterministic.
+   */
+  void write(Path path, String jarName) throws IOException {
+    TreeMap<String, List<MethodReport>> sortedClasses = new TreeMap<>(classes);
+    int methods = 0, boxedMethods = 0, boxedParameters = 0;
+    int vbox = 0, vunbox = 0, vload = 0, vstore = 0, vaload = 0, vastore = 0;
+    TreeMap<String, Integer> causes = new TreeMap<>();
+    for(List<MethodReport> methodReports: sortedClasses.values()) {
+      for(MethodReport method: methodReports) {
+        methods++;
+        if (method.vbox != 0) {
+          boxedMethods++;
+        }
+        vbox += method.vbox;
+        vunbox += method.vunbox;
+        vload += method.vload;
+        vstore += method.vstore;
+        vaload += method.vaload;
+        vastore += method.vastore;
+        method.boxes.forEach(box -> causes.merge(box.cause, 1, Integer::sum));
+        boxedParameters += (int)method.decisions.stream().filter(decision -> !decision.valueType).count();
+      }
+    }
+
+    try(Writer writer = Files.newBufferedWriter(path, UTF_8)) {
+      writer.write("{\n  \"jar\": " + quote(jarName) + ",\n");
+      writer.write("  \"summary\": { \"classes\": " + sortedClasses.size() + ", \"methods\": " + methods +
+          ", \"boxedMethods\": " + boxedMethods + ", \"boxedParameters\": " + boxedParameters + ", " + counts(vbox, vunbox, vload, vstore, vaload, vastore) + ", \"causes\": {");
+      String separator = " ";
+      for(Map.Entry<String, Integer> cause: causes.entrySet()) {
+        writer.write(separator + quote(cause.getKey()) + ": " + cause.getValue());
+        separator = ", ";
+      }
+      writer.write(" } },\n  \"classes\": [");
+      String classSeparator = "\n";
+      for(Map.Entry<String, List<MethodReport>> entry: sortedClasses.entrySet()) {
+        writer.write(classSeparator + "    { \"name\": " + quote(entry.getKey()) + ", \"methods\": [");
+        String methodSeparator = "\n";
+        for(MethodReport method: entry.getValue()) {
+          writer.write(methodSeparator + "      { \"name\": " + quote(method.name) + ", \"desc\": " + quote(method.desc) + ", " +
+              counts(method.vbox, method.vunbox, method.vload, method.vstore, method.vaload, method.vastore) + ", \"parameters\": [");
+          String decisionSeparator = " ";
+          for(Decision decision: method.decisions) {
+            writer.write(decisionSeparator + "{ \"slot\": " + decision.slot + ", \"valueType\": " + decision.valueType +
+                ", \"valueUses\": " + decision.valueUses + ", \"boxedUses\": " + decision.boxedUses + " }");
+            decisionSeparator = ", ";
+          }
+          writer.write(method.decisions.isEmpty()? "], \"boxes\": [": " ], \"boxes\": [");
+          String boxSeparator = "\n";
+          for(Box box: method.boxes) {
+            writer.write(boxSeparator + "        { \"source\": " + quote(box.source) + ", \"offset\": " + box.offset +
+                ", \"cause\": " + quote(box.cause) + ", \"causeOffset\": " + box.causeOffset + ", \"line\": " + box.line + " }");
+            boxSeparator = ",\n";
+          }
+          writer.write(method.boxes.isEmpty()? "] }": "\n      ] }");
+          methodSeparator = ",\n";
+        }
+        writer.write(entry.getValue().isEmpty()? "] }": "\n    ] }");
+        classSeparator = ",\n";
+      }
+      writer.write(sortedClasses.isEmpty()? "]\n}\n": "\n  ]\n}\n");
+    }
+  }
+
+  private static String counts(int vbox, int vunbox, int vload, int vstore, int vaload, int vastore) {
+    return "\"vbox\": " + vbox + ", \"vunbox\": " + vunbox + ", \"vload\": " + vload + ", \"vstore\": " + vstore +
+        ", \"vaload\": " + vaload + ", \"vastore\": " + vastore;
+  }
+
+  private static String quote(String text) {
+    StringBuilder builder = new StringBuilder(text.length() + 2).append('"');
+    for(int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      switch(c) {
+      case '"':
+      case '\\':
+        builder.append('\\').append(c);
+        break;
+      default:
+        if (c < ' ') {
+          builder.append(String.format("\\u%04x", (int)c));
+        } else {
+          builder.append(c);
+        }
+      }
+    }
+    return builder.append('"').toString();
+  }
+}
@@ -0,0 +1,81 @@
+package fr.umlv.valuetypify;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Computes the common super class of two classes by reading their class files
+ * instead of loading them like {@link org.objectweb.asm.ClassWriter} does.
+ * This is required when the classes are transformed while being loaded.
+ * 
+ * Like ASM, if one of the class is an interface the common super class is java/lang/Object.
+ */
+final class ClassHierarchy {
+  private static final String OBJECT = "java/lang/Object";
+  private static final String INTERFACE = "";  // marker for an interface
+  
+  private final Function<String, Optional<InputStream>> classFileFinder;
+  private final ConcurrentHashMap<String, String> superNames = new ConcurrentHashMap<>();
+  
+  ClassHierarchy(Function<String, Optional<InputStream>> classFileFinder) {
+    this.classFileFinder = Objects.requireNonNull(classFileFinder);
+  }
+  
+  // returns null if the class is not found, INTERFACE if the class is an interface
+  private String superName(String className) {
+    String superName = superNames.get(className);
+    if (superName != null) {
+      return superName;
+    }
+    Optional<InputStream> classFileInputStream = classFileFinder.apply(className);
+    if (!classFileInputStream.isPresent()) {
+      return null;
+    }
+    try(InputStream input = classFileInputStream.get()) {
+      ClassReader reader = new ClassReader(input);
+      superName = ((reader.getAccess() & Opcodes.ACC_INTERFACE) != 0)? INTERFACE: reader.getSuperName();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    if (superName == null) {  // java/lang/Object
+      return null;
+    }
+    superNames.put(className, superName);
+    return superName;
+  }
+  
+  // the class and all its super classes, or null if one is an interface
+  private ArrayList<String> superClasses(String className) {
+    ArrayList<String> superClasses = new ArrayList<>();
+    for(String name = className; name != null && !name.equals(OBJECT); name = superName(name)) {
+      if (name.isEmpty()) {  // INTERFACE
+        return null;
+      }
+      superClasses.add(name);
+    }
+    return superClasses;
+  }
+  
+  String getCommonSuperClass(String type1, String type2) {
+    ArrayList<String> superClasses1 = superClasses(type1);
+    ArrayList<String> superClasses2 = superClasses(type2);
+    if (superClasses1 == null || superClasses2 == null) {
+      return OBJECT;
+    }
+    for(String superClass: superClasses2) {
+      if (superClasses1.contains(superClass)) {
+        return superClass;
+      }
+    }
+    return OBJECT;
+  }
+}
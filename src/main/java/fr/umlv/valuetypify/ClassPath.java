@@ -0,0 +1,202 @@
+package fr.umlv.valuetypify;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * A list of jars and directories used to find the class files,
+ * the first element that contains a class wins like with the classpath of the VM.
+ *
+ * All the elements are opened once and can be shared by several threads.
+ */
+final class ClassPath implements Closeable {
+  private final LinkedHashMap<Path, RawZip.Reader> jars;  // null value for a directory
+  private final ArrayList<String> classNames;
+  private final ArrayList<String> indexedVCCs;
+
+  private ClassPath(LinkedHashMap<Path, RawZip.Reader> jars, ArrayList<String> classNames, ArrayList<String> indexedVCCs) {
+    this.jars = jars;
+    this.classNames = classNames;
+    this.indexedVCCs = indexedVCCs;
+  }
+
+  private static Path normalize(Path path) {
+    return path.toAbsolutePath().normalize();
+  }
+
+  /**
+   * Open the jars to transform and their dependencies (jars or directories).
+   * If a dependency jar contains a {@link VCCIndex}, its classes are not scanned,
+   * the index says which ones are value capable classes.
+   */
+  static ClassPath open(List<Path> jars, List<Path> dependencies) throws IOException {
+    LinkedHashMap<Path, RawZip.Reader> readers = new LinkedHashMap<>();
+    HashSet<String> seen = new HashSet<>();
+    ArrayList<String> classNames = new ArrayList<>();
+    ArrayList<String> indexedVCCs = new ArrayList<>();
+    try {
+      int index = 0;
+      for(Path path: concat(jars, dependencies)) {
+        boolean isDependency = index++ >= jars.size();
+        path = normalize(path);
+        if (readers.containsKey(path)) {
+          continue;
+        }
+        if (Files.isDirectory(path)) {
+          readers.put(path, null);
+          Path directory = path;
+          try(Stream<Path> stream = Files.walk(directory)) {
+            stream.filter(file -> file.toString().endsWith(".class"))
+                  .map(file -> internalName(directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/")))
+                  .filter(seen::add)
+                  .forEach(classNames::add);
+          }
+          continue;
+        }
+        
+        RawZip.Reader reader = RawZip.Reader.open(path);
+        readers.put(path, reader);
+        Optional<VCCIndex> vccIndex = isDependency? VCCIndex.read(reader): Optional.empty();
+        if (vccIndex.isPresent() && isUpToDate(vccIndex.get(), reader)) {
+          Map<String, String> hashes = vccIndex.get().hashes();
+          for(RawZip.Entry entry: reader.entries()) {
+            if (entry.name.endsWith(".class")) {
+              String className = internalName(entry.name);
+              // only the value capable classes need to be found, the other classes are not value capable
+              if (seen.add(className) && hashes.containsKey(className)) {
+                classNames.add(className);
+                indexedVCCs.add(className);
+              }
+            }
+          }
+          continue;
+        }
+        for(RawZip.Entry entry: reader.entries()) {
+          if (entry.name.endsWith(".class")) {
+            String className = internalName(entry.name);
+            if (seen.add(className)) {
+              classNames.add(className);
+            }
+          }
+        }
+      }
+    } catch(IOException | RuntimeException e) {
+      for(RawZip.Reader reader: readers.values()) {
+        if (reader != null) {
+          reader.close();
+        }
+      }
+      throw e;
+    }
+    return new ClassPath(readers, classNames, indexedVCCs);
+  }
+  
+  private static List<Path> concat(List<Path> list1, List<Path> list2) {
+    ArrayList<Path> list = new ArrayList<>(list1);
+    list.addAll(list2);
+    return list;
+  }
+  
+  // an index that references a class not in the jar or a class that has changed is stale
+  private static boolean isUpToDate(VCCIndex index, RawZip.Reader reader) throws IOException {
+    for(Map.Entry<String, String> entry: index.hashes().entrySet()) {
+      Optional<RawZip.Entry> classEntry = reader.getEntry(entry.getKey() + ".class");
+      if (!classEntry.isPresent() || !VCCIndex.hash(reader.read(classEntry.get())).equals(entry.getValue())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String internalName(String classFileName) {
+    return classFileName.substring(0, classFileName.length() - ".class".length());
+  }
+
+  /**
+   * Returns the reader of a jar of the class path.
+   */
+  RawZip.Reader jar(Path path) {
+    RawZip.Reader reader = jars.get(normalize(path));
+    if (reader == null) {
+      throw new IllegalArgumentException(path + " is not a jar of the class path");
+    }
+    return reader;
+  }
+
+  /**
+   * Returns the class file of a class or an empty optional if the class is not in the class path.
+   */
+  Optional<InputStream> find(String className) {
+    String classFileName = className + ".class";
+    try {
+      for(Map.Entry<Path, RawZip.Reader> element: jars.entrySet()) {
+        RawZip.Reader reader = element.getValue();
+        if (reader == null) {
+          Path file = element.getKey().resolve(classFileName);
+          if (Files.isRegularFile(file)) {
+            return Optional.of(Files.newInputStream(file));
+          }
+          continue;
+        }
+        Optional<RawZip.Entry> entry = reader.getEntry(classFileName);
+        if (entry.isPresent()) {
+          return Optional.of(new ByteArrayInputStream(reader.read(entry.get())));
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Returns the value capable classes found in the indexes of the dependencies.
+   */
+  List<String> indexedVCCs() {
+    return Collections.unmodifiableList(indexedVCCs);
+  }
+
+  /**
+   * Returns a filter of all the classes of the class path that may be a value capable class.
+   */
+  BloomFilter knownClasses() {
+    BloomFilter filter = new BloomFilter(classNames.size());
+    classNames.forEach(filter::add);
+    return filter;
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOException exception = null;
+    for(RawZip.Reader reader: jars.values()) {
+      if (reader == null) {
+        continue;
+      }
+      try {
+        reader.close();
+      } catch(IOException e) {
+        if (exception == null) {
+          exception = e;
+        } else {
+          exception.addSuppressed(e);
+        }
+      }
+    }
+    if (exception != null) {
+      throw exception;
+    }
+  }
+}
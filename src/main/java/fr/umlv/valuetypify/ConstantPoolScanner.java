@@ -0,0 +1,178 @@
+package fr.umlv.valuetypify;
+
+import java.util.function.Predicate;
+
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Helper methods that work on the raw constant pool of a class file,
+ * so they can answer simple questions without a full parsing of the class.
+ */
+final class ConstantPoolScanner {
+  private ConstantPoolScanner() {
+    throw new AssertionError();
+  }
+
+  private static final int UTF8 = 1;
+  private static final int INTEGER = 3;
+  private static final int FLOAT = 4;
+  private static final int LONG = 5;
+  private static final int DOUBLE = 6;
+  private static final int CLASS = 7;
+  private static final int STRING = 8;
+  private static final int FIELDREF = 9;
+  private static final int METHODREF = 10;
+  private static final int INTERFACE_METHODREF = 11;
+  private static final int NAME_AND_TYPE = 12;
+  private static final int METHOD_HANDLE = 15;
+  private static final int METHOD_TYPE = 16;
+  private static final int CONDY = 17;
+  private static final int INDY = 18;
+  private static final int MODULE = 19;
+  private static final int PACKAGE = 20;
+
+  private static int tag(ClassReader reader, int item) {
+    return reader.b[item - 1];
+  }
+
+  static String readUTF8(byte[] b, int offset) {
+    int length = ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+    char[] buffer = new char[length];
+    int index = offset + 2;
+    int end = index + length;
+    int count = 0;
+    while(index < end) {
+      int c = b[index++] & 0xFF;
+      if (c < 0x80) {
+        buffer[count++] = (char)c;
+      } else if (c < 0xE0) {
+        buffer[count++] = (char)(((c & 0x1F) << 6) | (b[index++] & 0x3F));
+      } else {
+        buffer[count++] = (char)(((c & 0x0F) << 12) | ((b[index++] & 0x3F) << 6) | (b[index++] & 0x3F));
+      }
+    }
+    return new String(buffer, 0, count);
+  }
+
+  private static boolean containsSemicolon(byte[] b, int offset) {
+    int length = ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+    for(int i = offset + 2; i < offset + 2 + length; i++) {
+      if (b[i] == ';') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Test all the internal names of the classes referenced by the constant pool,
+   * either as a class constant or inside a field/method descriptor.
+   * This is conservative, a string constant that looks like a descriptor is also tested.
+   *
+   * @return true if one of the internal names matches the predicate.
+   */
+  static boolean anyReferencedClass(ClassReader reader, Predicate<String> predicate) {
+    byte[] b = reader.b;
+    int count = reader.getItemCount();
+    for(int i = 1; i < count; i++) {
+      int item = reader.getItem(i);
+      if (item == 0) {  // second slot of a long or a double
+        continue;
+      }
+      switch(tag(reader, item)) {
+      case CLASS: {
+        String name = readUTF8(b, reader.getItem(reader.readUnsignedShort(item)));
+        if (!name.startsWith("[") && predicate.test(name)) {
+          return true;
+        }
+        break;
+      }
+      case UTF8: {
+        if (!containsSemicolon(b, item)) {
+          break;
+        }
+        String text = readUTF8(b, item);
+        for(int start = text.indexOf('L'); start != -1; start = text.indexOf('L', start + 1)) {
+          int end = start + 1;
+          loop: for(; end < text.length(); end++) {
+            switch(text.charAt(end)) {
+            case ';': case '<': case '>': case '(': case ')': case '[': case '.':
+              break loop;
+            default:
+            }
+          }
+          if (end == text.length() || text.charAt(end) != ';' || end == start + 1) {
+            continue;
+          }
+          if (predicate.test(text.substring(start + 1, end))) {
+            return true;
+          }
+          start = end;
+        }
+        break;
+      }
+      default:
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if the constant pool of the class file contains an UTF8 constant equals to
+   * the ASCII string {@code ascii}. The class file is not parsed, only the constant pool is scanned,
+   * a class file that can not be scanned (unknown constant tag, truncated) is reported as a match
+   * so the caller can fallback to a full parsing.
+   */
+  static boolean containsUTF8(byte[] b, String ascii) {
+    if (b.length < 10) {
+      return true;
+    }
+    int count = ((b[8] & 0xFF) << 8) | (b[9] & 0xFF);
+    int length = ascii.length();
+    int offset = 10;
+    for(int i = 1; i < count; i++) {
+      if (offset >= b.length) {
+        return true;
+      }
+      switch(b[offset]) {
+      case UTF8: {
+        if (offset + 3 > b.length) {
+          return true;
+        }
+        int utf8Length = ((b[offset + 1] & 0xFF) << 8) | (b[offset + 2] & 0xFF);
+        if (utf8Length == length && offset + 3 + length <= b.length && equals(b, offset + 3, ascii)) {
+          return true;
+        }
+        offset += 3 + utf8Length;
+        break;
+      }
+      case CLASS: case STRING: case METHOD_TYPE: case MODULE: case PACKAGE:
+        offset += 3;
+        break;
+      case METHOD_HANDLE:
+        offset += 4;
+        break;
+      case INTEGER: case FLOAT: case FIELDREF: case METHODREF: case INTERFACE_METHODREF:
+      case NAME_AND_TYPE: case CONDY: case INDY:
+        offset += 5;
+        break;
+      case LONG: case DOUBLE:
+        offset += 9;
+        i++;  // takes two slots
+        break;
+      default:
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  private static boolean equals(byte[] b, int offset, String ascii) {
+    for(int i = 0; i < ascii.length(); i++) {
+      if (b[offset + i] != ascii.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,533 @@
+package fr.umlv.valuetypify;
+
+import static org.objectweb.asm.Opcodes.ACC_ABSTRACT;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_NATIVE;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.AALOAD;
+import static org.objectweb.asm.Opcodes.ACONST_NULL;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ANEWARRAY;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.ASM6;
+import static org.objectweb.asm.Opcodes.ASTORE;
+import static org.objectweb.asm.Opcodes.ATHROW;
+import static org.objectweb.asm.Opcodes.CHECKCAST;
+import static org.objectweb.asm.Opcodes.DUP;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.GETSTATIC;
+import static org.objectweb.asm.Opcodes.GOTO;
+import static org.objectweb.asm.Opcodes.IFNONNULL;
+import static org.objectweb.asm.Opcodes.IFNULL;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.IRETURN;
+import static org.objectweb.asm.Opcodes.JSR;
+import static org.objectweb.asm.Opcodes.LDC;
+import static org.objectweb.asm.Opcodes.MULTIANEWARRAY;
+import static org.objectweb.asm.Opcodes.NEW;
+import static org.objectweb.asm.Opcodes.NEWARRAY;
+import static org.objectweb.asm.Opcodes.PUTFIELD;
+import static org.objectweb.asm.Opcodes.PUTSTATIC;
+import static org.objectweb.asm.Opcodes.RET;
+import static org.objectweb.asm.Opcodes.RETURN;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.Interpreter;
+
+/**
+ * A flow analysis that computes if the references of a method may be null.
+ *
+ * The references are tracked through the stack, the local variables and the merges,
+ * a local variable tested against null is null in a branch and non null in the other one
+ * and a branch that can not be taken is not analyzed (its instructions have no frame).
+ * The objects created by NEW, the arrays, the constants and {@code this} are non null,
+ * a load from a field, the result of a call or an element of an array is non null only if the predicates say so
+ * (the type of the references is tracked for the arrays), everything else may be null.
+ * In a constructor, {@code this} is tracked as {@link #THIS} and the fields of the class can be tracked
+ * in extra local variables, a tracked field is null until it is assigned.
+ */
+final class Nullness {
+  /** The value may be null. */
+  static final int NULL = 1;
+  /** The value may be an object. */
+  static final int OBJECT = 2;
+  /** The value may be the object under construction. */
+  static final int THIS = 4;
+
+  /**
+   * A value of the analysis, its state is a combination of {@link #NULL}, {@link #OBJECT} and {@link #THIS},
+   * 0 if the value is not a reference.
+   */
+  static final class Value implements org.objectweb.asm.tree.analysis.Value {
+    final int size;
+    final int state;
+    final Type type;   // the type of a reference, null if unknown
+
+    Value(int size, int state, Type type) {
+      this.size = size;
+      this.state = state;
+      this.type = type;
+    }
+
+    Value(int size, int state) {
+      this(size, state, null);
+    }
+
+    @Override
+    public int getSize() {
+      return size;
+    }
+
+    boolean isNonNull() {
+      return Nullness.isNonNull(state);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Value)) {
+        return false;
+      }
+      Value value = (Value)o;
+      return size == value.size && state == value.state && Objects.equals(type, value.type);
+    }
+
+    @Override
+    public int hashCode() {
+      return (size * 31 + state) * 31 + Objects.hashCode(type);
+    }
+
+    @Override
+    public String toString() {
+      return (state == 0)? "-": ((state & NULL) != 0? "N": "") + ((state & OBJECT) != 0? "O": "") + ((state & THIS) != 0? "T": "");
+    }
+  }
+
+  private static final Value TOP = new Value(1, 0);
+  private static final Value NON_NULL = new Value(1, OBJECT);
+  private static final BasicInterpreter BASIC = new BasicInterpreter();
+
+  private final Predicate<FieldInsnNode> nonNullFields;
+  private final Predicate<MethodInsnNode> nonNullCalls;
+  private final Predicate<Type> nonNullParameters;
+  private final Predicate<Type> nonNullElements;   // tested with the type of the array
+
+  Nullness(Predicate<FieldInsnNode> nonNullFields, Predicate<MethodInsnNode> nonNullCalls,
+           Predicate<Type> nonNullParameters, Predicate<Type> nonNullElements) {
+    this.nonNullFields = Objects.requireNonNull(nonNullFields);
+    this.nonNullCalls = Objects.requireNonNull(nonNullCalls);
+    this.nonNullParameters = Objects.requireNonNull(nonNullParameters);
+    this.nonNullElements = Objects.requireNonNull(nonNullElements);
+  }
+
+  // the size of the result of an instruction with the nullness and the type of a reference
+  private static Value value(BasicValue basicValue, int state, Type type) {
+    if (basicValue == null) {
+      return null;
+    }
+    return basicValue.isReference()? new Value(1, state, type): new Value(basicValue.getSize(), 0);
+  }
+
+  private static Value value(BasicValue basicValue, int state) {
+    return value(basicValue, state, null);
+  }
+
+  private static int reference(boolean nonNull) {
+    return nonNull? OBJECT: NULL | OBJECT;
+  }
+
+  private final Interpreter<Value> interpreter = new Interpreter<Value>(ASM6) {
+    @Override
+    public Value newValue(Type type) {
+      if (type == null) {
+        return TOP;
+      }
+      return value(BASIC.newValue(type), NULL | OBJECT, type);
+    }
+
+    @Override
+    public Value newOperation(AbstractInsnNode insn) throws AnalyzerException {
+      switch(insn.getOpcode()) {
+      case ACONST_NULL:
+        return new Value(1, NULL);
+      case LDC:
+        return value(BASIC.newOperation(insn), OBJECT);
+      case NEW:
+        return new Value(1, OBJECT, Type.getObjectType(((TypeInsnNode)insn).desc));
+      case GETSTATIC: {
+        FieldInsnNode fieldInsn = (FieldInsnNode)insn;
+        return value(BASIC.newOperation(insn), reference(nonNullFields.test(fieldInsn)), Type.getType(fieldInsn.desc));
+      }
+      default:
+        return value(BASIC.newOperation(insn), NULL | OBJECT);
+      }
+    }
+
+    @Override
+    public Value copyOperation(AbstractInsnNode insn, Value value) {
+      return value;
+    }
+
+    @Override
+    public Value unaryOperation(AbstractInsnNode insn, Value value) throws AnalyzerException {
+      switch(insn.getOpcode()) {
+      case CHECKCAST:
+        return new Value(1, value.state, Type.getObjectType(((TypeInsnNode)insn).desc));
+      case NEWARRAY:
+        return NON_NULL;
+      case ANEWARRAY:
+        return new Value(1, OBJECT, Type.getType("[" + Type.getObjectType(((TypeInsnNode)insn).desc).getDescriptor()));
+      case GETFIELD: {
+        FieldInsnNode fieldInsn = (FieldInsnNode)insn;
+        return value(BASIC.unaryOperation(insn, null), reference(nonNullFields.test(fieldInsn)), Type.getType(fieldInsn.desc));
+      }
+      default:
+        return value(BASIC.unaryOperation(insn, null), NULL | OBJECT);
+      }
+    }
+
+    @Override
+    public Value binaryOperation(AbstractInsnNode insn, Value value1, Value value2) throws AnalyzerException {
+      if (insn.getOpcode() == AALOAD && value1.type != null && value1.type.getSort() == Type.ARRAY) {
+        Type arrayType = value1.type;
+        return new Value(1, reference(nonNullElements.test(arrayType)), Type.getType(arrayType.getDescriptor().substring(1)));
+      }
+      return value(BASIC.binaryOperation(insn, null, null), NULL | OBJECT);
+    }
+
+    @Override
+    public Value ternaryOperation(AbstractInsnNode insn, Value value1, Value value2, Value value3) {
+      return null;
+    }
+
+    @Override
+    public Value naryOperation(AbstractInsnNode insn, List<? extends Value> values) throws AnalyzerException {
+      if (insn.getOpcode() == MULTIANEWARRAY) {
+        return new Value(1, OBJECT, Type.getType(((MultiANewArrayInsnNode)insn).desc));
+      }
+      if (insn instanceof MethodInsnNode) {
+        MethodInsnNode methodInsn = (MethodInsnNode)insn;
+        boolean nonNull = ValueTypifier.isRequireNonNull(insn) || nonNullCalls.test(methodInsn);
+        Type returnType = Type.getReturnType(methodInsn.desc);
+        return value(BASIC.newValue(returnType), reference(nonNull), returnType);
+      }
+      return value(BASIC.naryOperation(insn, null), NULL | OBJECT);
+    }
+
+    @Override
+    public void returnOperation(AbstractInsnNode insn, Value value, Value expected) {
+      // empty
+    }
+
+    @Override
+    public Value merge(Value v, Value w) {
+      if (v.equals(w)) {
+        return v;
+      }
+      if (v.size != w.size) {
+        return TOP;
+      }
+      return new Value(v.size, v.state | w.state, Objects.equals(v.type, w.type)? v.type: null);
+    }
+  };
+
+  /**
+   * Returns the slot of the local variable that stores the state of a tracked field.
+   */
+  static int fieldSlot(MethodNode method, int fieldIndex) {
+    return method.maxLocals + fieldIndex;
+  }
+
+  /**
+   * Analyzes a method of the class owner and returns the frames before each instruction,
+   * null for an instruction that is not reachable, or null if the method uses subroutines.
+   * The fields of owner (name + desc) are tracked in extra local variables (see {@link #fieldSlot(MethodNode, int)}),
+   * a tracked field is null at the start of the method and all the instance fields are assigned
+   * by a call to another constructor of the class.
+   */
+  Frame<Value>[] analyze(String owner, MethodNode method, List<String> trackedFields) throws AnalyzerException {
+    InsnList instructions = method.instructions;
+    int size = instructions.size();
+    @SuppressWarnings("unchecked")
+    Frame<Value>[] frames = (Frame<Value>[])new Frame<?>[size];
+    if (size == 0) {
+      return frames;
+    }
+    ArrayList<List<TryCatchBlockNode>> handlers = new ArrayList<>(size);
+    for(int i = 0; i < size; i++) {
+      handlers.add(new ArrayList<>(0));
+    }
+    for(TryCatchBlockNode block: method.tryCatchBlocks) {
+      int end = instructions.indexOf(block.end);
+      for(int i = instructions.indexOf(block.start); i < end; i++) {
+        handlers.get(i).add(block);
+      }
+    }
+
+    boolean constructor = method.name.equals("<init>");
+    Frame<Value> entry = new Frame<>(method.maxLocals + trackedFields.size(), method.maxStack);
+    Type returnType = Type.getReturnType(method.desc);
+    entry.setReturn(interpreter.newValue(returnType));
+    int slot = 0;
+    if ((method.access & ACC_STATIC) == 0) {
+      entry.setLocal(slot++, new Value(1, constructor? THIS: OBJECT, Type.getObjectType(owner)));
+    }
+    for(Type parameterType: Type.getArgumentTypes(method.desc)) {
+      Value value = interpreter.newValue(parameterType);
+      entry.setLocal(slot++, (value.state != 0 && nonNullParameters.test(parameterType))? new Value(1, OBJECT, parameterType): value);
+      if (parameterType.getSize() == 2) {
+        entry.setLocal(slot++, TOP);
+      }
+    }
+    while(slot < method.maxLocals) {
+      entry.setLocal(slot++, TOP);
+    }
+    for(int i = 0; i < trackedFields.size(); i++) {
+      entry.setLocal(slot++, new Value(1, NULL));
+    }
+
+    ArrayDeque<Integer> work = new ArrayDeque<>();
+    boolean[] queued = new boolean[size];
+    merge(frames, work, queued, 0, entry);
+    while(!work.isEmpty()) {
+      int index = work.pop();
+      queued[index] = false;
+      AbstractInsnNode insn = instructions.get(index);
+      Frame<Value> frame = frames[index];
+      int opcode = insn.getOpcode();
+
+      for(TryCatchBlockNode block: handlers.get(index)) {
+        Frame<Value> handler = new Frame<>(frame);
+        handler.clearStack();
+        handler.push(NON_NULL);
+        merge(frames, work, queued, instructions.indexOf(block.handler), handler);
+      }
+
+      if (opcode == -1) {  // labels, line numbers and frames
+        merge(frames, work, queued, index + 1, frame);
+        continue;
+      }
+      if (opcode == JSR || opcode == RET) {
+        return null;
+      }
+      Frame<Value> next = new Frame<>(frame);
+      next.execute(insn, interpreter);
+      trackFields(owner, trackedFields, method, insn, frame, next);
+
+      if (insn instanceof JumpInsnNode) {
+        int target = instructions.indexOf(((JumpInsnNode)insn).label);
+        if (opcode == IFNULL || opcode == IFNONNULL) {
+          int state = frame.getStack(frame.getStackSize() - 1).state;
+          int jumpState = (opcode == IFNULL)? state & NULL: state & (OBJECT | THIS);
+          int fallState = (opcode == IFNULL)? state & (OBJECT | THIS): state & NULL;
+          int var = testedLocal(insn);
+          if (state == 0 || fallState != 0) {
+            merge(frames, work, queued, index + 1, refine(next, var, fallState));
+          }
+          if (state == 0 || jumpState != 0) {
+            merge(frames, work, queued, target, refine(next, var, jumpState));
+          }
+          continue;
+        }
+        if (opcode != GOTO) {
+          merge(frames, work, queued, index + 1, next);
+        }
+        merge(frames, work, queued, target, next);
+        continue;
+      }
+      if (insn instanceof TableSwitchInsnNode) {
+        TableSwitchInsnNode switchInsn = (TableSwitchInsnNode)insn;
+        merge(frames, work, queued, instructions.indexOf(switchInsn.dflt), next);
+        for(LabelNode label: switchInsn.labels) {
+          merge(frames, work, queued, instructions.indexOf(label), next);
+        }
+        continue;
+      }
+      if (insn instanceof LookupSwitchInsnNode) {
+        LookupSwitchInsnNode switchInsn = (LookupSwitchInsnNode)insn;
+        merge(frames, work, queued, instructions.indexOf(switchInsn.dflt), next);
+        for(LabelNode label: switchInsn.labels) {
+          merge(frames, work, queued, instructions.indexOf(label), next);
+        }
+        continue;
+      }
+      if ((opcode >= IRETURN && opcode <= RETURN) || opcode == ATHROW) {
+        continue;
+      }
+      merge(frames, work, queued, index + 1, next);
+    }
+    return frames;
+  }
+
+  private void merge(Frame<Value>[] frames, ArrayDeque<Integer> work, boolean[] queued, int index, Frame<Value> frame) throws AnalyzerException {
+    if (index >= frames.length) {
+      return;
+    }
+    Frame<Value> oldFrame = frames[index];
+    boolean changed;
+    if (oldFrame == null) {
+      frames[index] = new Frame<>(frame);
+      changed = true;
+    } else {
+      changed = oldFrame.merge(frame, interpreter);
+    }
+    if (changed && !queued[index]) {
+      queued[index] = true;
+      work.push(index);
+    }
+  }
+
+  /**
+   * Returns the local variable tested by IFNULL or IFNONNULL (loaded or stored just before the test), -1 otherwise.
+   */
+  static int testedLocal(AbstractInsnNode insn) {
+    AbstractInsnNode previous = ValueTypifier.previousInsn(insn);
+    if (previous == null) {
+      return -1;
+    }
+    if (previous.getOpcode() == ALOAD) {
+      return ((VarInsnNode)previous).var;
+    }
+    if (previous.getOpcode() == ASTORE) {
+      AbstractInsnNode dup = ValueTypifier.previousInsn(previous);
+      if (dup != null && dup.getOpcode() == DUP) {
+        return ((VarInsnNode)previous).var;
+      }
+    }
+    return -1;
+  }
+
+  private static Frame<Value> refine(Frame<Value> frame, int var, int state) {
+    if (var == -1 || state == 0) {
+      return frame;
+    }
+    Frame<Value> refined = new Frame<>(frame);
+    refined.setLocal(var, new Value(1, state, frame.getLocal(var).type));
+    return refined;
+  }
+
+  private static void trackFields(String owner, List<String> trackedFields, MethodNode method, AbstractInsnNode insn,
+                                  Frame<Value> before, Frame<Value> after) {
+    if (trackedFields.isEmpty()) {
+      return;
+    }
+    int opcode = insn.getOpcode();
+    int top = before.getStackSize() - 1;
+    if ((opcode == PUTFIELD || opcode == PUTSTATIC) && ((FieldInsnNode)insn).owner.equals(owner)) {
+      FieldInsnNode fieldInsn = (FieldInsnNode)insn;
+      int index = trackedFields.indexOf(fieldInsn.name + fieldInsn.desc);
+      if (index == -1) {
+        return;
+      }
+      int slot = fieldSlot(method, index);
+      int state = before.getStack(top).state;
+      int receiver = (opcode == PUTSTATIC)? THIS: before.getStack(top - 1).state;
+      if (receiver == THIS) {
+        after.setLocal(slot, new Value(1, state));
+      } else if ((receiver & THIS) != 0) {
+        after.setLocal(slot, new Value(1, state | after.getLocal(slot).state));
+      }
+      return;
+    }
+    if (opcode == INVOKESPECIAL && ((MethodInsnNode)insn).name.equals("<init>") && ((MethodInsnNode)insn).owner.equals(owner)) {
+      int receiver = before.getStack(top - Type.getArgumentTypes(((MethodInsnNode)insn).desc).length).state;
+      if (receiver == THIS) {  // this(...), the other constructor assigns the fields
+        for(int i = 0; i < trackedFields.size(); i++) {
+          after.setLocal(fieldSlot(method, i), NON_NULL);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the methods (name + desc) of a class that never return null. A call to a method of the class
+   * that can not be overridden (static, private or final) is non null if the called method never returns null,
+   * the parameters may be null.
+   */
+  static Set<String> nonNullReturns(ClassNode classNode, Predicate<FieldInsnNode> nonNullFields) throws AnalyzerException {
+    String owner = classNode.name;
+    HashMap<String, Integer> accesses = new HashMap<>();
+    HashSet<String> nonNulls = new HashSet<>();
+    for(MethodNode method: classNode.methods) {
+      accesses.put(method.name + method.desc, method.access);
+      int sort = Type.getReturnType(method.desc).getSort();
+      if ((sort == Type.OBJECT || sort == Type.ARRAY) && (method.access & (ACC_ABSTRACT | ACC_NATIVE)) == 0) {
+        nonNulls.add(method.name + method.desc);
+      }
+    }
+    boolean finalClass = (classNode.access & ACC_FINAL) != 0;
+    Nullness nullness = new Nullness(nonNullFields, methodInsn -> {
+      Integer access;
+      return !methodInsn.itf && methodInsn.owner.equals(owner) && nonNulls.contains(methodInsn.name + methodInsn.desc) &&
+          (access = accesses.get(methodInsn.name + methodInsn.desc)) != null &&
+          (finalClass || (access & (ACC_STATIC | ACC_PRIVATE | ACC_FINAL)) != 0);
+    }, __ -> false, __ -> false);
+    
+    // the methods are supposed non null, removing a method may make the others nullable
+    boolean changed;
+    do {
+      changed = false;
+      for(MethodNode method: classNode.methods) {
+        if (nonNulls.contains(method.name + method.desc) && !returnsNonNull(nullness.analyze(owner, method, Collections.emptyList()), method)) {
+          nonNulls.remove(method.name + method.desc);
+          changed = true;
+        }
+      }
+    } while(changed);
+    return nonNulls;
+  }
+  
+  private static boolean returnsNonNull(Frame<Value>[] frames, MethodNode method) {
+    if (frames == null) {  // subroutines
+      return false;
+    }
+    for(int i = 0; i < frames.length; i++) {
+      if (frames[i] != null && method.instructions.get(i).getOpcode() == ARETURN && !isNonNullOnTop(frames[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if a state is the one of a reference that is not null.
+   */
+  static boolean isNonNull(int state) {
+    return state != 0 && (state & NULL) == 0;
+  }
+
+  /**
+   * Returns true if the value at the top of the stack of the frame is not null.
+   */
+  static boolean isNonNullOnTop(Frame<Value> frame) {
+    return frame.getStack(frame.getStackSize() - 1).isNonNull();
+  }
+}
@@ -0,0 +1,456 @@
+package fr.umlv.valuetypify;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A minimal zip reader/writer able to copy an entry from one archive to another
+ * as raw compressed bytes, without inflating and deflating it again.
+ *
+ * Extra fields and comments are not copied, zip64 is supported for the offsets and the number of entries
+ * but not for the size of an entry.
+ */
+final class RawZip {
+  private RawZip() {
+    throw new AssertionError();
+  }
+
+  static final int STORED = 0;
+  static final int DEFLATED = 8;
+
+  private static final int LOCAL_HEADER = 0x04034b50;
+  private static final int CENTRAL_HEADER = 0x02014b50;
+  private static final int END_HEADER = 0x06054b50;
+  private static final int ZIP64_END_HEADER = 0x06064b50;
+  private static final int ZIP64_LOCATOR = 0x07064b50;
+  private static final int ZIP64_EXTRA = 0x0001;
+
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_HEADER_SIZE = 22;
+  private static final int ZIP64_END_HEADER_SIZE = 56;
+  private static final int ZIP64_LOCATOR_SIZE = 20;
+
+  private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+  private static final int FLAG_UTF8 = 0x800;
+  private static final long MAX_32 = 0xFFFFFFFFL;
+  private static final int MAX_16 = 0xFFFF;
+
+  static final class Entry {
+    final String name;
+    final int versionMadeBy;
+    final int flags;
+    final int method;
+    final int dosDateTime;
+    final long crc;
+    final long compressedSize;
+    final long size;
+    final int externalAttributes;
+    final long localHeaderOffset;
+
+    Entry(String name, int versionMadeBy, int flags, int method, int dosDateTime, long crc, long compressedSize, long size, int externalAttributes, long localHeaderOffset) {
+      this.name = name;
+      this.versionMadeBy = versionMadeBy;
+      this.flags = flags;
+      this.method = method;
+      this.dosDateTime = dosDateTime;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.externalAttributes = externalAttributes;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  private static final int DOS_EPOCH = 0x00210000;  // 1980-01-01 00:00, so the archive stays deterministic
+
+  /**
+   * Creates a template for a new deflated entry, to be used with {@link Writer#write(Entry, byte[])}.
+   */
+  static Entry newEntry(String name) {
+    return new Entry(name, 20, 0, DEFLATED, DOS_EPOCH, 0, 0, 0, 0, 0);
+  }
+
+  private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    while(buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) == -1) {
+        throw new EOFException();
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * A zip file reader, all read operations are positional so a reader can be shared by several threads.
+   */
+  static final class Reader implements Closeable {
+    private final FileChannel channel;
+    private final List<Entry> entries;
+    private final HashMap<String, Entry> entryMap;
+
+    private Reader(FileChannel channel, List<Entry> entries) {
+      this.channel = channel;
+      this.entries = Collections.unmodifiableList(entries);
+      HashMap<String, Entry> entryMap = new HashMap<>();
+      entries.forEach(entry -> entryMap.putIfAbsent(entry.name, entry));
+      this.entryMap = entryMap;
+    }
+
+    static Reader open(Path path) throws IOException {
+      FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+      try {
+        return new Reader(channel, readCentralDirectory(channel));
+      } catch(IOException | RuntimeException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    private static List<Entry> readCentralDirectory(FileChannel channel) throws IOException {
+      long fileSize = channel.size();
+
+      // find the end of central directory record, it may be followed by a comment
+      int tailLength = (int)Math.min(fileSize, END_HEADER_SIZE + MAX_16);
+      ByteBuffer tail = readFully(channel, fileSize - tailLength, tailLength);
+      int endOffset = tailLength - END_HEADER_SIZE;
+      for(; endOffset >= 0; endOffset--) {
+        if (tail.getInt(endOffset) == END_HEADER) {
+          break;
+        }
+      }
+      if (endOffset < 0) {
+        throw new ZipException("end of central directory not found");
+      }
+      long endPosition = fileSize - tailLength + endOffset;
+      long count = tail.getShort(endOffset + 10) & MAX_16;
+      long centralSize = tail.getInt(endOffset + 12) & MAX_32;
+      long centralOffset = tail.getInt(endOffset + 16) & MAX_32;
+
+      if ((count == MAX_16 || centralSize == MAX_32 || centralOffset == MAX_32) && endPosition >= ZIP64_LOCATOR_SIZE) {
+        ByteBuffer locator = readFully(channel, endPosition - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+        if (locator.getInt(0) == ZIP64_LOCATOR) {
+          ByteBuffer end64 = readFully(channel, locator.getLong(8), ZIP64_END_HEADER_SIZE);
+          if (end64.getInt(0) != ZIP64_END_HEADER) {
+            throw new ZipException("invalid zip64 end of central directory");
+          }
+          count = end64.getLong(32);
+          centralSize = end64.getLong(40);
+          centralOffset = end64.getLong(48);
+        }
+      }
+      if (centralSize > Integer.MAX_VALUE) {
+        throw new ZipException("central directory too big");
+      }
+
+      ByteBuffer central = readFully(channel, centralOffset, (int)centralSize);
+      ArrayList<Entry> entries = new ArrayList<>();
+      for(long i = 0; i < count; i++) {
+        int offset = central.position();
+        if (central.getInt(offset) != CENTRAL_HEADER) {
+          throw new ZipException("invalid central directory header");
+        }
+        int versionMadeBy = central.getShort(offset + 4) & MAX_16;
+        int flags = central.getShort(offset + 8) & MAX_16;
+        int method = central.getShort(offset + 10) & MAX_16;
+        int dosDateTime = central.getInt(offset + 12);
+        long crc = central.getInt(offset + 16) & MAX_32;
+        long compressedSize = central.getInt(offset + 20) & MAX_32;
+        long size = central.getInt(offset + 24) & MAX_32;
+        int nameLength = central.getShort(offset + 28) & MAX_16;
+        int extraLength = central.getShort(offset + 30) & MAX_16;
+        int commentLength = central.getShort(offset + 32) & MAX_16;
+        int externalAttributes = central.getInt(offset + 38);
+        long localHeaderOffset = central.getInt(offset + 42) & MAX_32;
+
+        byte[] nameBytes = new byte[nameLength];
+        central.position(offset + CENTRAL_HEADER_SIZE);
+        central.get(nameBytes);
+
+        // zip64 extended information, fields are only present if the 32 bits field overflows
+        int extraEnd = central.position() + extraLength;
+        while(central.position() + 4 <= extraEnd) {
+          int id = central.getShort() & MAX_16;
+          int length = central.getShort() & MAX_16;
+          int next = central.position() + length;
+          if (id == ZIP64_EXTRA) {
+            if (size == MAX_32) {
+              size = central.getLong();
+            }
+            if (compressedSize == MAX_32) {
+              compressedSize = central.getLong();
+            }
+            if (localHeaderOffset == MAX_32) {
+              localHeaderOffset = central.getLong();
+            }
+          }
+          central.position(next);
+        }
+        central.position(extraEnd + commentLength);
+
+        entries.add(new Entry(new String(nameBytes, UTF_8), versionMadeBy, flags, method, dosDateTime,
+            crc, compressedSize, size, externalAttributes, localHeaderOffset));
+      }
+      return entries;
+    }
+
+    List<Entry> entries() {
+      return entries;
+    }
+
+    Optional<Entry> getEntry(String name) {
+      return Optional.ofNullable(entryMap.get(name));
+    }
+
+    long dataOffset(Entry entry) throws IOException {
+      ByteBuffer header = readFully(channel, entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+      if (header.getInt(0) != LOCAL_HEADER) {
+        throw new ZipException("invalid local header " + entry.name);
+      }
+      int nameLength = header.getShort(26) & MAX_16;
+      int extraLength = header.getShort(28) & MAX_16;
+      return entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    /**
+     * Returns the uncompressed content of an entry.
+     */
+    byte[] read(Entry entry) throws IOException {
+      if (entry.size > Integer.MAX_VALUE || entry.compressedSize > Integer.MAX_VALUE) {
+        throw new ZipException("entry too big " + entry.name);
+      }
+      byte[] raw = readFully(channel, dataOffset(entry), (int)entry.compressedSize).array();
+      switch(entry.method) {
+      case STORED:
+        return raw;
+      case DEFLATED:
+        Inflater inflater = new Inflater(true);
+        try {
+          inflater.setInput(raw);
+          byte[] data = new byte[(int)entry.size];
+          int length = 0;
+          while(length < data.length) {
+            int inflated = inflater.inflate(data, length, data.length - length);
+            if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+              throw new ZipException("truncated entry " + entry.name);
+            }
+            length += inflated;
+          }
+          return data;
+        } catch (DataFormatException e) {
+          throw new ZipException("invalid entry " + entry.name + " " + e.getMessage());
+        } finally {
+          inflater.end();
+        }
+      default:
+        throw new ZipException("unsupported compression method " + entry.method + " for " + entry.name);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  private static void putShort(ByteArrayOutputStream out, int value) {
+    out.write(value);
+    out.write(value >>> 8);
+  }
+  private static void putInt(ByteArrayOutputStream out, long value) {
+    putShort(out, (int)value);
+    putShort(out, (int)(value >>> 16));
+  }
+  private static void putLong(ByteArrayOutputStream out, long value) {
+    putInt(out, value);
+    putInt(out, value >>> 32);
+  }
+
+  /**
+   * A zip file writer, not thread safe.
+   */
+  static final class Writer implements Closeable {
+    private final FileChannel channel;
+    private final ByteArrayOutputStream central = new ByteArrayOutputStream();
+    private long count;
+
+    private Writer(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    static Writer create(Path path) throws IOException {
+      return new Writer(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+    }
+
+    private void write(byte[] bytes) throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      while(buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+
+    private Entry writeHeaders(Entry entry, int method, long crc, long compressedSize, long size) throws IOException {
+      if (compressedSize >= MAX_32 || size >= MAX_32) {
+        throw new ZipException("entry too big " + entry.name);
+      }
+      long localHeaderOffset = channel.position();
+      byte[] nameBytes = entry.name.getBytes(UTF_8);
+      int flags = (entry.flags & ~FLAG_DATA_DESCRIPTOR) | FLAG_UTF8;
+
+      ByteArrayOutputStream header = new ByteArrayOutputStream(LOCAL_HEADER_SIZE + nameBytes.length);
+      putInt(header, LOCAL_HEADER);
+      putShort(header, 20);             // version needed
+      putShort(header, flags);
+      putShort(header, method);
+      putInt(header, entry.dosDateTime);
+      putInt(header, crc);
+      putInt(header, compressedSize);
+      putInt(header, size);
+      putShort(header, nameBytes.length);
+      putShort(header, 0);              // extra length
+      header.write(nameBytes, 0, nameBytes.length);
+      write(header.toByteArray());
+
+      boolean zip64 = localHeaderOffset >= MAX_32;
+      putInt(central, CENTRAL_HEADER);
+      putShort(central, entry.versionMadeBy);
+      putShort(central, zip64? 45: 20);  // version needed
+      putShort(central, flags);
+      putShort(central, method);
+      putInt(central, entry.dosDateTime);
+      putInt(central, crc);
+      putInt(central, compressedSize);
+      putInt(central, size);
+      putShort(central, nameBytes.length);
+      putShort(central, zip64? 12: 0);   // extra length
+      putShort(central, 0);              // comment length
+      putShort(central, 0);              // disk number
+      putShort(central, 0);              // internal attributes
+      putInt(central, entry.externalAttributes);
+      putInt(central, zip64? MAX_32: localHeaderOffset);
+      central.write(nameBytes, 0, nameBytes.length);
+      if (zip64) {
+        putShort(central, ZIP64_EXTRA);
+        putShort(central, 8);
+        putLong(central, localHeaderOffset);
+      }
+      count++;
+
+      return new Entry(entry.name, entry.versionMadeBy, flags, method, entry.dosDateTime, crc, compressedSize, size, entry.externalAttributes, localHeaderOffset);
+    }
+
+    /**
+     * Copy an entry as is, the compressed bytes are transfered from the reader without being decompressed.
+     */
+    Entry copy(Reader reader, Entry entry) throws IOException {
+      Entry newEntry = writeHeaders(entry, entry.method, entry.crc, entry.compressedSize, entry.size);
+      long position = reader.dataOffset(entry);
+      long remaining = entry.compressedSize;
+      while(remaining > 0) {
+        long transfered = reader.channel.transferTo(position, remaining, channel);
+        if (transfered <= 0) {
+          throw new EOFException("truncated entry " + entry.name);
+        }
+        position += transfered;
+        remaining -= transfered;
+      }
+      return newEntry;
+    }
+
+    /**
+     * Write a new content for an entry, using the same name, time and compression method.
+     */
+    Entry write(Entry entry, byte[] data) throws IOException {
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      if (entry.method == STORED) {
+        Entry newEntry = writeHeaders(entry, STORED, crc.getValue(), data.length, data.length);
+        write(data);
+        return newEntry;
+      }
+
+      Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+      try {
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = new byte[8192];
+        while(!deflater.finished()) {
+          int length = deflater.deflate(buffer);
+          compressed.write(buffer, 0, length);
+        }
+      } finally {
+        deflater.end();
+      }
+      Entry newEntry = writeHeaders(entry, DEFLATED, crc.getValue(), compressed.size(), data.length);
+      write(compressed.toByteArray());
+      return newEntry;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        long centralOffset = channel.position();
+        long centralSize = central.size();
+        ByteArrayOutputStream end = new ByteArrayOutputStream();
+        boolean zip64 = count >= MAX_16 || centralOffset >= MAX_32 || centralSize >= MAX_32;
+        if (zip64) {
+          long end64Offset = centralOffset + centralSize;
+          putInt(end, ZIP64_END_HEADER);
+          putLong(end, ZIP64_END_HEADER_SIZE - 12);
+          putShort(end, 45);   // version made by
+          putShort(end, 45);   // version needed
+          putInt(end, 0);      // disk number
+          putInt(end, 0);      // disk of the central directory
+          putLong(end, count);
+          putLong(end, count);
+          putLong(end, centralSize);
+          putLong(end, centralOffset);
+
+          putInt(end, ZIP64_LOCATOR);
+          putInt(end, 0);      // disk of the zip64 end of central directory
+          putLong(end, end64Offset);
+          putInt(end, 1);      // number of disks
+        }
+        putInt(end, END_HEADER);
+        putShort(end, 0);      // disk number
+        putShort(end, 0);      // disk of the central directory
+        putShort(end, (int)Math.min(count, MAX_16));
+        putShort(end, (int)Math.min(count, MAX_16));
+        putInt(end, Math.min(centralSize, MAX_32));
+        putInt(end, Math.min(centralOffset, MAX_32));
+        putShort(end, 0);      // comment length
+
+        write(central.toByteArray());
+        write(end.toByteArray());
+      } finally {
+        channel.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,574 @@
+package fr.umlv.valuetypify;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.SourceInterpreter;
+import org.objectweb.asm.tree.analysis.SourceValue;
+
+/**
+ * The backend that generates the bytecode of a stock Java VM (no value type opcodes).
+ *
+ * The value capable classes are not changed, a local variable that stores a value capable class is replaced
+ * by one local variable per field (a field local) if all the values stored in it are created by a {@code new}
+ * (or copied from another scalarized local variable) with a constructor that only stores its parameters
+ * in the final fields of the class (see {@link StaticTwins#fieldAssignments(String, MethodNode)}).
+ * The {@code new} stores the arguments of the constructor in the field locals, a GETFIELD on the local variable
+ * becomes a load of a field local and any other use (a call, a return, etc), where the MVT backend boxes,
+ * allocates a new object from the field locals.
+ * A local variable is scalarized only if the allocations it adds are less than the allocations it removes
+ * (weighted by their loop depth), so the scalar replacement doesn't depend on the inlining decisions of the JIT.
+ * As with the MVT backend, the identity of a value capable class is not preserved.
+ * The arrays owned by a class can also be replaced by a struct of arrays or stored off-heap, see {@link StructOfArrays}.
+ */
+final class Scalarizer {
+  private final Predicate<String> isVCC;
+  private final Function<String, Optional<InputStream>> classFileFinder;
+  final boolean structOfArrays;   // true if the arrays owned by the private fields are replaced by a struct of arrays
+  final boolean offHeap;          // true if the arrays owned by the private fields are stored off-heap
+  private final ConcurrentHashMap<String, Optional<Layout>> layouts = new ConcurrentHashMap<>();
+
+  /**
+   * The final fields of a value capable class and its constructors that only store their parameters in the fields.
+   */
+  static final class Layout {
+    final String className;
+    final LinkedHashMap<String, Type> fields = new LinkedHashMap<>();   // name + desc -> type
+    final HashMap<String, List<List<String>>> constructors = new HashMap<>();  // desc -> fields of each parameter
+    final HashMap<String, Integer> access = new HashMap<>();   // class name, field name + desc or constructor desc -> access
+
+    Layout(String className) {
+      this.className = className;
+    }
+
+    /**
+     * Returns true if the class, the field (name + desc) or the constructor (desc) is accessible from a class.
+     */
+    boolean isAccessible(String member, String from) {
+      int access = this.access.get(member);
+      return (access & ACC_PUBLIC) != 0 || ((access & ACC_PRIVATE) == 0 && packageName(className).equals(packageName(from)));
+    }
+
+    private static String packageName(String className) {
+      int index = className.lastIndexOf('/');
+      return (index == -1)? "": className.substring(0, index);
+    }
+  }
+
+  Scalarizer(Predicate<String> isVCC, Function<String, Optional<InputStream>> classFileFinder) {
+    this(isVCC, classFileFinder, false, false);
+  }
+
+  Scalarizer(Predicate<String> isVCC, Function<String, Optional<InputStream>> classFileFinder, boolean structOfArrays, boolean offHeap) {
+    if (structOfArrays && offHeap) {
+      throw new IllegalArgumentException("an array is either a struct of arrays or off-heap");
+    }
+    this.isVCC = Objects.requireNonNull(isVCC);
+    this.classFileFinder = Objects.requireNonNull(classFileFinder);
+    this.structOfArrays = structOfArrays;
+    this.offHeap = offHeap;
+  }
+
+  /**
+   * Returns the layout of a value capable class or null if its instances can not be scalarized.
+   */
+  Layout layout(String className) {
+    if (!isVCC.test(className)) {
+      return null;
+    }
+    Optional<Layout> layout = layouts.get(className);
+    if (layout == null) {
+      layout = readLayout(className);
+      layouts.put(className, layout);
+    }
+    return layout.orElse(null);
+  }
+
+  private Optional<Layout> readLayout(String className) {
+    Optional<InputStream> classFileInputStream = classFileFinder.apply(className);
+    if (!classFileInputStream.isPresent()) {
+      return Optional.empty();
+    }
+    ClassNode classNode = new ClassNode();
+    try(InputStream input = classFileInputStream.get()) {
+      new ClassReader(input).accept(classNode, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    Layout layout = new Layout(className);
+    layout.access.put(className, classNode.access);
+    for(FieldNode field: classNode.fields) {
+      if ((field.access & ACC_STATIC) != 0) {
+        continue;
+      }
+      if ((field.access & ACC_FINAL) == 0) {   // an object may be mutated, so its fields can not be copied
+        return Optional.empty();
+      }
+      layout.fields.put(field.name + field.desc, Type.getType(field.desc));
+      layout.access.put(field.name + field.desc, field.access);
+    }
+    for(MethodNode method: classNode.methods) {
+      if (!method.name.equals("<init>")) {
+        continue;
+      }
+      List<List<String>> parameterFields = parameterFields(className, method, layout.fields.keySet());
+      if (parameterFields != null) {
+        layout.constructors.put(method.desc, parameterFields);
+        layout.access.put(method.desc, method.access);
+      }
+    }
+    return layout.constructors.isEmpty()? Optional.empty(): Optional.of(layout);
+  }
+
+  // returns the fields of each parameter of a constructor that stores each parameter in a field of the same type
+  // and each field once, or null otherwise
+  private static List<List<String>> parameterFields(String className, MethodNode constructor, Set<String> fields) {
+    List<AbstractInsnNode> assignments = StaticTwins.fieldAssignments(className, constructor);
+    if (assignments == null) {
+      return null;
+    }
+    Type[] parameterTypes = Type.getArgumentTypes(constructor.desc);
+    ArrayList<List<String>> parameterFields = new ArrayList<>();
+    TreeMap<Integer, Integer> slots = new TreeMap<>();  // slot -> parameter index
+    int slot = 1;
+    for(int i = 0; i < parameterTypes.length; i++) {
+      parameterFields.add(new ArrayList<>());
+      slots.put(slot, i);
+      slot += parameterTypes[i].getSize();
+    }
+    HashSet<String> assignedFields = new HashSet<>();
+    for(int i = 0; i < assignments.size(); i += 2) {
+      Integer parameter = slots.get(((VarInsnNode)assignments.get(i)).var);
+      FieldInsnNode field = (FieldInsnNode)assignments.get(i + 1);
+      String fieldKey = field.name + field.desc;
+      if (parameter == null || !parameterTypes[parameter].getDescriptor().equals(field.desc) || !assignedFields.add(fieldKey)) {
+        return null;
+      }
+      parameterFields.get(parameter).add(fieldKey);
+    }
+    if (!assignedFields.equals(fields) || parameterFields.stream().anyMatch(List::isEmpty)) {
+      return null;
+    }
+    return parameterFields;
+  }
+
+  /**
+   * Returns the class with the local variables that store a value capable class scalarized.
+   */
+  byte[] convert(ClassReader reader, ClassWriter writer) {
+    String owner = reader.getClassName();
+    StructOfArrays structOfArrays = (this.structOfArrays || offHeap)?
+        StructOfArrays.of(reader, type -> type.getSort() == Type.OBJECT && isVCC.test(type.getInternalName()), this::layout, offHeap): null;
+    ClassVisitor visitor = (structOfArrays == null)? writer: new ClassRemapper(writer, structOfArrays.remapper());
+    reader.accept(new ClassVisitor(ASM6, visitor) {
+      @Override
+      public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        MethodVisitor methodWriter = super.visitMethod(access, name, desc, signature, exceptions);
+        return new MethodNode(ASM6, access, name, desc, signature, exceptions) {
+          @Override
+          public void visitEnd() {
+            try {
+              if (structOfArrays != null) {
+                structOfArrays.rewrite(this);
+              }
+              scalarize(owner, this);
+            } catch (AnalyzerException e) {
+              throw new UncheckedIOException(new IOException(e));
+            }
+            accept(methodWriter);
+          }
+        };
+      }
+
+      @Override
+      public void visitEnd() {
+        if (structOfArrays != null) {
+          structOfArrays.generate(cv);
+        }
+        super.visitEnd();
+      }
+    }, 0);
+    return writer.toByteArray();
+  }
+
+  // record the instructions that consume the values, the loads of a local variable are not consumers
+  static class Uses extends SourceInterpreter {
+    final HashMap<AbstractInsnNode, Set<AbstractInsnNode>> consumers = new HashMap<>();  // source -> consumers
+    final HashMap<AbstractInsnNode, List<SourceValue>> operands = new HashMap<>();   // consumer -> values
+
+    Uses() {
+      super(ASM6);
+    }
+
+    private void consume(AbstractInsnNode insn, List<? extends SourceValue> values) {
+      operands.put(insn, new ArrayList<>(values));
+      for(SourceValue value: values) {
+        for(AbstractInsnNode source: value.insns) {
+          consumers.computeIfAbsent(source, __ -> new HashSet<>()).add(insn);
+        }
+      }
+    }
+
+    @Override
+    public SourceValue copyOperation(AbstractInsnNode insn, SourceValue value) {
+      int opcode = insn.getOpcode();
+      if (opcode >= ILOAD && opcode <= ALOAD) {
+        operands.put(insn, Collections.singletonList(value));  // the stores that reach the load
+      } else {
+        consume(insn, Collections.singletonList(value));
+      }
+      return super.copyOperation(insn, value);
+    }
+    @Override
+    public SourceValue unaryOperation(AbstractInsnNode insn, SourceValue value) {
+      consume(insn, Collections.singletonList(value));
+      return super.unaryOperation(insn, value);
+    }
+    @Override
+    public SourceValue binaryOperation(AbstractInsnNode insn, SourceValue value1, SourceValue value2) {
+      consume(insn, Arrays.asList(value1, value2));
+      return super.binaryOperation(insn, value1, value2);
+    }
+    @Override
+    public SourceValue ternaryOperation(AbstractInsnNode insn, SourceValue value1, SourceValue value2, SourceValue value3) {
+      consume(insn, Arrays.asList(value1, value2, value3));
+      return super.ternaryOperation(insn, value1, value2, value3);
+    }
+    @Override
+    public SourceValue naryOperation(AbstractInsnNode insn, List<? extends SourceValue> values) {
+      consume(insn, values);
+      return super.naryOperation(insn, values);
+    }
+    @Override
+    public void returnOperation(AbstractInsnNode insn, SourceValue value, SourceValue expected) {
+      consume(insn, Collections.singletonList(value));
+    }
+
+    Set<AbstractInsnNode> consumers(AbstractInsnNode insn) {
+      return consumers.getOrDefault(insn, Collections.emptySet());
+    }
+
+    // the loads of the value of each store
+    Map<AbstractInsnNode, List<AbstractInsnNode>> loads() {
+      HashMap<AbstractInsnNode, List<AbstractInsnNode>> loads = new HashMap<>();
+      operands.forEach((insn, values) -> {
+        if (insn.getOpcode() == ALOAD) {
+          for(AbstractInsnNode store: values.get(0).insns) {
+            loads.computeIfAbsent(store, __ -> new ArrayList<>()).add(insn);
+          }
+        }
+      });
+      return loads;
+    }
+
+    // returns true if the value consumed by insn at index comes only from source
+    boolean comesFrom(AbstractInsnNode insn, int index, AbstractInsnNode source) {
+      List<SourceValue> values = operands.get(insn);
+      return values != null && values.get(index).insns.equals(Collections.singleton(source));
+    }
+  }
+
+  // a new of a value capable class stored in a local variable: NEW, DUP, arguments, INVOKESPECIAL, ASTORE
+  private static final class Allocation {
+    final TypeInsnNode newInsn;
+    final AbstractInsnNode dup;
+    final MethodInsnNode constructor;
+    final List<List<String>> parameterFields;
+
+    Allocation(TypeInsnNode newInsn, AbstractInsnNode dup, MethodInsnNode constructor, List<List<String>> parameterFields) {
+      this.newInsn = newInsn;
+      this.dup = dup;
+      this.constructor = constructor;
+      this.parameterFields = parameterFields;
+    }
+  }
+
+  private Allocation allocation(AbstractInsnNode insn, Uses uses) {
+    if (insn.getOpcode() != NEW) {
+      return null;
+    }
+    TypeInsnNode newInsn = (TypeInsnNode)insn;
+    Layout layout = layout(newInsn.desc);
+    AbstractInsnNode dup = ValueTypifier.nextInsn(newInsn);
+    if (layout == null || dup == null || dup.getOpcode() != DUP || uses.consumers(dup).size() != 1) {
+      return null;
+    }
+    AbstractInsnNode init = uses.consumers(dup).iterator().next();
+    if (init.getOpcode() != INVOKESPECIAL || !uses.comesFrom(init, 0, dup)) {
+      return null;
+    }
+    MethodInsnNode constructor = (MethodInsnNode)init;
+    List<List<String>> parameterFields = layout.constructors.get(constructor.desc);
+    AbstractInsnNode store = ValueTypifier.nextInsn(constructor);
+    if (!constructor.owner.equals(newInsn.desc) || parameterFields == null ||
+        store == null || store.getOpcode() != ASTORE || !uses.comesFrom(store, 0, newInsn) ||
+        !uses.consumers(newInsn).equals(new HashSet<>(Arrays.asList(dup, store)))) {
+      return null;
+    }
+    return new Allocation(newInsn, dup, constructor, parameterFields);
+  }
+
+  private static boolean isLoad(AbstractInsnNode insn, Set<Integer> vars) {
+    return insn.getOpcode() == ALOAD && vars.contains(((VarInsnNode)insn).var);
+  }
+
+  private static boolean isStore(AbstractInsnNode insn, Set<Integer> vars) {
+    return insn.getOpcode() == ASTORE && vars.contains(((VarInsnNode)insn).var);
+  }
+
+  // returns the GETFIELD or the ASTORE in a scalarized local variable that directly consumes the load or null
+  private static AbstractInsnNode scalarUse(AbstractInsnNode load, Uses uses, Map<Integer, String> types) {
+    AbstractInsnNode next = ValueTypifier.nextInsn(load);
+    if (next == null || !uses.consumers(load).equals(Collections.singleton(next)) || !uses.comesFrom(next, 0, load)) {
+      return null;
+    }
+    String type = types.get(((VarInsnNode)load).var);
+    if (next.getOpcode() == GETFIELD && ((FieldInsnNode)next).owner.equals(type)) {
+      return next;
+    }
+    if (next.getOpcode() == ASTORE && type.equals(types.get(((VarInsnNode)next).var))) {
+      return next;
+    }
+    return null;
+  }
+
+  /**
+   * Scalarize the local variables of a method.
+   */
+  void scalarize(String owner, MethodNode method) throws AnalyzerException {
+    InsnList instructions = method.instructions;
+    boolean anyNew = false;
+    for(AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+      int opcode = insn.getOpcode();
+      if (opcode == JSR || opcode == RET) {
+        return;
+      }
+      anyNew |= opcode == NEW && layout(((TypeInsnNode)insn).desc) != null;
+    }
+    if (!anyNew) {
+      return;
+    }
+
+    Uses uses = new Uses();
+    BoxHoisting hoisting = new BoxHoisting(instructions);
+    Analyzer<SourceValue> analyzer = new Analyzer<SourceValue>(uses) {
+      @Override
+      protected void newControlFlowEdge(int insn, int successor) {
+        hoisting.addEdge(insn, successor);
+      }
+      @Override
+      protected boolean newControlFlowExceptionEdge(int insn, int successor) {
+        hoisting.addEdge(insn, successor);
+        return true;
+      }
+    };
+    Frame<SourceValue>[] frames = analyzer.analyze(owner, method);
+
+    // the candidates are the local variables that store an allocation
+    HashMap<AbstractInsnNode, Allocation> allocations = new HashMap<>();   // store -> allocation
+    HashMap<Integer, String> types = new HashMap<>();    // local variable -> value capable class
+    HashSet<Integer> conflicts = new HashSet<>();
+    for(AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+      Allocation allocation = allocation(insn, uses);
+      if (allocation == null) {
+        continue;
+      }
+      VarInsnNode store = (VarInsnNode)ValueTypifier.nextInsn(allocation.constructor);
+      allocations.put(store, allocation);
+      if (!types.computeIfAbsent(store.var, __ -> allocation.newInsn.desc).equals(allocation.newInsn.desc)) {
+        conflicts.add(store.var);
+      }
+    }
+    types.keySet().removeAll(conflicts);
+
+    // remove the local variables that store something else or that allocate more than they save
+    boolean changed = true;
+    while(changed && !types.isEmpty()) {
+      changed = false;
+      HashMap<Integer, int[]> costs = new HashMap<>();   // local variable -> [removed allocations, added allocations]
+      for(AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+        int index = instructions.indexOf(insn);
+        if (isStore(insn, types.keySet())) {
+          int var = ((VarInsnNode)insn).var;
+          AbstractInsnNode previous = ValueTypifier.previousInsn(insn);
+          if (allocations.containsKey(insn)) {
+            costs.computeIfAbsent(var, __ -> new int[2])[0] += hoisting.weight(index);
+          } else if (previous == null || !isLoad(previous, types.keySet()) || scalarUse(previous, uses, types) != insn) {
+            conflicts.add(var);
+          }
+          continue;
+        }
+        if (!isLoad(insn, types.keySet()) || frames[index] == null) {
+          continue;
+        }
+        int var = ((VarInsnNode)insn).var;
+        Set<AbstractInsnNode> stores = uses.operands.get(insn).get(0).insns;
+        if (stores.isEmpty() || !stores.stream().allMatch(store -> store.getOpcode() == ASTORE)) {
+          conflicts.add(var);  // a parameter or a value stored by an uninitialized path
+          continue;
+        }
+        if (scalarUse(insn, uses, types) == null) {
+          costs.computeIfAbsent(var, __ -> new int[2])[1] += hoisting.weight(index);
+        }
+      }
+      costs.forEach((var, cost) -> {
+        if (cost[1] != 0 && cost[1] >= cost[0]) {
+          conflicts.add(var);
+        }
+      });
+      changed = types.keySet().removeAll(conflicts);
+    }
+
+    // the objects are allocated again with the first constructor called by the method
+    HashMap<String, Allocation> materializers = new HashMap<>();
+    for(AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+      Allocation allocation = allocations.get(insn);
+      if (allocation != null && types.containsKey(((VarInsnNode)insn).var)) {
+        materializers.putIfAbsent(allocation.newInsn.desc, allocation);
+      }
+    }
+    types.values().retainAll(materializers.keySet());  // only copies, dead code
+    if (types.isEmpty()) {
+      return;
+    }
+
+    // the loads and their scalar use, null if the object is allocated
+    LinkedHashMap<AbstractInsnNode, AbstractInsnNode> loads = new LinkedHashMap<>();
+    for(AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+      if (isLoad(insn, types.keySet()) && frames[instructions.indexOf(insn)] != null) {
+        loads.put(insn, scalarUse(insn, uses, types));
+      }
+    }
+    rewrite(method, allocations, materializers, loads, types);
+  }
+
+  private void rewrite(MethodNode method, Map<AbstractInsnNode, Allocation> allocations, Map<String, Allocation> materializers,
+                       Map<AbstractInsnNode, AbstractInsnNode> loads, Map<Integer, String> types) {
+    InsnList instructions = method.instructions;
+
+    // allocate the field locals after the existing local variables
+    HashMap<Integer, Map<String, Integer>> fieldLocals = new HashMap<>();
+    int maxLocals = method.maxLocals;
+    for(int var: new TreeMap<>(types).keySet()) {
+      LinkedHashMap<String, Integer> slots = new LinkedHashMap<>();
+      for(Map.Entry<String, Type> field: layout(types.get(var)).fields.entrySet()) {
+        slots.put(field.getKey(), maxLocals);
+        maxLocals += field.getValue().getSize();
+      }
+      fieldLocals.put(var, slots);
+    }
+
+    allocations.forEach((store, allocation) -> {
+      int var = ((VarInsnNode)store).var;
+      if (!types.containsKey(var)) {
+        return;
+      }
+      instructions.remove(allocation.newInsn);
+      instructions.remove(allocation.dup);
+      instructions.insertBefore(store, storeArguments(allocation, fieldLocals.get(var), layout(types.get(var))));
+      instructions.remove(allocation.constructor);
+      instructions.remove(store);
+    });
+
+    loads.forEach((load, use) -> {
+      int var = ((VarInsnNode)load).var;
+      Map<String, Integer> slots = fieldLocals.get(var);
+      Layout layout = layout(types.get(var));
+      InsnList list = new InsnList();
+      if (use == null) {
+        materialize(list, materializers.get(types.get(var)), slots, layout);
+        instructions.insertBefore(load, list);
+        instructions.remove(load);
+        return;
+      }
+      if (use.getOpcode() == GETFIELD) {
+        FieldInsnNode field = (FieldInsnNode)use;
+        String fieldKey = field.name + field.desc;
+        list.add(new VarInsnNode(layout.fields.get(fieldKey).getOpcode(ILOAD), slots.get(fieldKey)));
+      } else {  // a copy
+        Map<String, Integer> targetSlots = fieldLocals.get(((VarInsnNode)use).var);
+        layout.fields.forEach((fieldKey, type) -> {
+          list.add(new VarInsnNode(type.getOpcode(ILOAD), slots.get(fieldKey)));
+          list.add(new VarInsnNode(type.getOpcode(ISTORE), targetSlots.get(fieldKey)));
+        });
+      }
+      instructions.insertBefore(use, list);
+      instructions.remove(use);
+      instructions.remove(load);
+    });
+
+    // the debug info of a scalarized local variable is not valid anymore
+    if (method.localVariables != null) {
+      method.localVariables.removeIf(local -> types.containsKey(local.index) &&
+          local.desc.equals(Type.getObjectType(types.get(local.index)).getDescriptor()));
+    }
+    method.maxLocals = maxLocals;
+  }
+
+  // the arguments are on the stack, the last one on top
+  private static InsnList storeArguments(Allocation allocation, Map<String, Integer> slots, Layout layout) {
+    InsnList list = new InsnList();
+    List<List<String>> parameterFields = allocation.parameterFields;
+    for(int i = parameterFields.size(); --i >= 0;) {
+      String fieldKey = parameterFields.get(i).get(0);
+      list.add(new VarInsnNode(layout.fields.get(fieldKey).getOpcode(ISTORE), slots.get(fieldKey)));
+    }
+    for(List<String> fields: parameterFields) {
+      for(String fieldKey: fields.subList(1, fields.size())) {
+        Type type = layout.fields.get(fieldKey);
+        list.add(new VarInsnNode(type.getOpcode(ILOAD), slots.get(fields.get(0))));
+        list.add(new VarInsnNode(type.getOpcode(ISTORE), slots.get(fieldKey)));
+      }
+    }
+    return list;
+  }
+
+  // new C(field locals...)
+  private static void materialize(InsnList list, Allocation materializer, Map<String, Integer> slots, Layout layout) {
+    MethodInsnNode constructor = materializer.constructor;
+    list.add(new TypeInsnNode(NEW, constructor.owner));
+    list.add(new InsnNode(DUP));
+    for(List<String> fields: materializer.parameterFields) {
+      String fieldKey = fields.get(0);
+      list.add(new VarInsnNode(layout.fields.get(fieldKey).getOpcode(ILOAD), slots.get(fieldKey)));
+    }
+    list.add(new MethodInsnNode(INVOKESPECIAL, constructor.owner, constructor.name, constructor.desc, constructor.itf));
+  }
+}
@@ -0,0 +1,805 @@
+package fr.umlv.valuetypify;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+
+/**
+ * The segmented arrays of value types, an opt-in representation of the arrays of a value capable class
+ * that do not need a contiguous allocation.
+ *
+ * An array of value types is flattened so a big array may not be allocated even if the heap has enough free memory.
+ * If the arrays of a value capable class (by example Color[]) are stored in the private fields of a class
+ * and never leave the class (only the private methods take or return them), they are replaced by arrays of chunks
+ * of 64K value types ({@code [[QColor$Value;}), all the chunks are full except the last one.
+ * The index arithmetic of a load or a store is inlined, the allocation, the length, System.arraycopy
+ * and Arrays.copyOf, copyOfRange and fill are redirected to private static synthetic helpers
+ * (named {@code method$$vsegments}) generated in the class, a resize copies the chunks one by one.
+ */
+final class SegmentedArrays {
+  static final int SHIFT = 16;
+  static final int CHUNK = 1 << SHIFT;
+  static final int MASK = CHUNK - 1;
+
+  // the descriptors of the helpers on an Object[], see ArrayIntrinsics.helperDescriptor()
+  static final String NEW_ARRAY_DESC = "(I)[Ljava/lang/Object;";
+  static final String LENGTH_DESC = "([Ljava/lang/Object;)I";
+  static final String ARRAYCOPY_DESC = "([Ljava/lang/Object;I[Ljava/lang/Object;II)V";
+
+  private final String owner;
+  private final Set<String> elementTypes;   // internal names of the value capable classes
+  private final LinkedHashMap<String, Type> requests = new LinkedHashMap<>();   // name + desc -> element type
+
+  private SegmentedArrays(String owner, Set<String> elementTypes) {
+    this.owner = owner;
+    this.elementTypes = elementTypes;
+  }
+
+  /**
+   * Returns true if the array type is segmented.
+   */
+  boolean isSegmented(Type type) {
+    return type.getSort() == Type.ARRAY && type.getDimensions() == 1 &&
+        type.getElementType().getSort() == Type.OBJECT && elementTypes.contains(type.getElementType().getInternalName());
+  }
+
+  static String asSegmentedDescriptor(Type elementType) {
+    return ValueTypifier.asArrayOfValueInternalName(elementType, 2);
+  }
+
+  static String helperName(String name) {
+    return name + "$$vsegments";
+  }
+
+  /**
+   * Request the helper of an operation on the segmented arrays of a value capable class and returns its descriptor,
+   * desc is the descriptor of the operation on an Object[], the Object being the value type.
+   */
+  String request(String name, String desc, Type elementType) {
+    String helperDesc = helperDescriptor(desc, elementType);
+    if (requests.putIfAbsent(helperName(name) + helperDesc, elementType) == null) {
+      // the helpers used by the helper
+      switch(name) {
+      case "copyOf":
+      case "copyOfRange":
+        request("newArray", NEW_ARRAY_DESC, elementType);
+        request("arraycopy", ARRAYCOPY_DESC, elementType);
+        break;
+      case "arraycopy":
+      case "fill":
+        request("length", LENGTH_DESC, elementType);
+        break;
+      default:
+      }
+    }
+    return helperDesc;
+  }
+
+  private static String helperDescriptor(String desc, Type elementType) {
+    return ArrayIntrinsics.helperDescriptor(desc, asSegmentedDescriptor(elementType), ValueTypifier.asValueDescriptor(elementType));
+  }
+
+  // array index -> chunk index
+  private static void chunkAndIndex(MethodVisitor mv) {
+    mv.visitInsn(DUP_X1);
+    mv.visitIntInsn(BIPUSH, SHIFT);
+    mv.visitInsn(IUSHR);
+    mv.visitInsn(AALOAD);
+    mv.visitInsn(SWAP);
+    mv.visitLdcInsn(MASK);
+    mv.visitInsn(IAND);
+  }
+
+  /**
+   * Emit the load of an element, array index -> value.
+   */
+  static void load(MethodVisitor mv) {
+    chunkAndIndex(mv);
+    mv.visitInsn(VALOAD);
+  }
+
+  /**
+   * Emit the store of an element, array index value -> , the value is kept in the local variable temporary
+   * while the chunk is loaded.
+   */
+  static void store(MethodVisitor mv, int temporary) {
+    mv.visitVarInsn(VSTORE, temporary);
+    chunkAndIndex(mv);
+    mv.visitVarInsn(VLOAD, temporary);
+    mv.visitInsn(VASTORE);
+  }
+
+  /**
+   * Returns the segmented arrays of a class or null if no array can be segmented,
+   * the arrays of a value capable class are segmented if they are owned by the class (see {@link #ownedArrays}).
+   */
+  static SegmentedArrays of(ClassReader reader, Predicate<Type> isVCC) {
+    Set<String> elementTypes = ownedArrays(reader, isVCC);
+    return elementTypes.isEmpty()? null: new SegmentedArrays(reader.getClassName(), elementTypes);
+  }
+
+  /**
+   * Returns the value capable classes (internal names) whose arrays are owned by a class.
+   * The arrays of a value capable class are owned if there is a private field of that array type
+   * and if no array of that type is seen outside of the class, i.e. no array of that type is used
+   * by a non private field or method, passed to a method of another class (except System.arraycopy and
+   * the intrinsics of Arrays), stored as an object, merged with another type or casted from an object.
+   * The arrays of arrays are not supported. The constructors are not analyzed by the transformer,
+   * so they can only allocate the arrays and store them in the fields.
+   */
+  static Set<String> ownedArrays(ClassReader reader, Predicate<Type> isVCC) {
+    String owner = reader.getClassName();
+    if ((reader.getAccess() & ACC_INTERFACE) != 0 || isVCC.test(Type.getObjectType(owner)) ||
+        reader.readUnsignedShort(6) >= 55) {  // major version of Java 11, the nestmates
+      return Collections.emptySet();
+    }
+    HashSet<String> candidates = new HashSet<>();
+    reader.accept(new ClassVisitor(ASM6) {
+      @Override
+      public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+        Type type = Type.getType(desc);
+        if ((access & ACC_PRIVATE) != 0 && type.getSort() == Type.ARRAY && type.getDimensions() == 1 && isVCC.test(type.getElementType())) {
+          candidates.add(type.getElementType().getInternalName());
+        }
+        return null;
+      }
+    }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    if (candidates.isEmpty()) {
+      return candidates;
+    }
+
+    ClassNode classNode = new ClassNode(ASM6);
+    reader.accept(classNode, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    Escapes escapes = new Escapes(owner, candidates);
+    for(FieldNode field: classNode.fields) {
+      escapes.checkDesc(field.desc, (field.access & ACC_PRIVATE) != 0);
+      if ((field.access & ACC_PRIVATE) != 0) {
+        escapes.privateMembers.add(field.name + field.desc);
+      }
+    }
+    for(MethodNode method: classNode.methods) {
+      escapes.checkMethodDesc(method.desc, (method.access & ACC_PRIVATE) != 0);
+      if ((method.access & ACC_PRIVATE) != 0) {
+        escapes.privateMembers.add(method.name + method.desc);
+      }
+    }
+    for(MethodNode method: classNode.methods) {
+      if (escapes.blocked.containsAll(candidates)) {
+        return Collections.emptySet();
+      }
+      escapes.checkInstructions(method);
+      if (method.instructions.size() == 0) {
+        continue;
+      }
+      escapes.constructor = method.name.equals("<init>");
+      try {
+        new Analyzer<BasicValue>(escapes).analyze(owner, method);
+      } catch (AnalyzerException e) {
+        throw new UncheckedIOException(new IOException(e));
+      }
+    }
+    candidates.removeAll(escapes.blocked);
+    return candidates;
+  }
+
+  /**
+   * Find the arrays that escape, the types are precise so an array of a candidate is a value of that type.
+   */
+  private static final class Escapes extends BasicInterpreter {
+    private final String owner;
+    private final Set<String> candidates;
+    final HashSet<String> privateMembers = new HashSet<>();   // name + desc
+    final HashSet<String> blocked = new HashSet<>();
+    boolean constructor;
+
+    Escapes(String owner, Set<String> candidates) {
+      super(ASM6);
+      this.owner = owner;
+      this.candidates = candidates;
+    }
+
+    // returns the candidate if the type is an array of a candidate, block the arrays of arrays
+    private String candidate(Type type) {
+      if (type == null || type.getSort() != Type.ARRAY || type.getElementType().getSort() != Type.OBJECT) {
+        return null;
+      }
+      String elementName = type.getElementType().getInternalName();
+      if (!candidates.contains(elementName)) {
+        return null;
+      }
+      if (type.getDimensions() != 1) {
+        blocked.add(elementName);
+        return null;
+      }
+      return elementName;
+    }
+
+    private void escape(BasicValue value) {
+      String candidate = candidate(value.getType());
+      if (candidate != null) {
+        blocked.add(candidate);
+      }
+    }
+
+    void checkDesc(String desc, boolean allowed) {
+      String candidate = candidate(Type.getType(desc));
+      if (candidate != null && !allowed) {
+        blocked.add(candidate);
+      }
+    }
+
+    void checkMethodDesc(String desc, boolean allowed) {
+      for(Type type: Type.getArgumentTypes(desc)) {
+        checkDesc(type.getDescriptor(), allowed);
+      }
+      checkDesc(Type.getReturnType(desc).getDescriptor(), allowed);
+    }
+
+    // the members of the other classes and the constants can not see the segmented arrays
+    void checkInstructions(MethodNode method) {
+      for(AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+        if (insn instanceof FieldInsnNode) {
+          FieldInsnNode fieldInsn = (FieldInsnNode)insn;
+          checkDesc(fieldInsn.desc, fieldInsn.owner.equals(owner) && privateMembers.contains(fieldInsn.name + fieldInsn.desc));
+        } else if (insn instanceof MethodInsnNode) {
+          MethodInsnNode methodInsn = (MethodInsnNode)insn;
+          checkMethodDesc(methodInsn.desc, methodInsn.owner.equals(owner) && privateMembers.contains(methodInsn.name + methodInsn.desc));
+        } else if (insn instanceof InvokeDynamicInsnNode) {
+          InvokeDynamicInsnNode indyInsn = (InvokeDynamicInsnNode)insn;
+          checkMethodDesc(indyInsn.desc, false);
+          for(Object bsmArg: indyInsn.bsmArgs) {
+            checkConstant(bsmArg);
+          }
+        } else if (insn instanceof LdcInsnNode) {
+          checkConstant(((LdcInsnNode)insn).cst);
+        } else if (insn instanceof TypeInsnNode) {
+          TypeInsnNode typeInsn = (TypeInsnNode)insn;
+          if (typeInsn.getOpcode() == ANEWARRAY) {
+            candidate(Type.getType("[" + Type.getObjectType(typeInsn.desc).getDescriptor()));  // block the arrays of arrays
+          } else if (typeInsn.getOpcode() != CHECKCAST) {  // a checkcast is checked by the analysis
+            checkDesc(Type.getObjectType(typeInsn.desc).getDescriptor(), false);
+          }
+        } else if (insn instanceof MultiANewArrayInsnNode) {
+          checkDesc(((MultiANewArrayInsnNode)insn).desc, false);
+        }
+      }
+    }
+
+    private void checkConstant(Object constant) {
+      if (constant instanceof Type) {
+        Type type = (Type)constant;
+        if (type.getSort() == Type.METHOD) {
+          checkMethodDesc(type.getDescriptor(), false);
+        } else {
+          checkDesc(type.getDescriptor(), false);
+        }
+      } else if (constant instanceof Handle) {
+        String desc = ((Handle)constant).getDesc();
+        if (desc.charAt(0) == '(') {
+          checkMethodDesc(desc, false);
+        } else {
+          checkDesc(desc, false);
+        }
+      }
+    }
+
+    @Override
+    public BasicValue newValue(Type type) {
+      BasicValue value = super.newValue(type);
+      // use precise type for objects and arrays
+      return (value == BasicValue.REFERENCE_VALUE)? new BasicValue(type): value;
+    }
+
+    @Override
+    public BasicValue unaryOperation(AbstractInsnNode insn, BasicValue value) throws AnalyzerException {
+      switch(insn.getOpcode()) {
+      case ARRAYLENGTH:
+        if (constructor) {
+          escape(value);
+        }
+        break;
+      case IFNULL:
+      case IFNONNULL:
+      case ARETURN:   // see returnOperation()
+        break;
+      case PUTSTATIC:
+        checkStore(((FieldInsnNode)insn).desc, value);
+        break;
+      case CHECKCAST: {
+        Type type = Type.getObjectType(((TypeInsnNode)insn).desc);
+        if (!type.equals(value.getType())) {  // a checkcast that always succeeds is allowed
+          escape(value);
+          String candidate = candidate(type);
+          if (candidate != null) {  // an array that comes from an object
+            blocked.add(candidate);
+          }
+        }
+        break;
+      }
+      default:
+        escape(value);
+      }
+      return super.unaryOperation(insn, value);
+    }
+
+    private void checkStore(String fieldDesc, BasicValue value) {
+      if (!Type.getType(fieldDesc).equals(value.getType())) {
+        escape(value);
+      }
+    }
+
+    @Override
+    public BasicValue binaryOperation(AbstractInsnNode insn, BasicValue value1, BasicValue value2) throws AnalyzerException {
+      switch(insn.getOpcode()) {
+      case AALOAD:
+        if (constructor) {
+          escape(value1);
+        }
+        break;
+      case PUTFIELD:
+        checkStore(((FieldInsnNode)insn).desc, value2);
+        break;
+      case IF_ACMPEQ:
+      case IF_ACMPNE:
+        break;
+      default:
+        escape(value1);
+        escape(value2);
+      }
+      return super.binaryOperation(insn, value1, value2);
+    }
+
+    @Override
+    public BasicValue ternaryOperation(AbstractInsnNode insn, BasicValue value1, BasicValue value2, BasicValue value3) throws AnalyzerException {
+      if (constructor) {
+        escape(value1);
+      }
+      escape(value3);  // stored in an array of objects
+      return super.ternaryOperation(insn, value1, value2, value3);
+    }
+
+    @Override
+    public BasicValue naryOperation(AbstractInsnNode insn, List<? extends BasicValue> values) throws AnalyzerException {
+      if (insn instanceof MethodInsnNode) {
+        MethodInsnNode methodInsn = (MethodInsnNode)insn;
+        if (isArraycopy(methodInsn)) {
+          BasicValue src = values.get(0);
+          BasicValue dest = values.get(2);
+          if (constructor || !src.getType().equals(dest.getType())) {
+            escape(src);
+            escape(dest);
+          }
+          return super.naryOperation(insn, values);
+        }
+        if (ArrayIntrinsics.helperName(insn) != null && candidate(values.get(0).getType()) != null && !constructor) {
+          escape(values.get(values.size() - 1));  // the value of fill
+          super.naryOperation(insn, values);
+          // Arrays.copyOf and copyOfRange return the same type
+          return methodInsn.name.equals("fill")? null: values.get(0);
+        }
+        if (methodInsn.owner.equals(owner) && privateMembers.contains(methodInsn.name + methodInsn.desc)) {
+          Type[] parameterTypes = Type.getArgumentTypes(methodInsn.desc);
+          int offset = values.size() - parameterTypes.length;   // skip the receiver
+          for(int i = 0; i < values.size(); i++) {
+            if (i < offset || !parameterTypes[i - offset].equals(values.get(i).getType())) {
+              escape(values.get(i));
+            }
+          }
+          return super.naryOperation(insn, values);
+        }
+      }
+      values.forEach(this::escape);
+      return super.naryOperation(insn, values);
+    }
+
+    @Override
+    public void returnOperation(AbstractInsnNode insn, BasicValue value, BasicValue expected) throws AnalyzerException {
+      if (!value.getType().equals(expected.getType())) {
+        escape(value);
+      }
+    }
+
+    @Override
+    public BasicValue merge(BasicValue v, BasicValue w) {
+      BasicValue value = ValueTypifier.mergeNull(v, w);
+      // a value merged with a value of another type, the merged value is an object
+      if (value == BasicValue.UNINITIALIZED_VALUE && ValueTypifier.isReference(v) && ValueTypifier.isReference(w)) {
+        escape(v);
+        escape(w);
+      }
+      return value;
+    }
+  }
+
+  static boolean isArraycopy(AbstractInsnNode insn) {
+    if (insn.getOpcode() != INVOKESTATIC) {
+      return false;
+    }
+    MethodInsnNode methodInsn = (MethodInsnNode)insn;
+    return methodInsn.owner.equals("java/lang/System") && methodInsn.name.equals("arraycopy");
+  }
+
+  /**
+   * Generate the requested helpers in the class.
+   */
+  void generate(ClassVisitor cv) {
+    requests.forEach((nameAndDesc, elementType) -> {
+      int index = nameAndDesc.indexOf('(');
+      String name = nameAndDesc.substring(0, index);
+      String desc = nameAndDesc.substring(index);
+      MethodVisitor mv = cv.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, name, desc, null, null);
+      mv.visitCode();
+      switch(name) {
+      case "newArray$$vsegments":
+        newArray(mv, elementType);
+        break;
+      case "length$$vsegments":
+        length(mv);
+        break;
+      case "arraycopy$$vsegments":
+        arraycopy(mv, elementType);
+        break;
+      case "copyOf$$vsegments":
+        copyOf(mv, elementType);
+        break;
+      case "copyOfRange$$vsegments":
+        copyOfRange(mv, elementType);
+        break;
+      default:
+        if (Type.getArgumentTypes(desc).length == 2) {
+          fill(mv, elementType);
+        } else {
+          fillRange(mv, elementType);
+        }
+      }
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+    });
+  }
+
+  private void invokeHelper(MethodVisitor mv, String name, String desc, Type elementType) {
+    mv.visitMethodInsn(INVOKESTATIC, owner, helperName(name), helperDescriptor(desc, elementType), false);
+  }
+
+  private static void min(MethodVisitor mv) {
+    mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "min", "(II)I", false);
+  }
+
+  // array[index >>> SHIFT], index & MASK
+  private static void chunkAndIndex(MethodVisitor mv, int array, int index) {
+    mv.visitVarInsn(ALOAD, array);
+    mv.visitVarInsn(ILOAD, index);
+    mv.visitIntInsn(BIPUSH, SHIFT);
+    mv.visitInsn(IUSHR);
+    mv.visitInsn(AALOAD);
+    mv.visitVarInsn(ILOAD, index);
+    mv.visitLdcInsn(MASK);
+    mv.visitInsn(IAND);
+  }
+
+  // newArray(length), the chunks are full except the last one
+  private static void newArray(MethodVisitor mv, Type elementType) {
+    Label ok = new Label();
+    mv.visitVarInsn(ILOAD, 0);
+    mv.visitJumpInsn(IFGE, ok);
+    ArrayIntrinsics.throwNew(mv, "java/lang/NegativeArraySizeException", "", 0, "", -1, "");
+    mv.visitLabel(ok);
+    // count = (length >>> SHIFT) + (((length & MASK) + MASK) >>> SHIFT), no overflow
+    mv.visitVarInsn(ILOAD, 0);
+    mv.visitIntInsn(BIPUSH, SHIFT);
+    mv.visitInsn(IUSHR);
+    mv.visitVarInsn(ILOAD, 0);
+    mv.visitLdcInsn(MASK);
+    mv.visitInsn(IAND);
+    mv.visitLdcInsn(MASK);
+    mv.visitInsn(IADD);
+    mv.visitIntInsn(BIPUSH, SHIFT);
+    mv.visitInsn(IUSHR);
+    mv.visitInsn(IADD);
+    mv.visitVarInsn(ISTORE, 1);
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitTypeInsn(ANEWARRAY, ValueTypifier.asArrayOfValueInternalName(elementType, 1));
+    mv.visitVarInsn(ASTORE, 2);
+    // for(i = 0; i < count; i++) { chunks[i] = new Q[Math.min(length - (i << SHIFT), CHUNK)]; }
+    mv.visitInsn(ICONST_0);
+    mv.visitVarInsn(ISTORE, 3);
+    Label loop = new Label();
+    Label exit = new Label();
+    mv.visitLabel(loop);
+    mv.visitVarInsn(ILOAD, 3);
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitJumpInsn(IF_ICMPGE, exit);
+    mv.visitVarInsn(ALOAD, 2);
+    mv.visitVarInsn(ILOAD, 3);
+    mv.visitVarInsn(ILOAD, 0);
+    mv.visitVarInsn(ILOAD, 3);
+    mv.visitIntInsn(BIPUSH, SHIFT);
+    mv.visitInsn(ISHL);
+    mv.visitInsn(ISUB);
+    mv.visitLdcInsn(CHUNK);
+    min(mv);
+    mv.visitTypeInsn(ANEWARRAY, ValueTypifier.asValueInternalName(elementType));
+    mv.visitInsn(AASTORE);
+    mv.visitIincInsn(3, 1);
+    mv.visitJumpInsn(GOTO, loop);
+    mv.visitLabel(exit);
+    mv.visitVarInsn(ALOAD, 2);
+    mv.visitInsn(ARETURN);
+  }
+
+  // length(array) = (count - 1) * CHUNK + the length of the last chunk
+  private static void length(MethodVisitor mv) {
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitInsn(ARRAYLENGTH);
+    mv.visitVarInsn(ISTORE, 1);
+    Label notEmpty = new Label();
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitJumpInsn(IFNE, notEmpty);
+    mv.visitInsn(ICONST_0);
+    mv.visitInsn(IRETURN);
+    mv.visitLabel(notEmpty);
+    mv.visitIincInsn(1, -1);
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitIntInsn(BIPUSH, SHIFT);
+    mv.visitInsn(ISHL);
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitInsn(AALOAD);
+    mv.visitInsn(ARRAYLENGTH);
+    mv.visitInsn(IADD);
+    mv.visitInsn(IRETURN);
+  }
+
+  // arraycopy(src, srcPos, dest, destPos, length), the chunks are copied piece by piece with System.arraycopy,
+  // backward if the source and the destination overlap
+  private void arraycopy(MethodVisitor mv, Type elementType) {
+    mv.visitVarInsn(ALOAD, 0);
+    invokeHelper(mv, "length", LENGTH_DESC, elementType);
+    mv.visitVarInsn(ISTORE, 5);
+    mv.visitVarInsn(ALOAD, 2);
+    invokeHelper(mv, "length", LENGTH_DESC, elementType);
+    mv.visitVarInsn(ISTORE, 6);
+    Label fail = new Label();
+    Label ok = new Label();
+    mv.visitVarInsn(ILOAD, 4);
+    mv.visitJumpInsn(IFLT, fail);
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitJumpInsn(IFLT, fail);
+    mv.visitVarInsn(ILOAD, 3);
+    mv.visitJumpInsn(IFLT, fail);
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitVarInsn(ILOAD, 5);
+    mv.visitVarInsn(ILOAD, 4);
+    mv.visitInsn(ISUB);
+    mv.visitJumpInsn(IF_ICMPGT, fail);
+    mv.visitVarInsn(ILOAD, 3);
+    mv.visitVarInsn(ILOAD, 6);
+    mv.visitVarInsn(ILOAD, 4);
+    mv.visitInsn(ISUB);
+    mv.visitJumpInsn(IF_ICMPGT, fail);
+    mv.visitJumpInsn(GOTO, ok);
+    mv.visitLabel(fail);
+    ArrayIntrinsics.throwNew(mv, "java/lang/ArrayIndexOutOfBoundsException", "arraycopy: srcPos ", 1, ", length ", 4, "");
+    mv.visitLabel(ok);
+
+    Label forward = new Label();
+    Label backward = new Label();
+    Label end = new Label();
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitVarInsn(ALOAD, 2);
+    mv.visitJumpInsn(IF_ACMPNE, forward);
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitVarInsn(ILOAD, 3);
+    mv.visitJumpInsn(IF_ICMPGE, forward);
+
+    // while(length > 0) { s = srcPos + length - 1; d = destPos + length - 1; n = min((s & MASK) + 1, (d & MASK) + 1, length); ... }
+    mv.visitLabel(backward);
+    mv.visitVarInsn(ILOAD, 4);
+    mv.visitJumpInsn(IFLE, end);
+    lastIndex(mv, 1, 5);
+    lastIndex(mv, 3, 6);
+    mv.visitVarInsn(ILOAD, 5);
+    mv.visitLdcInsn(MASK);
+    mv.visitInsn(IAND);
+    mv.visitInsn(ICONST_1);
+    mv.visitInsn(IADD);
+    mv.visitVarInsn(ILOAD, 6);
+    mv.visitLdcInsn(MASK);
+    mv.visitInsn(IAND);
+    mv.visitInsn(ICONST_1);
+    mv.visitInsn(IADD);
+    min(mv);
+    mv.visitVarInsn(ILOAD, 4);
+    min(mv);
+    mv.visitVarInsn(ISTORE, 7);
+    // System.arraycopy(src[s >>> SHIFT], (s & MASK) - n + 1, dest[d >>> SHIFT], (d & MASK) - n + 1, n)
+    chunkAndIndex(mv, 0, 5);
+    firstOfPiece(mv);
+    chunkAndIndex(mv, 2, 6);
+    firstOfPiece(mv);
+    mv.visitVarInsn(ILOAD, 7);
+    arraycopyChunks(mv);
+    decrement(mv, 4);
+    mv.visitJumpInsn(GOTO, backward);
+
+    // while(length > 0) { n = min(CHUNK - (srcPos & MASK), CHUNK - (destPos & MASK), length); ... }
+    mv.visitLabel(forward);
+    mv.visitVarInsn(ILOAD, 4);
+    mv.visitJumpInsn(IFLE, end);
+    mv.visitLdcInsn(CHUNK);
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitLdcInsn(MASK);
+    mv.visitInsn(IAND);
+    mv.visitInsn(ISUB);
+    mv.visitLdcInsn(CHUNK);
+    mv.visitVarInsn(ILOAD, 3);
+    mv.visitLdcInsn(MASK);
+    mv.visitInsn(IAND);
+    mv.visitInsn(ISUB);
+    min(mv);
+    mv.visitVarInsn(ILOAD, 4);
+    min(mv);
+    mv.visitVarInsn(ISTORE, 7);
+    // System.arraycopy(src[srcPos >>> SHIFT], srcPos & MASK, dest[destPos >>> SHIFT], destPos & MASK, n)
+    chunkAndIndex(mv, 0, 1);
+    chunkAndIndex(mv, 2, 3);
+    mv.visitVarInsn(ILOAD, 7);
+    arraycopyChunks(mv);
+    increment(mv, 1);
+    increment(mv, 3);
+    decrement(mv, 4);
+    mv.visitJumpInsn(GOTO, forward);
+
+    mv.visitLabel(end);
+    mv.visitInsn(RETURN);
+  }
+
+  // last = pos + length - 1, length is in the local variable 4
+  private static void lastIndex(MethodVisitor mv, int pos, int last) {
+    mv.visitVarInsn(ILOAD, pos);
+    mv.visitVarInsn(ILOAD, 4);
+    mv.visitInsn(IADD);
+    mv.visitInsn(ICONST_1);
+    mv.visitInsn(ISUB);
+    mv.visitVarInsn(ISTORE, last);
+  }
+
+  // index -> index - n + 1, n is in the local variable 7
+  private static void firstOfPiece(MethodVisitor mv) {
+    mv.visitVarInsn(ILOAD, 7);
+    mv.visitInsn(ISUB);
+    mv.visitInsn(ICONST_1);
+    mv.visitInsn(IADD);
+  }
+
+  // var += n, n is in the local variable 7
+  private static void increment(MethodVisitor mv, int var) {
+    mv.visitVarInsn(ILOAD, var);
+    mv.visitVarInsn(ILOAD, 7);
+    mv.visitInsn(IADD);
+    mv.visitVarInsn(ISTORE, var);
+  }
+
+  // var -= n, n is in the local variable 7
+  private static void decrement(MethodVisitor mv, int var) {
+    mv.visitVarInsn(ILOAD, var);
+    mv.visitVarInsn(ILOAD, 7);
+    mv.visitInsn(ISUB);
+    mv.visitVarInsn(ISTORE, var);
+  }
+
+  private static void arraycopyChunks(MethodVisitor mv) {
+    mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "arraycopy", "(Ljava/lang/Object;ILjava/lang/Object;II)V", false);
+  }
+
+  // copyOf(array, newLength)
+  private void copyOf(MethodVisitor mv, Type elementType) {
+    mv.visitVarInsn(ILOAD, 1);
+    invokeHelper(mv, "newArray", NEW_ARRAY_DESC, elementType);
+    mv.visitVarInsn(ASTORE, 2);
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitInsn(ICONST_0);
+    mv.visitVarInsn(ALOAD, 2);
+    mv.visitInsn(ICONST_0);
+    mv.visitVarInsn(ALOAD, 0);
+    invokeHelper(mv, "length", LENGTH_DESC, elementType);
+    mv.visitVarInsn(ILOAD, 1);
+    min(mv);
+    invokeHelper(mv, "arraycopy", ARRAYCOPY_DESC, elementType);
+    mv.visitVarInsn(ALOAD, 2);
+    mv.visitInsn(ARETURN);
+  }
+
+  // copyOfRange(array, from, to)
+  private void copyOfRange(MethodVisitor mv, Type elementType) {
+    mv.visitVarInsn(ILOAD, 2);
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitInsn(ISUB);
+    mv.visitVarInsn(ISTORE, 3);
+    Label ok = new Label();
+    mv.visitVarInsn(ILOAD, 3);
+    mv.visitJumpInsn(IFGE, ok);
+    ArrayIntrinsics.throwNew(mv, "java/lang/IllegalArgumentException", "", 1, " > ", 2, "");
+    mv.visitLabel(ok);
+    mv.visitVarInsn(ILOAD, 3);
+    invokeHelper(mv, "newArray", NEW_ARRAY_DESC, elementType);
+    mv.visitVarInsn(ASTORE, 4);
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitVarInsn(ALOAD, 4);
+    mv.visitInsn(ICONST_0);
+    mv.visitVarInsn(ALOAD, 0);
+    invokeHelper(mv, "length", LENGTH_DESC, elementType);
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitInsn(ISUB);
+    mv.visitVarInsn(ILOAD, 3);
+    min(mv);
+    invokeHelper(mv, "arraycopy", ARRAYCOPY_DESC, elementType);
+    mv.visitVarInsn(ALOAD, 4);
+    mv.visitInsn(ARETURN);
+  }
+
+  // fill(array, value)
+  private void fill(MethodVisitor mv, Type elementType) {
+    mv.visitInsn(ICONST_0);
+    mv.visitVarInsn(ISTORE, 2);
+    mv.visitVarInsn(ALOAD, 0);
+    invokeHelper(mv, "length", LENGTH_DESC, elementType);
+    mv.visitVarInsn(ISTORE, 3);
+    fillLoop(mv, 0, 1, 2, 3);
+  }
+
+  // fill(array, from, to, value), same checks as Arrays.rangeCheck
+  private void fillRange(MethodVisitor mv, Type elementType) {
+    ArrayIntrinsics.rangeCheck(mv, 0, 1, 2, visitor -> invokeHelper(visitor, "length", LENGTH_DESC, elementType));
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitVarInsn(ISTORE, 4);
+    fillLoop(mv, 0, 3, 4, 2);
+  }
+
+  // for(; i < end; i++) { array[i >>> SHIFT][i & MASK] = value; } return;
+  private static void fillLoop(MethodVisitor mv, int array, int value, int i, int end) {
+    Label loop = new Label();
+    Label exit = new Label();
+    mv.visitLabel(loop);
+    mv.visitVarInsn(ILOAD, i);
+    mv.visitVarInsn(ILOAD, end);
+    mv.visitJumpInsn(IF_ICMPGE, exit);
+    chunkAndIndex(mv, array, i);
+    mv.visitVarInsn(VLOAD, value);
+    mv.visitInsn(VASTORE);
+    mv.visitIincInsn(i, 1);
+    mv.visitJumpInsn(GOTO, loop);
+    mv.visitLabel(exit);
+    mv.visitInsn(RETURN);
+  }
+}
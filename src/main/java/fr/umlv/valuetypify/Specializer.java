@@ -0,0 +1,855 @@
+package fr.umlv.valuetypify;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.SimpleRemapper;
+import org.objectweb.asm.signature.SignatureReader;
+import org.objectweb.asm.signature.SignatureVisitor;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.SourceValue;
+
+/**
+ * The specialization of the generic classes of the converted jars over the value capable classes.
+ *
+ * A generic class (by example Box<T>) can be specialized if it's a concrete class without nested class, static state
+ * or native method and if its code never references its own type apart from the receiver of its fields and methods,
+ * so the only instance seen by the code of the class is {@code this}.
+ * A specialized copy (named {@code Box$$spec$Type}, with a {@code _} for a type variable that is not specialized)
+ * replaces a type variable by a value capable class in the descriptors of the fields and methods
+ * (a type variable used as an array is never specialized), adds a cast where an erased value is stored in a specialized
+ * field, passed to a specialized parameter or returned, and adds a bridge with the erased descriptor to each
+ * overridable method so the overriding of the super types is not changed.
+ *
+ * A {@code new Box<>(...)} is redirected to the copy if the instance doesn't escape the method,
+ * i.e. it's only the receiver of the fields and methods declared by the generic class, and if all the values
+ * passed to a parameter (or stored in a field) typed by a type variable are provably instances of the same value capable class,
+ * this is the proof that the type argument is the value capable class.
+ * The copy is then converted like any other class, so the fields and parameters typed by the type variable
+ * are flattened or scalarized by the backend. As with the value capable classes, the identity and the class
+ * of a redirected instance are not the ones of the generic class.
+ */
+final class Specializer {
+  private static final Type NULL_TYPE = Type.getObjectType("null");
+
+  private final Predicate<String> isVCC;
+  private final HashMap<String, Generic> generics = new HashMap<>();   // class name -> generic class
+  private final TreeMap<String, Specialization> specializations = new TreeMap<>();  // specialized class name -> specialization
+  private final ClassHierarchy hierarchy;
+
+  private Specializer(Predicate<String> isVCC, ClassPath classPath) {
+    this.isVCC = isVCC;
+    this.hierarchy = new ClassHierarchy(classPath::find);
+  }
+
+  /**
+   * Returns the specializer of the generic classes of the jars or null if no generic class is specialized.
+   */
+  static Specializer of(ClassPath classPath, List<Path> jars, Predicate<String> isVCC) throws IOException {
+    Specializer specializer = new Specializer(isVCC, classPath);
+    for(Path jar: jars) {
+      RawZip.Reader input = classPath.jar(jar);
+      for(RawZip.Entry entry: input.entries()) {
+        if (entry.name.endsWith(".class")) {
+          Generic generic = Generic.of(input.read(entry), isVCC);
+          if (generic != null) {
+            specializer.generics.putIfAbsent(generic.name, generic);  // the first jar wins like in the class path
+          }
+        }
+      }
+    }
+    if (specializer.generics.isEmpty()) {
+      return null;
+    }
+    for(Path jar: jars) {
+      RawZip.Reader input = classPath.jar(jar);
+      for(RawZip.Entry entry: input.entries()) {
+        if (entry.name.endsWith(".class")) {
+          ClassNode node = specializer.classNode(input.read(entry));
+          if (node != null) {
+            for(MethodNode method: node.methods) {
+              for(Site site: specializer.sites(node.name, method)) {
+                specializer.specializations.computeIfAbsent(site.name, __ -> Specialization.of(site.generic, site.bindings));
+              }
+            }
+          }
+        }
+      }
+    }
+    specializer.specializations.values().removeIf(specialization -> specialization.clash);
+    if (specializer.specializations.isEmpty()) {
+      return null;
+    }
+    specializer.specializations.values().forEach(specialization -> specialization.generate(specializer));
+    return specializer;
+  }
+
+  // the class if it references a generic class, null otherwise
+  private ClassNode classNode(byte[] classFile) {
+    ClassReader reader = new ClassReader(classFile);
+    if (!ConstantPoolScanner.anyReferencedClass(reader, generics::containsKey)) {
+      return null;
+    }
+    ClassNode node = new ClassNode(ASM6);
+    reader.accept(node, 0);
+    return node;
+  }
+
+  /**
+   * Returns the super class of a specialized class, a specialized class is not a subclass of its generic class
+   * so its super classes are the ones of the generic class; or the class itself if it's not a specialized class.
+   */
+  String superClass(String className) {
+    Specialization specialization = specializations.get(className);
+    return (specialization == null)? className: specialization.superName;
+  }
+
+  /**
+   * Returns the specialized classes (internal name -> class file) of the generic classes of a jar.
+   */
+  Map<String, byte[]> specializedClasses(RawZip.Reader input) {
+    LinkedHashMap<String, byte[]> classes = new LinkedHashMap<>();
+    specializations.forEach((name, specialization) -> {
+      if (input.getEntry(specialization.generic.name + ".class").isPresent()) {
+        classes.put(name, specialization.classFile);
+      }
+    });
+    return classes;
+  }
+
+  /**
+   * Returns the class with the instantiations that use a specialized class redirected
+   * or the class file itself if there is no such instantiation.
+   */
+  byte[] redirect(byte[] classFile) {
+    ClassNode node = classNode(classFile);
+    if (node == null) {
+      return classFile;
+    }
+    boolean redirected = false;
+    for(MethodNode method: node.methods) {
+      for(Site site: sites(node.name, method)) {
+        Specialization specialization = specializations.get(site.name);
+        if (specialization != null) {
+          site.redirect(specialization);
+          redirected = true;
+        }
+      }
+    }
+    if (!redirected) {
+      return classFile;
+    }
+    ClassWriter writer = newClassWriter();
+    node.accept(writer);
+    return writer.toByteArray();
+  }
+
+  private ClassWriter newClassWriter() {
+    return new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+      @Override
+      protected String getCommonSuperClass(String type1, String type2) {
+        String superClass1 = superClass(type1);
+        String superClass2 = superClass(type2);
+        return superClass1.equals(superClass2)? superClass1: hierarchy.getCommonSuperClass(superClass1, superClass2);
+      }
+    };
+  }
+
+  // the analyzer that computes the precise type of the values
+  static Analyzer<BasicValue> typeAnalyzer() {
+    return new Analyzer<>(new BasicInterpreter(ASM6) {
+      @Override
+      public BasicValue newValue(Type type) {
+        BasicValue value = super.newValue(type);
+        // use precise type for objects and arrays
+        return (value == BasicValue.REFERENCE_VALUE)? new BasicValue(type): value;
+      }
+      @Override
+      public BasicValue binaryOperation(AbstractInsnNode insn, BasicValue value1, BasicValue value2) throws AnalyzerException {
+        Type arrayType = value1.getType();
+        if (insn.getOpcode() == AALOAD && arrayType != null && arrayType.getSort() == Type.ARRAY) {
+          return newValue(Type.getType(arrayType.getDescriptor().substring(1)));
+        }
+        return super.binaryOperation(insn, value1, value2);
+      }
+      @Override
+      public BasicValue merge(BasicValue v, BasicValue w) {
+        return ValueTypifier.mergeNull(v, w);
+      }
+    });
+  }
+
+  // the outermost type of a signature
+  private static final class TopType extends SignatureVisitor {
+    String typeVariable;        // not null if the type is a type variable
+    String arrayTypeVariable;   // not null if the type is an array of a type variable
+    private final Set<String> nested;
+    private boolean array;
+
+    TopType(Set<String> nested) {
+      super(ASM6);
+      this.nested = nested;
+    }
+
+    @Override
+    public SignatureVisitor visitArrayType() {
+      array = true;
+      return this;
+    }
+    @Override
+    public void visitTypeVariable(String name) {
+      if (array) {
+        arrayTypeVariable = name;
+      } else {
+        typeVariable = name;
+      }
+    }
+    @Override
+    public SignatureVisitor visitTypeArgument(char wildcard) {
+      return new Nested(nested);
+    }
+  }
+
+  // the type variables used inside a type
+  private static final class Nested extends SignatureVisitor {
+    private final Set<String> typeVariables;
+
+    Nested(Set<String> typeVariables) {
+      super(ASM6);
+      this.typeVariables = typeVariables;
+    }
+
+    @Override
+    public void visitTypeVariable(String name) {
+      typeVariables.add(name);
+    }
+  }
+
+  // the formal type parameters of a class or a method and the outermost types of a method
+  private static final class Signature extends SignatureVisitor {
+    final ArrayList<String> formals = new ArrayList<>();
+    final ArrayList<TopType> parameters = new ArrayList<>();
+    final HashSet<String> nested = new HashSet<>();
+    TopType returnType;
+
+    Signature() {
+      super(ASM6);
+    }
+
+    @Override
+    public void visitFormalTypeParameter(String name) {
+      formals.add(name);
+    }
+    @Override
+    public SignatureVisitor visitClassBound() {
+      return new Nested(new HashSet<>());
+    }
+    @Override
+    public SignatureVisitor visitInterfaceBound() {
+      return new Nested(new HashSet<>());
+    }
+    @Override
+    public SignatureVisitor visitSuperclass() {
+      return new Nested(new HashSet<>());
+    }
+    @Override
+    public SignatureVisitor visitInterface() {
+      return new Nested(new HashSet<>());
+    }
+    @Override
+    public SignatureVisitor visitParameterType() {
+      TopType parameter = new TopType(nested);
+      parameters.add(parameter);
+      return parameter;
+    }
+    @Override
+    public SignatureVisitor visitReturnType() {
+      return returnType = new TopType(nested);
+    }
+    @Override
+    public SignatureVisitor visitExceptionType() {
+      return new Nested(new HashSet<>());
+    }
+  }
+
+  // a field or a method of a generic class
+  private static final class Member {
+    final String name;
+    final String desc;
+    final int access;
+    final String[] typeVariables;    // the type variable of each parameter then of the return type (or of the field), or null
+    final Set<String> nested;        // the type variables used inside the type of a parameter (or of the field)
+
+    Member(String name, String desc, int access, String[] typeVariables, Set<String> nested) {
+      this.name = name;
+      this.desc = desc;
+      this.access = access;
+      this.typeVariables = typeVariables;
+      this.nested = nested;
+    }
+  }
+
+  // a generic class that can be specialized
+  private static final class Generic {
+    final String name;
+    final byte[] classFile;
+    final List<String> typeVariables;
+    final HashSet<String> specializables = new HashSet<>();   // the type variables used as the type of a member but never as array
+    final HashMap<String, Member> members = new HashMap<>();  // name + desc -> member
+
+    private Generic(String name, byte[] classFile, List<String> typeVariables) {
+      this.name = name;
+      this.classFile = classFile;
+      this.typeVariables = typeVariables;
+    }
+
+    static Generic of(byte[] classFile, Predicate<String> isVCC) {
+      ClassReader reader = new ClassReader(classFile);
+      String name = reader.getClassName();
+      if ((reader.getAccess() & (ACC_INTERFACE | ACC_ABSTRACT | ACC_ENUM | ACC_ANNOTATION)) != 0 || isVCC.test(name)) {
+        return null;
+      }
+      ClassNode node = new ClassNode(ASM6);
+      reader.accept(node, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+      if (node.signature == null || node.signature.charAt(0) != '<' || !isSelfContained(node)) {
+        return null;
+      }
+      Signature classSignature = new Signature();
+      new SignatureReader(node.signature).accept(classSignature);
+      Generic generic = new Generic(name, classFile, classSignature.formals);
+      HashSet<String> arrays = new HashSet<>();
+      for(FieldNode field: node.fields) {
+        HashSet<String> nested = new HashSet<>();
+        String[] typeVariables = new String[1];
+        if (field.signature != null) {
+          TopType type = new TopType(nested);
+          new SignatureReader(field.signature).acceptType(type);
+          typeVariables[0] = type.typeVariable;
+          if (type.arrayTypeVariable != null) {
+            arrays.add(type.arrayTypeVariable);
+          }
+        }
+        generic.add(new Member(field.name, field.desc, field.access, typeVariables, nested));
+      }
+      for(MethodNode method: node.methods) {
+        int count = Type.getArgumentTypes(method.desc).length;
+        String[] typeVariables = new String[count + 1];
+        Set<String> nested = new HashSet<>();
+        if (method.signature != null) {
+          Signature signature = new Signature();
+          new SignatureReader(method.signature).accept(signature);
+          int shift = count - signature.parameters.size();   // the synthetic parameters are not part of the signature
+          if (shift < 0) {
+            nested = new HashSet<>(generic.typeVariables);     // can not be trusted
+          } else {
+            for(int i = 0; i < signature.parameters.size(); i++) {
+              typeVariables[shift + i] = signature.parameters.get(i).typeVariable;
+            }
+            typeVariables[count] = signature.returnType.typeVariable;
+            nested = signature.nested;
+          }
+          signature.parameters.stream().map(type -> type.arrayTypeVariable).forEach(arrays::add);
+          arrays.add(signature.returnType.arrayTypeVariable);
+          // the type parameters of the method hide the ones of the class
+          for(int i = 0; i < typeVariables.length; i++) {
+            if (signature.formals.contains(typeVariables[i])) {
+              typeVariables[i] = null;
+            }
+          }
+          nested.removeAll(signature.formals);
+        }
+        generic.add(new Member(method.name, method.desc, method.access, typeVariables, nested));
+      }
+      generic.specializables.removeAll(arrays);
+      return generic.specializables.isEmpty()? null: generic;
+    }
+
+    private void add(Member member) {
+      members.put(member.name + member.desc, member);
+      for(String typeVariable: member.typeVariables) {
+        if (typeVariable != null && typeVariables.contains(typeVariable)) {
+          specializables.add(typeVariable);
+        }
+      }
+    }
+
+    // no nested class, no static state, no native method and the class is only used as the type of this
+    private static boolean isSelfContained(ClassNode node) {
+      String name = node.name;
+      String self = Type.getObjectType(name).getDescriptor();
+      if (node.innerClasses.stream().anyMatch(inner -> name.equals(inner.outerName) || inner.name.startsWith(name + '$'))) {
+        return false;
+      }
+      for(FieldNode field: node.fields) {
+        if (((field.access & ACC_STATIC) != 0 && (field.access & ACC_FINAL) == 0) || field.desc.contains(self)) {
+          return false;
+        }
+      }
+      for(MethodNode method: node.methods) {
+        if (method.name.equals("<clinit>") || (method.access & ACC_NATIVE) != 0 || method.desc.contains(self)) {
+          return false;
+        }
+        for(AbstractInsnNode insn: method.instructions.toArray()) {
+          switch(insn.getType()) {
+          case AbstractInsnNode.TYPE_INSN: {
+            String desc = ((TypeInsnNode)insn).desc;
+            if (desc.equals(name) || desc.contains(self)) {
+              return false;
+            }
+            break;
+          }
+          case AbstractInsnNode.LDC_INSN: {
+            Object constant = ((LdcInsnNode)insn).cst;
+            if (constant instanceof Type && ((Type)constant).getDescriptor().contains(self)) {
+              return false;
+            }
+            break;
+          }
+          case AbstractInsnNode.MULTIANEWARRAY_INSN:
+            if (((MultiANewArrayInsnNode)insn).desc.contains(self)) {
+              return false;
+            }
+            break;
+          default:
+          }
+        }
+      }
+      return true;
+    }
+  }
+
+  // the copy of a generic class with some type variables replaced by value capable classes
+  private static final class Specialization {
+    final Generic generic;
+    final String name;
+    final Map<String, String> bindings;   // type variable -> value capable class
+    final HashMap<String, String> descs = new HashMap<>();   // member name + erased desc -> specialized desc
+    boolean clash;         // true if two specialized members have the same descriptor
+    String superName;
+    byte[] classFile;
+
+    private Specialization(Generic generic, String name, Map<String, String> bindings) {
+      this.generic = generic;
+      this.name = name;
+      this.bindings = bindings;
+    }
+
+    static String name(Generic generic, Map<String, String> bindings) {
+      StringBuilder builder = new StringBuilder(generic.name).append("$$spec");
+      for(String typeVariable: generic.typeVariables) {
+        String vcc = bindings.get(typeVariable);
+        builder.append('$').append((vcc == null)? "_": vcc.replace('/', '_'));
+      }
+      return builder.toString();
+    }
+
+    static Specialization of(Generic generic, Map<String, String> bindings) {
+      Specialization specialization = new Specialization(generic, name(generic, bindings), bindings);
+      HashSet<String> members = new HashSet<>();
+      for(Member member: generic.members.values()) {
+        boolean isMethod = member.desc.charAt(0) == '(';
+        String desc = specialization.specialize(member.desc, member.typeVariables, isMethod);
+        specialization.descs.put(member.name + member.desc, desc);
+        if (!members.add(member.name + desc)) {
+          specialization.clash = true;
+        }
+      }
+      return specialization;
+    }
+
+    private String specialize(String desc, String[] typeVariables, boolean isMethod) {
+      if (!isMethod) {
+        String vcc = bindings.get(typeVariables[0]);
+        return (vcc == null)? desc: Type.getObjectType(vcc).getDescriptor();
+      }
+      Type[] parameterTypes = Type.getArgumentTypes(desc);
+      Type returnType = Type.getReturnType(desc);
+      for(int i = 0; i < parameterTypes.length; i++) {
+        String vcc = bindings.get(typeVariables[i]);
+        if (vcc != null) {
+          parameterTypes[i] = Type.getObjectType(vcc);
+        }
+      }
+      String vcc = bindings.get(typeVariables[parameterTypes.length]);
+      return Type.getMethodDescriptor((vcc == null)? returnType: Type.getObjectType(vcc), parameterTypes);
+    }
+
+    String desc(String memberName, String desc) {
+      return descs.getOrDefault(memberName + desc, desc);
+    }
+
+    void generate(Specializer specializer) {
+      ClassNode node = new ClassNode(ASM6);
+      new ClassReader(generic.classFile).accept(new ClassRemapper(node, new SimpleRemapper(generic.name, name)), 0);
+      superName = node.superName;
+      node.access |= ACC_SYNTHETIC;
+      node.signature = null;
+      node.innerClasses.removeIf(inner -> inner.name.equals(name));
+      node.outerClass = null;
+      node.outerMethod = null;
+      node.outerMethodDesc = null;
+      for(FieldNode field: node.fields) {
+        field.desc = desc(field.name, field.desc);
+        field.signature = null;
+      }
+      ArrayList<MethodNode> bridges = new ArrayList<>();
+      for(MethodNode method: node.methods) {
+        String erasedDesc = method.desc;
+        method.desc = desc(method.name, erasedDesc);
+        method.signature = null;
+        for(AbstractInsnNode insn: method.instructions.toArray()) {
+          if (insn instanceof FieldInsnNode && ((FieldInsnNode)insn).owner.equals(name)) {
+            FieldInsnNode fieldInsn = (FieldInsnNode)insn;
+            fieldInsn.desc = desc(fieldInsn.name, fieldInsn.desc);
+          } else if (insn instanceof MethodInsnNode && ((MethodInsnNode)insn).owner.equals(name)) {
+            MethodInsnNode methodInsn = (MethodInsnNode)insn;
+            methodInsn.desc = desc(methodInsn.name, methodInsn.desc);
+          }
+        }
+        if (!erasedDesc.equals(method.desc) && (method.access & (ACC_STATIC | ACC_PRIVATE)) == 0 && !method.name.equals("<init>")) {
+          bridges.add(bridge(method, erasedDesc));
+        }
+      }
+      for(MethodNode method: node.methods) {
+        try {
+          addCasts(method);
+        } catch (AnalyzerException e) {
+          throw new UncheckedIOException(new IOException(e));
+        }
+      }
+      node.methods.addAll(bridges);
+      ClassWriter writer = specializer.newClassWriter();
+      node.accept(writer);
+      classFile = writer.toByteArray();
+    }
+
+    // a method with the erased descriptor that calls the specialized method
+    private MethodNode bridge(MethodNode method, String erasedDesc) {
+      int access = (method.access & (ACC_PUBLIC | ACC_PROTECTED)) | ACC_SYNTHETIC | ACC_BRIDGE;
+      String[] exceptions = (method.exceptions == null)? null: method.exceptions.toArray(new String[0]);
+      MethodNode bridge = new MethodNode(ASM6, access, method.name, erasedDesc, null, exceptions);
+      InsnList instructions = bridge.instructions;
+      instructions.add(new VarInsnNode(ALOAD, 0));
+      Type[] erasedTypes = Type.getArgumentTypes(erasedDesc);
+      Type[] types = Type.getArgumentTypes(method.desc);
+      int slot = 1;
+      for(int i = 0; i < types.length; i++) {
+        instructions.add(new VarInsnNode(erasedTypes[i].getOpcode(ILOAD), slot));
+        if (!erasedTypes[i].equals(types[i])) {
+          instructions.add(new TypeInsnNode(CHECKCAST, types[i].getInternalName()));
+        }
+        slot += types[i].getSize();
+      }
+      instructions.add(new MethodInsnNode(INVOKEVIRTUAL, name, method.name, method.desc, false));
+      instructions.add(new InsnNode(Type.getReturnType(erasedDesc).getOpcode(IRETURN)));
+      return bridge;
+    }
+
+    // cast the erased values stored in a specialized field, passed to a specialized parameter or returned
+    private void addCasts(MethodNode method) throws AnalyzerException {
+      Frame<BasicValue>[] frames = typeAnalyzer().analyze(name, method);
+      AbstractInsnNode[] insns = method.instructions.toArray();   // the frames use the indexes before the casts
+      for(int i = 0; i < insns.length; i++) {
+        AbstractInsnNode insn = insns[i];
+        Frame<BasicValue> frame = frames[i];
+        if (frame == null) {
+          continue;
+        }
+        switch(insn.getOpcode()) {
+        case ARETURN:
+          castTop(method, insn, frame, Type.getReturnType(method.desc));
+          break;
+        case PUTFIELD:
+          if (((FieldInsnNode)insn).owner.equals(name)) {
+            castTop(method, insn, frame, Type.getType(((FieldInsnNode)insn).desc));
+          }
+          break;
+        case INVOKEVIRTUAL:
+        case INVOKESPECIAL:
+        case INVOKESTATIC:
+          if (((MethodInsnNode)insn).owner.equals(name)) {
+            castArguments(method, (MethodInsnNode)insn, frame);
+          }
+          break;
+        default:
+        }
+      }
+    }
+
+    private boolean needsCast(BasicValue value, Type type) {
+      return type.getSort() == Type.OBJECT && bindings.containsValue(type.getInternalName()) &&
+          !type.equals(value.getType()) && !NULL_TYPE.equals(value.getType());
+    }
+
+    private void castTop(MethodNode method, AbstractInsnNode insn, Frame<BasicValue> frame, Type type) {
+      if (needsCast(frame.getStack(frame.getStackSize() - 1), type)) {
+        method.instructions.insertBefore(insn, new TypeInsnNode(CHECKCAST, type.getInternalName()));
+      }
+    }
+
+    // the arguments are stored in local variables if one of the arguments that needs a cast is not on top of the stack
+    private void castArguments(MethodNode method, MethodInsnNode insn, Frame<BasicValue> frame) {
+      Type[] types = Type.getArgumentTypes(insn.desc);
+      int base = frame.getStackSize() - types.length;
+      boolean[] casts = new boolean[types.length];
+      int last = -1;
+      for(int i = 0; i < types.length; i++) {
+        if (casts[i] = needsCast(frame.getStack(base + i), types[i])) {
+          last = i;
+        }
+      }
+      if (last == -1) {
+        return;
+      }
+      InsnList list = new InsnList();
+      if (last == types.length - 1 && IntStream.range(0, last).noneMatch(i -> casts[i])) {
+        list.add(new TypeInsnNode(CHECKCAST, types[types.length - 1].getInternalName()));
+      } else {
+        int[] slots = new int[types.length];
+        int slot = method.maxLocals;
+        for(int i = 0; i < types.length; i++) {
+          slots[i] = slot;
+          slot += types[i].getSize();
+        }
+        for(int i = types.length; --i >= 0;) {
+          list.add(new VarInsnNode(types[i].getOpcode(ISTORE), slots[i]));
+        }
+        for(int i = 0; i < types.length; i++) {
+          list.add(new VarInsnNode(types[i].getOpcode(ILOAD), slots[i]));
+          if (casts[i]) {
+            list.add(new TypeInsnNode(CHECKCAST, types[i].getInternalName()));
+          }
+        }
+        method.maxLocals = slot;
+      }
+      method.instructions.insertBefore(insn, list);
+    }
+  }
+
+  // an instantiation of a generic class that can use a specialized class
+  private static final class Site {
+    final Generic generic;
+    final Map<String, String> bindings;
+    final String name;
+    final TypeInsnNode newInsn;
+    final List<AbstractInsnNode> members;   // the field and method instructions on the instance
+
+    Site(Generic generic, Map<String, String> bindings, TypeInsnNode newInsn, List<AbstractInsnNode> members) {
+      this.generic = generic;
+      this.bindings = bindings;
+      this.name = Specialization.name(generic, bindings);
+      this.newInsn = newInsn;
+      this.members = members;
+    }
+
+    void redirect(Specialization specialization) {
+      newInsn.desc = specialization.name;
+      for(AbstractInsnNode insn: members) {
+        if (insn instanceof FieldInsnNode) {
+          FieldInsnNode fieldInsn = (FieldInsnNode)insn;
+          fieldInsn.owner = specialization.name;
+          fieldInsn.desc = specialization.desc(fieldInsn.name, fieldInsn.desc);
+        } else {
+          MethodInsnNode methodInsn = (MethodInsnNode)insn;
+          methodInsn.owner = specialization.name;
+          methodInsn.desc = specialization.desc(methodInsn.name, methodInsn.desc);
+        }
+      }
+    }
+  }
+
+  private static String packageName(String className) {
+    int index = className.lastIndexOf('/');
+    return (index == -1)? "": className.substring(0, index);
+  }
+
+  // the instantiations of a generic class in a method that can use a specialized class
+  private List<Site> sites(String owner, MethodNode method) {
+    List<TypeInsnNode> newInsns = new ArrayList<>();
+    for(AbstractInsnNode insn: method.instructions.toArray()) {
+      if (insn.getOpcode() == NEW && generics.containsKey(((TypeInsnNode)insn).desc)) {
+        newInsns.add((TypeInsnNode)insn);
+      }
+    }
+    if (newInsns.isEmpty()) {
+      return Collections.emptyList();
+    }
+    Scalarizer.Uses uses = new Scalarizer.Uses();
+    Frame<BasicValue>[] frames;
+    try {
+      new Analyzer<>(uses).analyze(owner, method);
+      frames = typeAnalyzer().analyze(owner, method);
+    } catch (AnalyzerException e) {
+      throw new UncheckedIOException(new IOException(e));
+    }
+    Map<AbstractInsnNode, List<AbstractInsnNode>> loads = uses.loads();
+    ArrayList<Site> sites = new ArrayList<>();
+    for(TypeInsnNode newInsn: newInsns) {
+      Generic generic = generics.get(newInsn.desc);
+      List<AbstractInsnNode> members = members(newInsn, uses, loads);
+      if (members == null || !members.stream().allMatch(insn -> isMemberOf(generic, owner, insn))) {
+        continue;
+      }
+      Map<String, String> bindings = bindings(generic, members, method, frames);
+      if (!bindings.isEmpty()) {
+        sites.add(new Site(generic, bindings, newInsn, members));
+      }
+    }
+    return sites;
+  }
+
+  /**
+   * Returns the field and method instructions that use the instance created by a NEW as receiver
+   * or null if the instance escapes the method (or is merged with another value).
+   */
+  static List<AbstractInsnNode> members(TypeInsnNode newInsn, Scalarizer.Uses uses, Map<AbstractInsnNode, List<AbstractInsnNode>> loads) {
+    HashSet<AbstractInsnNode> carriers = new HashSet<>();   // the instructions that produce the instance
+    carriers.add(newInsn);
+    ArrayList<AbstractInsnNode> members = new ArrayList<>();
+    ArrayDeque<AbstractInsnNode> work = new ArrayDeque<>();
+    work.add(newInsn);
+    while(!work.isEmpty()) {
+      AbstractInsnNode carrier = work.poll();
+      Iterable<AbstractInsnNode> consumers = (carrier.getOpcode() == ASTORE)?
+          loads.getOrDefault(carrier, Collections.emptyList()): uses.consumers(carrier);
+      for(AbstractInsnNode consumer: consumers) {
+        switch(consumer.getOpcode()) {
+        case DUP:
+        case ASTORE:
+        case ALOAD:
+          if (carriers.add(consumer)) {
+            work.add(consumer);
+          }
+          break;
+        case POP:
+          break;
+        case INVOKESPECIAL:
+        case INVOKEVIRTUAL:
+        case INVOKEINTERFACE:
+        case GETFIELD:
+        case PUTFIELD:
+          if (!members.contains(consumer)) {
+            members.add(consumer);
+          }
+          break;
+        default:
+          return null;
+        }
+      }
+    }
+    // the instance is never merged with another value and is only used as receiver
+    for(AbstractInsnNode carrier: carriers) {
+      if (carrier != newInsn && !carriers.containsAll(uses.operands.get(carrier).get(0).insns)) {
+        return null;
+      }
+    }
+    for(AbstractInsnNode member: members) {
+      List<SourceValue> operands = uses.operands.get(member);
+      if (!carriers.containsAll(operands.get(0).insns)) {
+        return null;
+      }
+      for(SourceValue operand: operands.subList(1, operands.size())) {
+        if (!Collections.disjoint(carriers, operand.insns)) {
+          return null;
+        }
+      }
+    }
+    return members;
+  }
+
+  // an instance member declared by the generic class and accessible by the specialized class
+  private static boolean isMemberOf(Generic generic, String owner, AbstractInsnNode insn) {
+    String memberOwner;
+    String key;
+    if (insn instanceof FieldInsnNode) {
+      FieldInsnNode fieldInsn = (FieldInsnNode)insn;
+      memberOwner = fieldInsn.owner;
+      key = fieldInsn.name + fieldInsn.desc;
+    } else {
+      MethodInsnNode methodInsn = (MethodInsnNode)insn;
+      memberOwner = methodInsn.owner;
+      key = methodInsn.name + methodInsn.desc;
+    }
+    Member member = generic.members.get(key);
+    return memberOwner.equals(generic.name) && member != null && (member.access & ACC_STATIC) == 0 &&
+        ((member.access & ACC_PROTECTED) == 0 || packageName(owner).equals(packageName(generic.name)));
+  }
+
+  // the value capable classes that are the type arguments of an instance
+  private Map<String, String> bindings(Generic generic, List<AbstractInsnNode> members, MethodNode method, Frame<BasicValue>[] frames) {
+    HashMap<String, String> bindings = new HashMap<>();
+    HashSet<String> unknowns = new HashSet<>();
+    for(AbstractInsnNode insn: members) {
+      Frame<BasicValue> frame = frames[method.instructions.indexOf(insn)];
+      Member member;
+      int count;
+      if (insn instanceof FieldInsnNode) {
+        if (insn.getOpcode() == GETFIELD) {
+          continue;
+        }
+        FieldInsnNode fieldInsn = (FieldInsnNode)insn;
+        member = generic.members.get(fieldInsn.name + fieldInsn.desc);
+        count = 1;
+      } else {
+        MethodInsnNode methodInsn = (MethodInsnNode)insn;
+        member = generic.members.get(methodInsn.name + methodInsn.desc);
+        count = Type.getArgumentTypes(methodInsn.desc).length;
+      }
+      unknowns.addAll(member.nested);
+      int base = frame.getStackSize() - count;
+      for(int i = 0; i < count; i++) {
+        String typeVariable = member.typeVariables[i];
+        if (typeVariable == null || !generic.specializables.contains(typeVariable)) {
+          continue;
+        }
+        Type type = frame.getStack(base + i).getType();
+        if (NULL_TYPE.equals(type)) {
+          continue;
+        }
+        if (type == null || type.getSort() != Type.OBJECT || !isVCC.test(type.getInternalName()) ||
+            !type.getInternalName().equals(bindings.getOrDefault(typeVariable, type.getInternalName()))) {
+          unknowns.add(typeVariable);
+          continue;
+        }
+        bindings.put(typeVariable, type.getInternalName());
+      }
+    }
+    bindings.keySet().removeAll(unknowns);
+    return bindings;
+  }
+}
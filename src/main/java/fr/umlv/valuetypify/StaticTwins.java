@@ -0,0 +1,203 @@
+package fr.umlv.valuetypify;
+
+import static org.objectweb.asm.Opcodes.ACC_ABSTRACT;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_NATIVE;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ACC_SYNCHRONIZED;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ASM6;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.PUTFIELD;
+import static org.objectweb.asm.Opcodes.RETURN;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+
+/**
+ * The instance methods of the value capable classes that have a static twin.
+ *
+ * When a final value capable class is transformed, each of its instance methods gets a static twin
+ * (named {@code method$$vstatic}) that takes the receiver and the value capable classes as value types
+ * and returns a value type if the method never returns null, so a call on a receiver that is a value type doesn't box.
+ * A constructor that only stores its parameters in the fields gets a value factory
+ * (named {@code new$$vfactory}) that creates the value type with VDEFAULT and VWITHFIELD,
+ * so a {@code new} doesn't allocate.
+ * A call site can only use a twin or a factory if the value capable class is transformed too,
+ * so the classes that are known to be transformed are provided by the caller.
+ */
+final class StaticTwins {
+  private final Function<String, Optional<InputStream>> classFileFinder;
+  private final Predicate<String> transformedClasses;
+  /** The name of the value factories. */
+  static final String FACTORY_NAME = "new$$vfactory";
+  
+  private final ConcurrentHashMap<String, Methods> methods = new ConcurrentHashMap<>();
+  
+  private static final class Methods {
+    final Set<String> twins;            // name + desc, the factories included
+    final Set<String> nonNullReturns;   // name + desc
+    
+    Methods(Set<String> twins, Set<String> nonNullReturns) {
+      this.twins = twins;
+      this.nonNullReturns = nonNullReturns;
+    }
+  }
+  private static final Methods NO_METHODS = new Methods(Collections.emptySet(), Collections.emptySet());
+
+  StaticTwins(Function<String, Optional<InputStream>> classFileFinder, Predicate<String> transformedClasses) {
+    this.classFileFinder = Objects.requireNonNull(classFileFinder);
+    this.transformedClasses = Objects.requireNonNull(transformedClasses);
+  }
+
+  /**
+   * Returns true if the method of a value capable class has a static twin,
+   * the rule must be the same when the class is transformed and when a call is rewritten.
+   */
+  static boolean hasStaticTwin(int classAccess, int access, String name) {
+    return (classAccess & ACC_FINAL) != 0 &&
+        (access & (ACC_STATIC | ACC_ABSTRACT | ACC_NATIVE | ACC_SYNCHRONIZED)) == 0 &&
+        name.charAt(0) != '<';
+  }
+
+  /**
+   * Returns the methods (name + desc) of a value capable class that never return null, their static twins return
+   * a value type, the rule must be the same when the class is transformed and when a call is rewritten.
+   */
+  static Set<String> nonNullReturns(ClassNode classNode) throws AnalyzerException {
+    return Nullness.nonNullReturns(classNode, __ -> false);   // the fields of a value capable class are not flattened
+  }
+
+  static String asStaticTwinName(String name) {
+    return name + "$$vstatic";
+  }
+
+  /**
+   * Returns the instructions of a constructor that stores its parameters in the fields, a load of a parameter
+   * followed by a PUTFIELD for each field, or null if the constructor does anything else.
+   */
+  static List<AbstractInsnNode> fieldAssignments(String owner, MethodNode constructor) {
+    if (!constructor.tryCatchBlocks.isEmpty()) {
+      return null;
+    }
+    int parameterSlots = Type.getArgumentsAndReturnSizes(constructor.desc) >> 2;   // with this
+    ArrayList<AbstractInsnNode> insns = new ArrayList<>();
+    for(AbstractInsnNode insn = constructor.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+      if (insn.getOpcode() != -1) {   // skip labels, line numbers and frames
+        insns.add(insn);
+      }
+    }
+    int size = insns.size();
+    if (size < 3 || (size - 3) % 3 != 0 || !isLoadOfThis(insns.get(0)) || insns.get(size - 1).getOpcode() != RETURN) {
+      return null;
+    }
+    AbstractInsnNode superCall = insns.get(1);
+    if (superCall.getOpcode() != INVOKESPECIAL || !((MethodInsnNode)superCall).owner.equals("java/lang/Object")) {
+      return null;
+    }
+    ArrayList<AbstractInsnNode> assignments = new ArrayList<>();
+    for(int i = 2; i < size - 1; i += 3) {
+      AbstractInsnNode load = insns.get(i + 1);
+      AbstractInsnNode store = insns.get(i + 2);
+      if (!isLoadOfThis(insns.get(i)) ||
+          load.getOpcode() < ILOAD || load.getOpcode() > ALOAD ||
+          ((VarInsnNode)load).var == 0 || ((VarInsnNode)load).var >= parameterSlots ||
+          store.getOpcode() != PUTFIELD || !((FieldInsnNode)store).owner.equals(owner)) {
+        return null;
+      }
+      assignments.add(load);
+      assignments.add(store);
+    }
+    return assignments;
+  }
+  
+  private static boolean isLoadOfThis(AbstractInsnNode insn) {
+    return insn.getOpcode() == ALOAD && ((VarInsnNode)insn).var == 0;
+  }
+  
+  /**
+   * Returns true if the value capable class is transformed, so its methods have their static twins.
+   */
+  boolean isTransformed(String className) {
+    return transformedClasses.test(className);
+  }
+
+  /**
+   * Returns true if a call to the method of the value capable class can use its static twin.
+   */
+  boolean hasStaticTwin(String owner, String name, String desc) {
+    if (!transformedClasses.test(owner)) {
+      return false;
+    }
+    return methods(owner).twins.contains(name + desc);
+  }
+  
+  /**
+   * Returns true if the static twin of the method of the value capable class returns a value type.
+   */
+  boolean returnsValueType(String owner, String name, String desc) {
+    return methods(owner).nonNullReturns.contains(name + desc);
+  }
+  
+  private Methods methods(String owner) {
+    Methods methods = this.methods.get(owner);
+    if (methods == null) {
+      methods = readMethods(owner);
+      this.methods.put(owner, methods);
+    }
+    return methods;
+  }
+
+  /**
+   * Returns true if a call to the constructor of the value capable class can use its value factory.
+   */
+  boolean hasFactory(String owner, String desc) {
+    return hasStaticTwin(owner, FACTORY_NAME, desc);   // the factories are stored with the twins
+  }
+
+  private Methods readMethods(String className) {
+    Optional<InputStream> classFileInputStream = classFileFinder.apply(className);
+    if (!classFileInputStream.isPresent()) {
+      return NO_METHODS;
+    }
+    HashSet<String> twins = new HashSet<>();
+    ClassNode classNode = new ClassNode(ASM6);
+    try(InputStream input = classFileInputStream.get()) {
+      new ClassReader(input).accept(classNode, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+      for(MethodNode method: classNode.methods) {
+        if (hasStaticTwin(classNode.access, method.access, method.name)) {
+          twins.add(method.name + method.desc);
+        } else if (method.name.equals("<init>") && fieldAssignments(className, method) != null) {
+          twins.add(FACTORY_NAME + method.desc);
+        }
+      }
+      return new Methods(twins, nonNullReturns(classNode));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (AnalyzerException e) {
+      throw new UncheckedIOException(new IOException(e));
+    }
+  }
+}
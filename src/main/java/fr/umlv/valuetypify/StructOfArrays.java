@@ -0,0 +1,866 @@
+package fr.umlv.valuetypify;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.Remapper;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+/**
+ * The struct of arrays, an opt-in representation of the arrays of a value capable class for the stock backend.
+ *
+ * If the arrays of a value capable class (by example Color[]) are owned by a class (see {@link SegmentedArrays#ownedArrays}),
+ * each array is replaced by one array per field of the value capable class ({@code float[]} for red, green and blue)
+ * stored in an array of objects (the holder, one per array) so an array is still a single value.
+ * A load of an element creates an object from the fields (with the constructor found by the {@link Scalarizer})
+ * and a store of an element stores its fields, the load and the store are inlined so the object is removed
+ * by the scalarizer if it doesn't escape. The allocation, System.arraycopy and Arrays.copyOf, copyOfRange
+ * and fill are redirected to private static synthetic helpers (named {@code method$$vsoa$Type}) generated in the class.
+ * As with the value types, an element can not be null, an array is created with elements that have
+ * their fields set to their default values.
+ *
+ * Off-heap, the fields of a value capable class must be primitives and the holder is a direct {@link java.nio.ByteBuffer}
+ * (in native order) that stores the elements one after the other, each field at an offset aligned on its size
+ * so the memory of a big array is not managed by the GC; it is released when the buffer is collected.
+ * The helpers are named {@code method$$voffheap$Type}, the index of an element is checked by the helper {@code offset}
+ * that returns the offset of the element in the buffer.
+ */
+final class StructOfArrays {
+  /** The descriptor of the holder. */
+  static final String HOLDER_DESC = "[Ljava/lang/Object;";
+  /** The descriptor of the holder off-heap. */
+  static final String OFF_HEAP_HOLDER_DESC = "Ljava/nio/ByteBuffer;";
+
+  private static final String OFFSET_DESC = "([Ljava/lang/Object;I)I";
+
+  private final String owner;
+  private final boolean offHeap;
+  private final Map<String, Scalarizer.Layout> layouts;   // element type -> layout
+  private final Map<String, String> constructors;         // element type -> descriptor of an accessible constructor
+  private final LinkedHashMap<String, String> requests = new LinkedHashMap<>();   // name + desc -> element type
+  private final HashMap<String, int[]> offsets = new HashMap<>();   // element type -> offsets of the fields + size
+
+  private StructOfArrays(String owner, boolean offHeap, Map<String, Scalarizer.Layout> layouts, Map<String, String> constructors) {
+    this.owner = owner;
+    this.offHeap = offHeap;
+    this.layouts = layouts;
+    this.constructors = constructors;
+  }
+
+  /**
+   * Returns the struct of arrays of a class or null if no array can be replaced.
+   * The value capable class must have readable fields and an accessible constructor that stores all its fields,
+   * off-heap the fields must be primitives.
+   */
+  static StructOfArrays of(ClassReader reader, Predicate<Type> isVCC, Function<String, Scalarizer.Layout> layoutFinder, boolean offHeap) {
+    String owner = reader.getClassName();
+    HashMap<String, Scalarizer.Layout> layouts = new HashMap<>();
+    HashMap<String, String> constructors = new HashMap<>();
+    for(String elementType: SegmentedArrays.ownedArrays(reader, isVCC)) {
+      Scalarizer.Layout layout = layoutFinder.apply(elementType);
+      if (layout == null || layout.fields.isEmpty() || !layout.isAccessible(elementType, owner) ||
+          !layout.fields.keySet().stream().allMatch(field -> layout.isAccessible(field, owner)) ||
+          (offHeap && !layout.fields.values().stream().allMatch(StructOfArrays::isPrimitive))) {
+        continue;
+      }
+      layout.constructors.keySet().stream()
+          .filter(desc -> layout.isAccessible(desc, owner))
+          .sorted()
+          .findFirst()
+          .ifPresent(desc -> {
+            layouts.put(elementType, layout);
+            constructors.put(elementType, desc);
+          });
+    }
+    if (layouts.isEmpty()) {
+      return null;
+    }
+    StructOfArrays structOfArrays = new StructOfArrays(owner, offHeap, layouts, constructors);
+    return structOfArrays.hasClashes(reader)? null: structOfArrays;
+  }
+
+  // two members that only differ by an array and an array of objects would have the same descriptor
+  private boolean hasClashes(ClassReader reader) {
+    Remapper remapper = remapper();
+    HashSet<String> members = new HashSet<>();
+    boolean[] clash = { false };
+    reader.accept(new ClassVisitor(ASM6) {
+      @Override
+      public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+        clash[0] |= !members.add(name + remapper.mapDesc(desc));
+        return null;
+      }
+      @Override
+      public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        clash[0] |= !members.add(name + remapper.mapMethodDesc(desc));
+        return null;
+      }
+    }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    return clash[0];
+  }
+
+  // returns the element type if the type is an array replaced by a holder or null
+  private String elementType(Type type) {
+    if (type == null || type.getSort() != Type.ARRAY || type.getDimensions() != 1 || type.getElementType().getSort() != Type.OBJECT) {
+      return null;
+    }
+    String elementType = type.getElementType().getInternalName();
+    return layouts.containsKey(elementType)? elementType: null;
+  }
+
+  private String holderDesc() {
+    return offHeap? OFF_HEAP_HOLDER_DESC: HOLDER_DESC;
+  }
+
+  /**
+   * Returns the remapper that replaces the arrays by their holder in the descriptors.
+   */
+  Remapper remapper() {
+    return new Remapper() {
+      @Override
+      public String mapDesc(String desc) {
+        return (elementType(Type.getType(desc)) != null)? holderDesc(): desc;
+      }
+
+      @Override
+      public String mapType(String type) {
+        // the array types of the CHECKCAST, ANEWARRAY, etc are descriptors
+        return (type != null && type.charAt(0) == '[')? Type.getType(mapDesc(type)).getInternalName(): super.mapType(type);
+      }
+    };
+  }
+
+  private String helperName(String name, String elementType) {
+    return name + (offHeap? "$$voffheap$": "$$vsoa$") + elementType.replace('/', '_');
+  }
+
+  /**
+   * Request the helper of an operation and returns its descriptor,
+   * desc is the descriptor of the operation on an Object[], the Object being the value capable class.
+   */
+  private String request(String name, String desc, String elementType) {
+    String helperDesc = ArrayIntrinsics.helperDescriptor(desc, holderDesc(), Type.getObjectType(elementType).getDescriptor());
+    if (requests.putIfAbsent(helperName(name, elementType) + helperDesc, elementType) == null && offHeap) {
+      // the helpers used by the helper
+      switch(name) {
+      case "copyOf":
+      case "copyOfRange":
+        request("newArray", SegmentedArrays.NEW_ARRAY_DESC, elementType);
+        request("arraycopy", SegmentedArrays.ARRAYCOPY_DESC, elementType);
+        break;
+      default:
+      }
+    }
+    return helperDesc;
+  }
+
+  // the offsets of the fields of an element off-heap, the last item is the size of an element
+  private int[] offsets(String elementType) {
+    return offsets.computeIfAbsent(elementType, __ -> {
+      Scalarizer.Layout layout = layouts.get(elementType);
+      int[] offsets = new int[layout.fields.size() + 1];
+      int offset = 0;
+      int alignment = 1;
+      int field = 0;
+      for(Type fieldType: layout.fields.values()) {
+        int size = size(fieldType);
+        offset = align(offset, size);
+        offsets[field++] = offset;
+        offset += size;
+        alignment = Math.max(alignment, size);
+      }
+      offsets[field] = align(offset, alignment);
+      return offsets;
+    });
+  }
+
+  private static int align(int offset, int alignment) {
+    return (offset + alignment - 1) / alignment * alignment;
+  }
+
+  // the size in bytes of a primitive type
+  private static int size(Type type) {
+    switch(type.getSort()) {
+    case Type.BOOLEAN:
+    case Type.BYTE:
+      return 1;
+    case Type.CHAR:
+    case Type.SHORT:
+      return 2;
+    case Type.INT:
+    case Type.FLOAT:
+      return 4;
+    case Type.LONG:
+    case Type.DOUBLE:
+      return 8;
+    default:
+      throw new IllegalArgumentException("not a primitive type " + type);
+    }
+  }
+
+  // the suffix of the get/put methods of ByteBuffer, a boolean is stored as a byte
+  private static String accessorSuffix(Type type) {
+    switch(type.getSort()) {
+    case Type.BOOLEAN:
+    case Type.BYTE:
+      return "";
+    case Type.CHAR:
+      return "Char";
+    case Type.SHORT:
+      return "Short";
+    case Type.INT:
+      return "Int";
+    case Type.FLOAT:
+      return "Float";
+    case Type.LONG:
+      return "Long";
+    case Type.DOUBLE:
+      return "Double";
+    default:
+      throw new IllegalArgumentException("not a primitive type " + type);
+    }
+  }
+
+  private static String accessorDesc(Type type) {
+    return (type.getSort() == Type.BOOLEAN)? "B": type.getDescriptor();
+  }
+
+  // name + desc -> name
+  private static String fieldName(String fieldKey, Type fieldType) {
+    return fieldKey.substring(0, fieldKey.length() - fieldType.getDescriptor().length());
+  }
+
+  // the type of the array of a field
+  private static Type componentType(Type fieldType) {
+    return Type.getType("[" + fieldType.getDescriptor());
+  }
+
+  private static AbstractInsnNode pushInt(int value) {
+    if (value <= 5) {
+      return new InsnNode(ICONST_0 + value);
+    }
+    return (value <= Short.MAX_VALUE)? new IntInsnNode((value <= Byte.MAX_VALUE)? BIPUSH: SIPUSH, value): new LdcInsnNode(value);
+  }
+
+  // holder -> component array of a field
+  private static void component(InsnList list, int holder, int index, Type fieldType) {
+    list.add(new VarInsnNode(ALOAD, holder));
+    list.add(pushInt(index));
+    list.add(new InsnNode(AALOAD));
+    list.add(new TypeInsnNode(CHECKCAST, componentType(fieldType).getDescriptor()));
+  }
+
+  // holder, index -> the array and the index of a field of the element at index
+  private void fieldSlot(InsnList list, int holder, int index, String elementType, int field, Type fieldType) {
+    if (!offHeap) {
+      component(list, holder, field, fieldType);
+      list.add(new VarInsnNode(ILOAD, index));
+      return;
+    }
+    // the index is the offset of the element
+    int offset = offsets(elementType)[field];
+    list.add(new VarInsnNode(ALOAD, holder));
+    list.add(new VarInsnNode(ILOAD, index));
+    if (offset != 0) {
+      list.add(pushInt(offset));
+      list.add(new InsnNode(IADD));
+    }
+  }
+
+  // array, index -> value
+  private void loadField(InsnList list, Type fieldType) {
+    if (!offHeap) {
+      list.add(new InsnNode(fieldType.getOpcode(IALOAD)));
+      return;
+    }
+    list.add(new MethodInsnNode(INVOKEVIRTUAL, "java/nio/ByteBuffer", "get" + accessorSuffix(fieldType), "(I)" + accessorDesc(fieldType), false));
+  }
+
+  // array, index, value ->
+  private void storeField(InsnList list, Type fieldType) {
+    if (!offHeap) {
+      list.add(new InsnNode(fieldType.getOpcode(IASTORE)));
+      return;
+    }
+    list.add(new MethodInsnNode(INVOKEVIRTUAL, "java/nio/ByteBuffer", "put" + accessorSuffix(fieldType), "(I" + accessorDesc(fieldType) + ")Ljava/nio/ByteBuffer;", false));
+    list.add(new InsnNode(POP));
+  }
+
+  // off-heap, replace the index of an element by its offset (the index is checked)
+  private void elementOffset(InsnList list, int holder, int index, String elementType) {
+    if (!offHeap) {
+      return;
+    }
+    list.add(new VarInsnNode(ALOAD, holder));
+    list.add(new VarInsnNode(ILOAD, index));
+    list.add(new MethodInsnNode(INVOKESTATIC, owner, helperName("offset", elementType), request("offset", OFFSET_DESC, elementType), false));
+    list.add(new VarInsnNode(ISTORE, index));
+  }
+
+  /**
+   * Rewrite the operations on the arrays of a method, the descriptors are remapped later by the {@link #remapper()}.
+   */
+  void rewrite(MethodNode method) throws AnalyzerException {
+    Analyzer<BasicValue> analyzer = new Analyzer<>(new BasicInterpreter(ASM6) {
+      @Override
+      public BasicValue newValue(Type type) {
+        BasicValue value = super.newValue(type);
+        // use precise type for objects and arrays
+        return (value == BasicValue.REFERENCE_VALUE)? new BasicValue(type): value;
+      }
+      @Override
+      public BasicValue merge(BasicValue v, BasicValue w) {
+        return ValueTypifier.mergeNull(v, w);
+      }
+    });
+    Frame<BasicValue>[] frames = analyzer.analyze(owner, method);
+    InsnList instructions = method.instructions;
+    int holder = method.maxLocals;     // the temporary local variables
+    int index = holder + 1;
+    int maxLocals = index + 1;
+    int maxStack = method.maxStack;
+    AbstractInsnNode[] insns = instructions.toArray();   // the frames use the indexes before the rewrite
+    for(int i = 0; i < insns.length; i++) {
+      AbstractInsnNode insn = insns[i];
+      Frame<BasicValue> frame = frames[i];
+      if (frame == null) {
+        continue;
+      }
+      String elementType;
+      InsnList list = new InsnList();
+      switch(insn.getOpcode()) {
+      case ANEWARRAY:
+        elementType = ((TypeInsnNode)insn).desc;
+        if (!layouts.containsKey(elementType)) {
+          continue;
+        }
+        String newArrayDesc = request("newArray", SegmentedArrays.NEW_ARRAY_DESC, elementType);
+        list.add(new MethodInsnNode(INVOKESTATIC, owner, helperName("newArray", elementType), newArrayDesc, false));
+        break;
+      case ARRAYLENGTH: {
+        if ((elementType = elementType(top(frame, 0))) == null) {
+          continue;
+        }
+        if (offHeap) {
+          list.add(new MethodInsnNode(INVOKEVIRTUAL, "java/nio/ByteBuffer", "capacity", "()I", false));
+          list.add(pushInt(offsets(elementType)[layouts.get(elementType).fields.size()]));
+          list.add(new InsnNode(IDIV));
+          break;
+        }
+        // all the component arrays have the same length
+        list.add(pushInt(0));
+        list.add(new InsnNode(AALOAD));
+        list.add(new TypeInsnNode(CHECKCAST, componentType(layouts.get(elementType).fields.values().iterator().next()).getDescriptor()));
+        list.add(new InsnNode(ARRAYLENGTH));
+        break;
+      }
+      case AALOAD: {
+        if ((elementType = elementType(top(frame, 1))) == null) {
+          continue;
+        }
+        // new Element(holder[0][index], holder[1][index], ...)
+        Scalarizer.Layout layout = layouts.get(elementType);
+        String constructor = constructors.get(elementType);
+        list.add(new VarInsnNode(ISTORE, index));
+        list.add(new VarInsnNode(ASTORE, holder));
+        elementOffset(list, holder, index, elementType);
+        list.add(new TypeInsnNode(NEW, elementType));
+        list.add(new InsnNode(DUP));
+        List<String> fieldKeys = new ArrayList<>(layout.fields.keySet());
+        for(List<String> fields: layout.constructors.get(constructor)) {
+          Type fieldType = layout.fields.get(fields.get(0));
+          fieldSlot(list, holder, index, elementType, fieldKeys.indexOf(fields.get(0)), fieldType);
+          loadField(list, fieldType);
+        }
+        list.add(new MethodInsnNode(INVOKESPECIAL, elementType, "<init>", constructor, false));
+        // the element, the field values (at most 2 slots each), then the array and the index of a field
+        maxStack = Math.max(maxStack, method.maxStack + 5 + 2 * layout.fields.size());
+        break;
+      }
+      case AASTORE: {
+        if ((elementType = elementType(top(frame, 2))) == null) {
+          continue;
+        }
+        // holder[0][index] = value.field0, holder[1][index] = value.field1, ...
+        // the value has its own local variable so it can be scalarized
+        Scalarizer.Layout layout = layouts.get(elementType);
+        int value = maxLocals++;
+        list.add(new VarInsnNode(ASTORE, value));
+        list.add(new VarInsnNode(ISTORE, index));
+        list.add(new VarInsnNode(ASTORE, holder));
+        elementOffset(list, holder, index, elementType);
+        int field = 0;
+        for(Map.Entry<String, Type> entry: layout.fields.entrySet()) {
+          String fieldKey = entry.getKey();
+          Type fieldType = entry.getValue();
+          fieldSlot(list, holder, index, elementType, field++, fieldType);
+          list.add(new VarInsnNode(ALOAD, value));
+          list.add(new FieldInsnNode(GETFIELD, elementType, fieldName(fieldKey, fieldType), fieldType.getDescriptor()));
+          storeField(list, fieldType);
+        }
+        maxStack = Math.max(maxStack, method.maxStack + 2);
+        break;
+      }
+      case INVOKESTATIC: {
+        MethodInsnNode methodInsn = (MethodInsnNode)insn;
+        if (SegmentedArrays.isArraycopy(methodInsn)) {
+          if ((elementType = elementType(top(frame, 4))) == null) {
+            continue;
+          }
+          String arraycopyDesc = request("arraycopy", SegmentedArrays.ARRAYCOPY_DESC, elementType);
+          list.add(new MethodInsnNode(INVOKESTATIC, owner, helperName("arraycopy", elementType), arraycopyDesc, false));
+          break;
+        }
+        if (ArrayIntrinsics.helperName(methodInsn) == null) {
+          continue;
+        }
+        int parameterCount = Type.getArgumentTypes(methodInsn.desc).length;
+        if ((elementType = elementType(top(frame, parameterCount - 1))) == null) {
+          continue;
+        }
+        String helperDesc = request(methodInsn.name, methodInsn.desc, elementType);
+        list.add(new MethodInsnNode(INVOKESTATIC, owner, helperName(methodInsn.name, elementType), helperDesc, false));
+        break;
+      }
+      default:
+        continue;
+      }
+      instructions.insertBefore(insn, list);
+      instructions.remove(insn);
+    }
+    method.maxLocals = maxLocals;
+    method.maxStack = maxStack;
+  }
+
+  // the type of the value at depth from the top of the stack
+  private static Type top(Frame<BasicValue> frame, int depth) {
+    return frame.getStack(frame.getStackSize() - 1 - depth).getType();
+  }
+
+  /**
+   * Generate the requested helpers in the class.
+   */
+  void generate(ClassVisitor cv) {
+    requests.forEach((nameAndDesc, elementType) -> {
+      int index = nameAndDesc.indexOf('(');
+      String name = nameAndDesc.substring(0, index);
+      String desc = nameAndDesc.substring(index);
+      MethodVisitor mv = cv.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, name, desc, null, null);
+      mv.visitCode();
+      Scalarizer.Layout layout = layouts.get(elementType);
+      if (offHeap) {
+        generateOffHeap(mv, name.substring(0, name.indexOf("$$")), elementType, desc);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        return;
+      }
+      switch(name.substring(0, name.indexOf("$$"))) {
+      case "newArray":
+        newArray(mv, layout);
+        break;
+      case "arraycopy":
+        arraycopy(mv, layout);
+        break;
+      case "copyOf":
+      case "copyOfRange":
+        copy(mv, layout, name.startsWith("copyOfRange")? "II": "I");
+        break;
+      default:
+        fill(mv, layout, elementType, desc);
+      }
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+    });
+  }
+
+  private static void visitInt(MethodVisitor mv, int value) {
+    if (value <= 5) {
+      mv.visitInsn(ICONST_0 + value);
+    } else if (value <= Short.MAX_VALUE) {
+      mv.visitIntInsn((value <= Byte.MAX_VALUE)? BIPUSH: SIPUSH, value);
+    } else {
+      mv.visitLdcInsn(value);
+    }
+  }
+
+  // holder -> component array of a field
+  private static void visitComponent(MethodVisitor mv, int holder, int index, Type fieldType) {
+    mv.visitVarInsn(ALOAD, holder);
+    visitInt(mv, index);
+    mv.visitInsn(AALOAD);
+    mv.visitTypeInsn(CHECKCAST, componentType(fieldType).getDescriptor());
+  }
+
+  // newArray(length), one array per field
+  private static void newArray(MethodVisitor mv, Scalarizer.Layout layout) {
+    visitInt(mv, layout.fields.size());
+    mv.visitTypeInsn(ANEWARRAY, "java/lang/Object");
+    int field = 0;
+    for(Type fieldType: layout.fields.values()) {
+      mv.visitInsn(DUP);
+      visitInt(mv, field++);
+      mv.visitVarInsn(ILOAD, 0);
+      switch(fieldType.getSort()) {
+      case Type.OBJECT:
+      case Type.ARRAY:
+        mv.visitTypeInsn(ANEWARRAY, (fieldType.getSort() == Type.OBJECT)? fieldType.getInternalName(): fieldType.getDescriptor());
+        break;
+      default:
+        mv.visitIntInsn(NEWARRAY, newArrayOperand(fieldType));
+      }
+      mv.visitInsn(AASTORE);
+    }
+    mv.visitInsn(ARETURN);
+  }
+
+  private static int newArrayOperand(Type type) {
+    switch(type.getSort()) {
+    case Type.BOOLEAN:
+      return T_BOOLEAN;
+    case Type.CHAR:
+      return T_CHAR;
+    case Type.BYTE:
+      return T_BYTE;
+    case Type.SHORT:
+      return T_SHORT;
+    case Type.INT:
+      return T_INT;
+    case Type.FLOAT:
+      return T_FLOAT;
+    case Type.LONG:
+      return T_LONG;
+    case Type.DOUBLE:
+      return T_DOUBLE;
+    default:
+      throw new IllegalArgumentException("not a primitive type " + type);
+    }
+  }
+
+  // arraycopy(src, srcPos, dest, destPos, length), all the component arrays have the same length
+  private static void arraycopy(MethodVisitor mv, Scalarizer.Layout layout) {
+    for(int field = 0; field < layout.fields.size(); field++) {
+      mv.visitVarInsn(ALOAD, 0);
+      visitInt(mv, field);
+      mv.visitInsn(AALOAD);
+      mv.visitVarInsn(ILOAD, 1);
+      mv.visitVarInsn(ALOAD, 2);
+      visitInt(mv, field);
+      mv.visitInsn(AALOAD);
+      mv.visitVarInsn(ILOAD, 3);
+      mv.visitVarInsn(ILOAD, 4);
+      mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "arraycopy", "(Ljava/lang/Object;ILjava/lang/Object;II)V", false);
+    }
+    mv.visitInsn(RETURN);
+  }
+
+  // copyOf(holder, newLength) or copyOfRange(holder, from, to), Arrays.copyOf* on each component array
+  private static void copy(MethodVisitor mv, Scalarizer.Layout layout, String parameters) {
+    visitInt(mv, layout.fields.size());
+    mv.visitTypeInsn(ANEWARRAY, "java/lang/Object");
+    int field = 0;
+    for(Type fieldType: layout.fields.values()) {
+      mv.visitInsn(DUP);
+      visitInt(mv, field);
+      visitComponent(mv, 0, field++, fieldType);
+      for(int i = 0; i < parameters.length(); i++) {
+        mv.visitVarInsn(ILOAD, 1 + i);
+      }
+      String arrayDesc = isPrimitive(fieldType)? componentType(fieldType).getDescriptor(): "[Ljava/lang/Object;";
+      String name = (parameters.length() == 1)? "copyOf": "copyOfRange";
+      mv.visitMethodInsn(INVOKESTATIC, "java/util/Arrays", name, "(" + arrayDesc + parameters + ")" + arrayDesc, false);
+      mv.visitInsn(AASTORE);
+    }
+    mv.visitInsn(ARETURN);
+  }
+
+  // fill(holder, value) or fill(holder, from, to, value), Arrays.fill on each component array
+  private static void fill(MethodVisitor mv, Scalarizer.Layout layout, String elementType, String desc) {
+    Type[] parameterTypes = Type.getArgumentTypes(desc);
+    int value = parameterTypes.length - 1;
+    String range = (value == 1)? "": "II";
+    int field = 0;
+    for(Map.Entry<String, Type> entry: layout.fields.entrySet()) {
+      String fieldKey = entry.getKey();
+      Type fieldType = entry.getValue();
+      visitComponent(mv, 0, field++, fieldType);
+      for(int i = 1; i < value; i++) {
+        mv.visitVarInsn(ILOAD, i);
+      }
+      mv.visitVarInsn(ALOAD, value);
+      mv.visitFieldInsn(GETFIELD, elementType, fieldName(fieldKey, fieldType), fieldType.getDescriptor());
+      String arrayDesc = isPrimitive(fieldType)? componentType(fieldType).getDescriptor(): "[Ljava/lang/Object;";
+      String valueDesc = isPrimitive(fieldType)? fieldType.getDescriptor(): "Ljava/lang/Object;";
+      mv.visitMethodInsn(INVOKESTATIC, "java/util/Arrays", "fill", "(" + arrayDesc + range + valueDesc + ")V", false);
+    }
+    mv.visitInsn(RETURN);
+  }
+
+  private static boolean isPrimitive(Type type) {
+    return type.getSort() != Type.OBJECT && type.getSort() != Type.ARRAY;
+  }
+
+  private void generateOffHeap(MethodVisitor mv, String name, String elementType, String desc) {
+    int[] offsets = offsets(elementType);
+    int size = offsets[offsets.length - 1];
+    switch(name) {
+    case "offset":
+      offset(mv, size);
+      break;
+    case "newArray":
+      newBuffer(mv, size);
+      break;
+    case "arraycopy":
+      copyBuffer(mv, size);
+      break;
+    case "copyOf":
+    case "copyOfRange":
+      copyOfBuffer(mv, elementType, size, name.equals("copyOfRange"));
+      break;
+    default:
+      fillBuffer(mv, elementType, desc, offsets);
+    }
+  }
+
+  // length(buffer), the capacity is a multiple of the size of an element
+  private static void visitLength(MethodVisitor mv, int size) {
+    mv.visitMethodInsn(INVOKEVIRTUAL, "java/nio/ByteBuffer", "capacity", "()I", false);
+    visitInt(mv, size);
+    mv.visitInsn(IDIV);
+  }
+
+  // offset(buffer, index), the offset of the element at index
+  private static void offset(MethodVisitor mv, int size) {
+    Label fail = new Label();
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitJumpInsn(IFLT, fail);
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitVarInsn(ALOAD, 0);
+    visitLength(mv, size);
+    mv.visitJumpInsn(IF_ICMPGE, fail);
+    mv.visitVarInsn(ILOAD, 1);
+    visitInt(mv, size);
+    mv.visitInsn(IMUL);
+    mv.visitInsn(IRETURN);
+    mv.visitLabel(fail);
+    ArrayIntrinsics.throwNew(mv, "java/lang/ArrayIndexOutOfBoundsException", "", 1, "", -1, "");
+  }
+
+  // newArray(length), a direct buffer is zeroed
+  private static void newBuffer(MethodVisitor mv, int size) {
+    Label positive = new Label();
+    mv.visitVarInsn(ILOAD, 0);
+    mv.visitJumpInsn(IFGE, positive);
+    ArrayIntrinsics.throwNew(mv, "java/lang/NegativeArraySizeException", "", 0, "", -1, "");
+    mv.visitLabel(positive);
+    Label ok = new Label();
+    mv.visitVarInsn(ILOAD, 0);
+    visitInt(mv, Integer.MAX_VALUE / size);
+    mv.visitJumpInsn(IF_ICMPLE, ok);
+    mv.visitTypeInsn(NEW, "java/lang/OutOfMemoryError");
+    mv.visitInsn(DUP);
+    mv.visitLdcInsn("Requested array size exceeds the capacity of a buffer");
+    mv.visitMethodInsn(INVOKESPECIAL, "java/lang/OutOfMemoryError", "<init>", "(Ljava/lang/String;)V", false);
+    mv.visitInsn(ATHROW);
+    mv.visitLabel(ok);
+    mv.visitVarInsn(ILOAD, 0);
+    visitInt(mv, size);
+    mv.visitInsn(IMUL);
+    mv.visitMethodInsn(INVOKESTATIC, "java/nio/ByteBuffer", "allocateDirect", "(I)Ljava/nio/ByteBuffer;", false);
+    mv.visitMethodInsn(INVOKESTATIC, "java/nio/ByteOrder", "nativeOrder", "()Ljava/nio/ByteOrder;", false);
+    mv.visitMethodInsn(INVOKEVIRTUAL, "java/nio/ByteBuffer", "order", "(Ljava/nio/ByteOrder;)Ljava/nio/ByteBuffer;", false);
+    mv.visitInsn(ARETURN);
+  }
+
+  // arraycopy(src, srcPos, dest, destPos, length), a bulk copy between two views of the buffers,
+  // the copy between direct buffers works like a memmove so the source and the destination can overlap
+  private static void copyBuffer(MethodVisitor mv, int size) {
+    Label fail = new Label();
+    Label ok = new Label();
+    mv.visitVarInsn(ILOAD, 4);
+    mv.visitJumpInsn(IFLT, fail);
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitJumpInsn(IFLT, fail);
+    mv.visitVarInsn(ILOAD, 3);
+    mv.visitJumpInsn(IFLT, fail);
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitVarInsn(ALOAD, 0);
+    visitLength(mv, size);
+    mv.visitVarInsn(ILOAD, 4);
+    mv.visitInsn(ISUB);
+    mv.visitJumpInsn(IF_ICMPGT, fail);
+    mv.visitVarInsn(ILOAD, 3);
+    mv.visitVarInsn(ALOAD, 2);
+    visitLength(mv, size);
+    mv.visitVarInsn(ILOAD, 4);
+    mv.visitInsn(ISUB);
+    mv.visitJumpInsn(IF_ICMPGT, fail);
+    mv.visitJumpInsn(GOTO, ok);
+    mv.visitLabel(fail);
+    ArrayIntrinsics.throwNew(mv, "java/lang/ArrayIndexOutOfBoundsException", "arraycopy: srcPos ", 1, ", length ", 4, "");
+    mv.visitLabel(ok);
+    // source = src.duplicate().position(srcPos * size).limit((srcPos + length) * size)
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitMethodInsn(INVOKEVIRTUAL, "java/nio/ByteBuffer", "duplicate", "()Ljava/nio/ByteBuffer;", false);
+    mv.visitInsn(DUP);
+    mv.visitVarInsn(ILOAD, 1);
+    visitInt(mv, size);
+    mv.visitInsn(IMUL);
+    visitPosition(mv, "position");
+    mv.visitInsn(DUP);
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitVarInsn(ILOAD, 4);
+    mv.visitInsn(IADD);
+    visitInt(mv, size);
+    mv.visitInsn(IMUL);
+    visitPosition(mv, "limit");
+    mv.visitVarInsn(ASTORE, 5);
+    // dest.duplicate().position(destPos * size).put(source)
+    mv.visitVarInsn(ALOAD, 2);
+    mv.visitMethodInsn(INVOKEVIRTUAL, "java/nio/ByteBuffer", "duplicate", "()Ljava/nio/ByteBuffer;", false);
+    mv.visitInsn(DUP);
+    mv.visitVarInsn(ILOAD, 3);
+    visitInt(mv, size);
+    mv.visitInsn(IMUL);
+    visitPosition(mv, "position");
+    mv.visitVarInsn(ALOAD, 5);
+    mv.visitMethodInsn(INVOKEVIRTUAL, "java/nio/ByteBuffer", "put", "(Ljava/nio/ByteBuffer;)Ljava/nio/ByteBuffer;", false);
+    mv.visitInsn(POP);
+    mv.visitInsn(RETURN);
+  }
+
+  // buffer, value -> , Buffer.position(int) and Buffer.limit(int) are overridden with another return type since 9
+  private static void visitPosition(MethodVisitor mv, String name) {
+    mv.visitMethodInsn(INVOKEVIRTUAL, "java/nio/Buffer", name, "(I)Ljava/nio/Buffer;", false);
+    mv.visitInsn(POP);
+  }
+
+  // copyOf(buffer, newLength) or copyOfRange(buffer, from, to), a new buffer and an arraycopy
+  private void copyOfBuffer(MethodVisitor mv, String elementType, int size, boolean range) {
+    int from = range? 1: -1;
+    int newLength = range? 3: 1;
+    int copy = newLength + 1;
+    if (range) {
+      mv.visitVarInsn(ILOAD, 2);
+      mv.visitVarInsn(ILOAD, 1);
+      mv.visitInsn(ISUB);
+      mv.visitVarInsn(ISTORE, newLength);
+      Label ok = new Label();
+      mv.visitVarInsn(ILOAD, newLength);
+      mv.visitJumpInsn(IFGE, ok);
+      ArrayIntrinsics.throwNew(mv, "java/lang/IllegalArgumentException", "", 1, " > ", 2, "");
+      mv.visitLabel(ok);
+    }
+    mv.visitVarInsn(ILOAD, newLength);
+    String newArrayDesc = request("newArray", SegmentedArrays.NEW_ARRAY_DESC, elementType);
+    mv.visitMethodInsn(INVOKESTATIC, owner, helperName("newArray", elementType), newArrayDesc, false);
+    mv.visitVarInsn(ASTORE, copy);
+    // arraycopy(buffer, from, copy, 0, min(length(buffer) - from, newLength))
+    mv.visitVarInsn(ALOAD, 0);
+    if (range) {
+      mv.visitVarInsn(ILOAD, from);
+    } else {
+      mv.visitInsn(ICONST_0);
+    }
+    mv.visitVarInsn(ALOAD, copy);
+    mv.visitInsn(ICONST_0);
+    mv.visitVarInsn(ALOAD, 0);
+    visitLength(mv, size);
+    if (range) {
+      mv.visitVarInsn(ILOAD, from);
+      mv.visitInsn(ISUB);
+    }
+    mv.visitVarInsn(ILOAD, newLength);
+    mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "min", "(II)I", false);
+    String arraycopyDesc = request("arraycopy", SegmentedArrays.ARRAYCOPY_DESC, elementType);
+    mv.visitMethodInsn(INVOKESTATIC, owner, helperName("arraycopy", elementType), arraycopyDesc, false);
+    mv.visitVarInsn(ALOAD, copy);
+    mv.visitInsn(ARETURN);
+  }
+
+  // fill(buffer, value) or fill(buffer, from, to, value), the fields of the value are stored in local variables
+  private void fillBuffer(MethodVisitor mv, String elementType, String desc, int[] offsets) {
+    int size = offsets[offsets.length - 1];
+    int value = Type.getArgumentTypes(desc).length - 1;
+    int offset = value + 1;
+    int end = offset + 1;
+    if (value == 1) {
+      mv.visitInsn(ICONST_0);
+      mv.visitVarInsn(ISTORE, offset);
+      mv.visitVarInsn(ALOAD, 0);
+      visitLength(mv, size);
+    } else {
+      ArrayIntrinsics.rangeCheck(mv, 0, 1, 2, visitor -> visitLength(visitor, size));
+      mv.visitVarInsn(ILOAD, 1);
+      visitInt(mv, size);
+      mv.visitInsn(IMUL);
+      mv.visitVarInsn(ISTORE, offset);
+      mv.visitVarInsn(ILOAD, 2);
+    }
+    visitInt(mv, size);
+    mv.visitInsn(IMUL);
+    mv.visitVarInsn(ISTORE, end);
+    Scalarizer.Layout layout = layouts.get(elementType);
+    int slot = end + 1;
+    ArrayList<Integer> slots = new ArrayList<>();
+    for(Map.Entry<String, Type> entry: layout.fields.entrySet()) {
+      Type fieldType = entry.getValue();
+      mv.visitVarInsn(ALOAD, value);
+      mv.visitFieldInsn(GETFIELD, elementType, fieldName(entry.getKey(), fieldType), fieldType.getDescriptor());
+      mv.visitVarInsn(fieldType.getOpcode(ISTORE), slot);
+      slots.add(slot);
+      slot += fieldType.getSize();
+    }
+    // for(; offset < end; offset += size) { buffer.putX(offset + offsets[i], field_i); ... }
+    Label loop = new Label();
+    Label exit = new Label();
+    mv.visitLabel(loop);
+    mv.visitVarInsn(ILOAD, offset);
+    mv.visitVarInsn(ILOAD, end);
+    mv.visitJumpInsn(IF_ICMPGE, exit);
+    int field = 0;
+    for(Type fieldType: layout.fields.values()) {
+      mv.visitVarInsn(ALOAD, 0);
+      mv.visitVarInsn(ILOAD, offset);
+      if (offsets[field] != 0) {
+        visitInt(mv, offsets[field]);
+        mv.visitInsn(IADD);
+      }
+      mv.visitVarInsn(fieldType.getOpcode(ILOAD), slots.get(field++));
+      mv.visitMethodInsn(INVOKEVIRTUAL, "java/nio/ByteBuffer", "put" + accessorSuffix(fieldType), "(I" + accessorDesc(fieldType) + ")Ljava/nio/ByteBuffer;", false);
+      mv.visitInsn(POP);
+    }
+    mv.visitIincInsn(offset, size);
+    mv.visitJumpInsn(GOTO, loop);
+    mv.visitLabel(exit);
+    mv.visitInsn(RETURN);
+  }
+}
@@ -0,0 +1,229 @@
+package fr.umlv.valuetypify;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * A cache of the transformed classes, so a class that has not changed is not transformed again.
+ *
+ * The key of a class is a hash of its class file, of the value capable classes it references
+ * (their names and the hashes of their class files) and of the configuration of the transformer,
+ * so a class is transformed again only if its content changes, if a class it references becomes
+ * (or stops to be) a value capable class or if a value capable class it references changes.
+ *
+ * The cache has two optional tiers, a bounded in memory LRU cache and an on-disk cache.
+ * The on-disk cache is bounded too, when it grows over its maximum size, the least recently used classes
+ * (by last modified time, a read touches the file) are removed, removing the directory is always safe.
+ *
+ * The cache can be used by several threads and the on-disk cache by several processes at the same time.
+ */
+final class TransformCache {
+  /** The default maximum number of bytes of the on-disk cache. */
+  static final long DEFAULT_MAX_DISK = 256 << 20;
+
+  private final Path directory;                       // null if there is no on-disk cache
+  private final LinkedHashMap<String, byte[]> memory; // access order, guarded by itself
+  private final long maxMemory;
+  private long memorySize;                            // guarded by memory
+  private final long maxDisk;
+  private final AtomicLong diskSize;                  // an estimate, other processes may share the directory
+  private final Object evictionLock = new Object();
+  private final AtomicInteger hits = new AtomicInteger();
+  private final AtomicInteger misses = new AtomicInteger();
+
+  private TransformCache(Path directory, long maxMemory, long maxDisk, long diskSize) {
+    this.directory = directory;
+    this.maxMemory = maxMemory;
+    this.memory = new LinkedHashMap<>(16, 0.75f, true);
+    this.maxDisk = maxDisk;
+    this.diskSize = new AtomicLong(diskSize);
+  }
+
+  static TransformCache open(Path directory) throws IOException {
+    return open(directory, 0);
+  }
+
+  static TransformCache open(Path directory, long maxMemory) throws IOException {
+    return open(directory, maxMemory, DEFAULT_MAX_DISK);
+  }
+
+  /**
+   * Creates a cache that keep at most {@code maxMemory} bytes of transformed classes in memory
+   * in front of an optional on-disk cache of at most {@code maxDisk} bytes.
+   */
+  static TransformCache open(Path directory, long maxMemory, long maxDisk) throws IOException {
+    long diskSize = 0;
+    if (directory != null) {
+      Files.createDirectories(directory);
+      diskSize = diskEntries(directory).stream().mapToLong(entry -> entry.size).sum();
+    }
+    return new TransformCache(directory, maxMemory, maxDisk, diskSize);
+  }
+
+  private static final class DiskEntry {
+    final Path path;
+    final long size;
+    final long lastModified;
+
+    DiskEntry(Path path, long size, long lastModified) {
+      this.path = path;
+      this.size = size;
+      this.lastModified = lastModified;
+    }
+  }
+
+  // the class files of the on-disk cache, the temporary files are skipped
+  private static List<DiskEntry> diskEntries(Path directory) throws IOException {
+    ArrayList<DiskEntry> entries = new ArrayList<>();
+    try(Stream<Path> paths = Files.walk(directory, 2)) {
+      for(Iterator<Path> it = paths.iterator(); it.hasNext(); ) {
+        Path path = it.next();
+        if (!path.getFileName().toString().endsWith(".class")) {
+          continue;
+        }
+        try {
+          BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+          entries.add(new DiskEntry(path, attributes.size(), attributes.lastModifiedTime().toMillis()));
+        } catch(NoSuchFileException e) {
+          // removed by another process
+        }
+      }
+    }
+    return entries;
+  }
+
+  static String key(String configuration, byte[] classFile, Collection<String> valueCapableClasses) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+    digest.update(configuration.getBytes(UTF_8));
+    digest.update((byte)0);
+    digest.update(classFile);
+    for(String valueCapableClass: valueCapableClasses) {
+      digest.update((byte)0);
+      digest.update(valueCapableClass.getBytes(UTF_8));
+    }
+    byte[] hash = digest.digest();
+    StringBuilder builder = new StringBuilder(hash.length * 2);
+    for(byte b: hash) {
+      builder.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return builder.toString();
+  }
+
+  private Path path(String key) {
+    return directory.resolve(key.substring(0, 2)).resolve(key.substring(2) + ".class");
+  }
+
+  Optional<byte[]> get(String key) throws IOException {
+    byte[] code;
+    synchronized(memory) {
+      code = memory.get(key);
+    }
+    if (code == null && directory != null) {
+      Path path = path(key);
+      try {
+        code = Files.readAllBytes(path);
+        Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));  // recently used
+        putInMemory(key, code);
+      } catch(NoSuchFileException e) {
+        // not found or evicted
+      }
+    }
+    if (code == null) {
+      misses.incrementAndGet();
+      return Optional.empty();
+    }
+    hits.incrementAndGet();
+    return Optional.of(code);
+  }
+
+  private void putInMemory(String key, byte[] code) {
+    if (code.length > maxMemory) {
+      return;
+    }
+    synchronized(memory) {
+      byte[] oldCode = memory.put(key, code);
+      memorySize += code.length - ((oldCode == null)? 0: oldCode.length);
+      for(Iterator<byte[]> it = memory.values().iterator(); memorySize > maxMemory; ) {  // evict the least recently used
+        memorySize -= it.next().length;
+        it.remove();
+      }
+    }
+  }
+
+  void put(String key, byte[] code) throws IOException {
+    putInMemory(key, code);
+    if (directory == null) {
+      return;
+    }
+    Path path = path(key);
+    Files.createDirectories(path.getParent());
+    // write in a temporary file first so a concurrent reader never sees a partial class
+    Path temp = Files.createTempFile(path.getParent(), null, ".tmp");
+    try {
+      Files.write(temp, code);
+      try {
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+      } catch(AtomicMoveNotSupportedException e) {
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    if (diskSize.addAndGet(code.length) > maxDisk) {
+      evict();
+    }
+  }
+
+  // remove the least recently used classes until the on-disk cache is at 3/4 of its maximum size,
+  // so the directory is not scanned at each put
+  private void evict() throws IOException {
+    synchronized(evictionLock) {
+      if (diskSize.get() <= maxDisk) {  // already evicted by another thread
+        return;
+      }
+      List<DiskEntry> entries = diskEntries(directory);
+      entries.sort(Comparator.comparingLong(entry -> entry.lastModified));
+      long size = entries.stream().mapToLong(entry -> entry.size).sum();
+      long target = maxDisk - maxDisk / 4;
+      for(Iterator<DiskEntry> it = entries.iterator(); size > target && it.hasNext(); ) {
+        DiskEntry entry = it.next();
+        Files.deleteIfExists(entry.path);
+        size -= entry.size;
+      }
+      diskSize.set(size);
+    }
+  }
+
+  int hits() {
+    return hits.get();
+  }
+
+  int misses() {
+    return misses.get();
+  }
+}
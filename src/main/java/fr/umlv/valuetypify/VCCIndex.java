@@ -0,0 +1,104 @@
+package fr.umlv.valuetypify;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * The list of the value capable classes of a jar, with the hash of their class file as written in the jar,
+ * stored in the transformed jar so a jar that depends on it doesn't have to scan its classes again.
+ *
+ * The format is a text file, a header line with the version followed by one line per value capable class
+ * <pre>
+ *   valuetypify-index 3
+ *   internal/name hexadecimal-sha-256
+ * </pre>
+ * The index lists all the value capable classes of the jar, a class of the jar that is not listed
+ * is not a value capable class.
+ * An index whose classes are missing or have a different hash is stale and the jar is scanned,
+ * a class added to the jar after the index was written is still trusted to not be a value capable class.
+ * Since the version 2, the value capable classes of the jar have their static twins (see {@link StaticTwins}),
+ * since the version 3, they also have their value factories.
+ */
+final class VCCIndex {
+  static final String ENTRY_NAME = "META-INF/valuetypify/vcc.index";
+  private static final String HEADER = "valuetypify-index";
+  private static final int VERSION = 3;
+
+  private final TreeMap<String, String> hashes;   // sorted to be deterministic
+
+  VCCIndex() {
+    this.hashes = new TreeMap<>();
+  }
+
+  void add(String className, byte[] classFile) {
+    hashes.put(className, hash(classFile));
+  }
+
+  /**
+   * Returns the value capable classes and the hash of their class file.
+   */
+  Map<String, String> hashes() {
+    return Collections.unmodifiableMap(hashes);
+  }
+
+  static String hash(byte[] data) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+    byte[] hash = digest.digest(data);
+    StringBuilder builder = new StringBuilder(hash.length * 2);
+    for(byte b: hash) {
+      builder.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return builder.toString();
+  }
+
+  byte[] toByteArray() {
+    StringBuilder builder = new StringBuilder();
+    builder.append(HEADER).append(' ').append(VERSION).append('\n');
+    hashes.forEach((className, hash) -> builder.append(className).append(' ').append(hash).append('\n'));
+    return builder.toString().getBytes(UTF_8);
+  }
+
+  /**
+   * Read the index of a jar if the jar has one with a supported version.
+   */
+  static Optional<VCCIndex> read(RawZip.Reader reader) throws IOException {
+    Optional<RawZip.Entry> entry = reader.getEntry(ENTRY_NAME);
+    if (!entry.isPresent()) {
+      return Optional.empty();
+    }
+    try(BufferedReader lineReader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(reader.read(entry.get())), UTF_8))) {
+      String header = lineReader.readLine();
+      if (header == null || !header.equals(HEADER + ' ' + VERSION)) {
+        return Optional.empty();   // unknown version, scan the jar
+      }
+      VCCIndex index = new VCCIndex();
+      String line;
+      while((line = lineReader.readLine()) != null) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        int space = line.indexOf(' ');
+        if (space == -1) {
+          return Optional.empty();  // corrupted, scan the jar
+        }
+        index.hashes.put(line.substring(0, space), line.substring(space + 1));
+      }
+      return Optional.of(index);
+    }
+  }
+}
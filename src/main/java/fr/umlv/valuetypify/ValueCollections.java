@@ -0,0 +1,336 @@
+package fr.umlv.valuetypify;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.SimpleRemapper;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+/**
+ * The replacement of the collections of the JDK that store value capable classes by the flat collections
+ * of the package {@code fr.umlv.valuetypify.runtime}.
+ *
+ * A collection of the runtime is a template written in term of a placeholder class {@code Element},
+ * it's copied for a value capable class (named by example {@code Color$$vlist}, in the package of the value capable class)
+ * with {@code Element} replaced by the value capable class, so its private array of elements is flattened
+ * by the backend like any other array owned by a private field.
+ *
+ * A {@code new ArrayList<>()} (or a {@code HashMap}, an {@code ArrayDeque}) is redirected to a copy
+ * if the collection doesn't escape the method, i.e. it's only the receiver of methods that the template implements
+ * (called on the class or on one of the interfaces of the JDK), and if all the elements (the values of a map)
+ * inserted in the collection are provably non null instances of the same value capable class.
+ */
+final class ValueCollections {
+  private static final Type NULL_TYPE = Type.getObjectType("null");
+  private static final String ELEMENT = "fr/umlv/valuetypify/runtime/Element";
+  private static final String ELEMENT_DESC = "L" + ELEMENT + ";";
+
+  // a collection of the runtime and the collection of the JDK it replaces
+  private static final class Template {
+    final String name;
+    final String suffix;          // the suffix of the name of the copies
+    final String jdkClass;
+    final Set<String> owners;     // the JDK class and the interfaces whose methods are replaced
+    final HashMap<String, String> methods = new HashMap<>();   // name + erased desc -> desc of the template
+    final byte[] classFile;
+
+    Template(String name, String suffix, String jdkClass, List<String> interfaces) throws IOException {
+      this.name = name;
+      this.suffix = suffix;
+      this.jdkClass = jdkClass;
+      this.owners = new HashSet<>(interfaces);
+      owners.add(jdkClass);
+      ClassReader reader;
+      try(InputStream input = ValueCollections.class.getResourceAsStream('/' + name + ".class")) {
+        if (input == null) {
+          throw new IOException("template " + name + " not found");
+        }
+        reader = new ClassReader(input);
+      }
+      this.classFile = reader.b;
+      reader.accept(new ClassVisitor(ASM6) {
+        @Override
+        public MethodVisitor visitMethod(int access, String methodName, String desc, String signature, String[] exceptions) {
+          if ((access & (ACC_PUBLIC | ACC_STATIC)) == ACC_PUBLIC) {
+            methods.put(methodName + desc.replace(ELEMENT_DESC, "Ljava/lang/Object;"), desc);
+          }
+          return null;
+        }
+      }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    }
+  }
+
+  // the copy of a template for a value capable class
+  private static final class Copy {
+    final Template template;
+    final String vcc;
+    final String name;
+    final Set<String> users = new HashSet<>();   // the classes that use the copy
+    byte[] classFile;
+
+    Copy(Template template, String vcc) {
+      this.template = template;
+      this.vcc = vcc;
+      this.name = vcc + template.suffix;
+    }
+
+    String desc(String desc) {
+      return desc.replace(ELEMENT_DESC, Type.getObjectType(vcc).getDescriptor());
+    }
+
+    void generate() {
+      HashMap<String, String> mapping = new HashMap<>();
+      mapping.put(template.name, name);
+      mapping.put(ELEMENT, vcc);
+      ClassWriter writer = new ClassWriter(0);  // the frames are still valid, Element and the value capable class are final
+      new ClassReader(template.classFile).accept(new ClassRemapper(new ClassVisitor(ASM6, writer) {
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+          super.visit(version, access | ACC_SYNTHETIC, name, signature, superName, interfaces);
+        }
+        @Override
+        public void visitSource(String source, String debug) {
+          // the source is the template
+        }
+      }, new SimpleRemapper(mapping)), 0);
+      classFile = writer.toByteArray();
+    }
+  }
+
+  private final Predicate<String> isVCC;
+  private final HashMap<String, Template> templates = new HashMap<>();   // JDK class -> template
+  private final TreeMap<String, Copy> copies = new TreeMap<>();          // copy name -> copy
+  private final ClassHierarchy hierarchy;
+
+  private ValueCollections(Predicate<String> isVCC, ClassPath classPath) throws IOException {
+    this.isVCC = isVCC;
+    this.hierarchy = new ClassHierarchy(classPath::find);
+    for(Template template: Arrays.asList(
+        new Template("fr/umlv/valuetypify/runtime/ValueList", "$$vlist", "java/util/ArrayList",
+            Arrays.asList("java/util/List", "java/util/Collection")),
+        new Template("fr/umlv/valuetypify/runtime/ValueMap", "$$vmap", "java/util/HashMap",
+            Arrays.asList("java/util/Map")),
+        new Template("fr/umlv/valuetypify/runtime/ValueDeque", "$$vdeque", "java/util/ArrayDeque",
+            Arrays.asList("java/util/Deque", "java/util/Queue", "java/util/Collection")))) {
+      templates.put(template.jdkClass, template);
+    }
+  }
+
+  /**
+   * Returns the replacement of the collections of the jars or null if no collection is replaced.
+   */
+  static ValueCollections of(ClassPath classPath, List<Path> jars, Predicate<String> isVCC) throws IOException {
+    ValueCollections collections = new ValueCollections(isVCC, classPath);
+    for(Path jar: jars) {
+      RawZip.Reader input = classPath.jar(jar);
+      for(RawZip.Entry entry: input.entries()) {
+        if (entry.name.endsWith(".class")) {
+          ClassNode node = collections.classNode(input.read(entry));
+          if (node != null) {
+            for(MethodNode method: node.methods) {
+              for(Site site: collections.sites(node.name, method)) {
+                collections.copies.computeIfAbsent(site.name, __ -> new Copy(site.template, site.vcc)).users.add(node.name);
+              }
+            }
+          }
+        }
+      }
+    }
+    if (collections.copies.isEmpty()) {
+      return null;
+    }
+    collections.copies.values().forEach(Copy::generate);
+    return collections;
+  }
+
+  // the class if it references a collection of the JDK that can be replaced, null otherwise
+  private ClassNode classNode(byte[] classFile) {
+    ClassReader reader = new ClassReader(classFile);
+    if (!ConstantPoolScanner.anyReferencedClass(reader, templates::containsKey)) {
+      return null;
+    }
+    ClassNode node = new ClassNode(ASM6);
+    reader.accept(node, 0);
+    return node;
+  }
+
+  /**
+   * Returns the super class of a copy of a collection or the class itself if it's not a copy.
+   */
+  String superClass(String className) {
+    return copies.containsKey(className)? "java/lang/Object": className;
+  }
+
+  /**
+   * Returns the copies of the collections (internal name -> class file) used by the classes of a jar.
+   */
+  Map<String, byte[]> copiedClasses(RawZip.Reader input) {
+    LinkedHashMap<String, byte[]> classes = new LinkedHashMap<>();
+    copies.forEach((name, copy) -> {
+      if (copy.users.stream().anyMatch(user -> input.getEntry(user + ".class").isPresent())) {
+        classes.put(name, copy.classFile);
+      }
+    });
+    return classes;
+  }
+
+  /**
+   * Returns the class with the collections that use a copy redirected
+   * or the class file itself if there is no such collection.
+   */
+  byte[] redirect(byte[] classFile) {
+    ClassNode node = classNode(classFile);
+    if (node == null) {
+      return classFile;
+    }
+    boolean redirected = false;
+    for(MethodNode method: node.methods) {
+      for(Site site: sites(node.name, method)) {
+        Copy copy = copies.get(site.name);
+        if (copy != null) {
+          site.redirect(copy);
+          redirected = true;
+        }
+      }
+    }
+    if (!redirected) {
+      return classFile;
+    }
+    ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+      @Override
+      protected String getCommonSuperClass(String type1, String type2) {
+        String superClass1 = superClass(type1);
+        String superClass2 = superClass(type2);
+        return superClass1.equals(superClass2)? superClass1: hierarchy.getCommonSuperClass(superClass1, superClass2);
+      }
+    };
+    node.accept(writer);
+    return writer.toByteArray();
+  }
+
+  // a collection of the JDK that can be replaced by a copy
+  private static final class Site {
+    final Template template;
+    final String vcc;
+    final String name;
+    final TypeInsnNode newInsn;
+    final List<AbstractInsnNode> calls;
+
+    Site(Template template, String vcc, TypeInsnNode newInsn, List<AbstractInsnNode> calls) {
+      this.template = template;
+      this.vcc = vcc;
+      this.name = vcc + template.suffix;
+      this.newInsn = newInsn;
+      this.calls = calls;
+    }
+
+    void redirect(Copy copy) {
+      newInsn.desc = copy.name;
+      for(AbstractInsnNode insn: calls) {
+        MethodInsnNode methodInsn = (MethodInsnNode)insn;
+        if (methodInsn.getOpcode() == INVOKEINTERFACE) {
+          methodInsn.setOpcode(INVOKEVIRTUAL);
+        }
+        methodInsn.owner = copy.name;
+        methodInsn.desc = copy.desc(template.methods.get(methodInsn.name + methodInsn.desc));
+        methodInsn.itf = false;
+      }
+    }
+  }
+
+  // the collections of a method that can be replaced
+  private List<Site> sites(String owner, MethodNode method) {
+    List<TypeInsnNode> newInsns = new ArrayList<>();
+    for(AbstractInsnNode insn: method.instructions.toArray()) {
+      if (insn.getOpcode() == NEW && templates.containsKey(((TypeInsnNode)insn).desc)) {
+        newInsns.add((TypeInsnNode)insn);
+      }
+    }
+    if (newInsns.isEmpty()) {
+      return Collections.emptyList();
+    }
+    Scalarizer.Uses uses = new Scalarizer.Uses();
+    Frame<BasicValue>[] frames;
+    try {
+      new Analyzer<>(uses).analyze(owner, method);
+      frames = Specializer.typeAnalyzer().analyze(owner, method);
+    } catch (AnalyzerException e) {
+      throw new UncheckedIOException(new IOException(e));
+    }
+    Map<AbstractInsnNode, List<AbstractInsnNode>> loads = uses.loads();
+    ArrayList<Site> sites = new ArrayList<>();
+    for(TypeInsnNode newInsn: newInsns) {
+      Template template = templates.get(newInsn.desc);
+      List<AbstractInsnNode> calls = Specializer.members(newInsn, uses, loads);
+      if (calls == null) {
+        continue;
+      }
+      String vcc = elementType(template, calls, method, frames);
+      if (vcc != null) {
+        sites.add(new Site(template, vcc, newInsn, calls));
+      }
+    }
+    return sites;
+  }
+
+  // the value capable class of the elements inserted in a collection or null if the collection can not be replaced
+  private String elementType(Template template, List<AbstractInsnNode> calls, MethodNode method, Frame<BasicValue>[] frames) {
+    String vcc = null;
+    for(AbstractInsnNode insn: calls) {
+      if (!(insn instanceof MethodInsnNode)) {
+        return null;
+      }
+      MethodInsnNode methodInsn = (MethodInsnNode)insn;
+      String desc = template.methods.get(methodInsn.name + methodInsn.desc);
+      if (desc == null || !template.owners.contains(methodInsn.owner) ||
+          (methodInsn.getOpcode() == INVOKESPECIAL) != methodInsn.name.equals("<init>") ||
+          (methodInsn.getOpcode() == INVOKESPECIAL && !methodInsn.owner.equals(template.jdkClass))) {
+        return null;
+      }
+      Frame<BasicValue> frame = frames[method.instructions.indexOf(insn)];
+      Type[] parameterTypes = Type.getArgumentTypes(desc);
+      int base = frame.getStackSize() - parameterTypes.length;
+      for(int i = 0; i < parameterTypes.length; i++) {
+        if (!parameterTypes[i].getDescriptor().equals(ELEMENT_DESC)) {
+          continue;
+        }
+        Type type = frame.getStack(base + i).getType();
+        if (type == null || type.getSort() != Type.OBJECT || NULL_TYPE.equals(type) || !isVCC.test(type.getInternalName()) ||
+            (vcc != null && !vcc.equals(type.getInternalName()))) {
+          return null;
+        }
+        vcc = type.getInternalName();
+      }
+    }
+    return vcc;
+  }
+}
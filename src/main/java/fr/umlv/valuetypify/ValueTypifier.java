@@ -10,40 +10,52 @@ import static org.objectweb.asm.Opcodes.VBOX;
 import static org.objectweb.asm.Opcodes.VSTORE;
 import static org.objectweb.asm.Opcodes.VUNBOX;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.io.UncheckedIOException;
-import java.nio.file.Files;
+import java.lang.reflect.UndeclaredThrowableException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
-import java.util.stream.Stream;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.ClassRemapper;
 import org.objectweb.asm.commons.Remapper;
 import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.FieldInsnNode;
 import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
 import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
@@ -53,6 +65,8 @@ import org.objectweb.asm.tree.analysis.Analyzer;
 import org.objectweb.asm.tree.analysis.AnalyzerException;
 import org.objectweb.asm.tree.analysis.BasicInterpreter;
 import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.Interpreter;
 import org.objectweb.asm.util.Printer;
 import org.objectweb.asm.util.Textifier;
 import org.objectweb.asm.util.TraceClassVisitor;
@@ -62,9 +76,59 @@ public class ValueTypifier {
   static final boolean REWRITE_VALUETYPE_ARRAY = true;
   
   final AnnotationOracle oracle;
+  final TransformCache cache;       // null if there is no cache
+  final ClassHierarchy hierarchy;   // null to let ASM load the classes
+  final StaticTwins staticTwins;    // null if the calls on a value type are not redirected to the static twins
+  final boolean segmentArrays;      // true if the arrays owned by the private fields are segmented
+  final Scalarizer scalarizer;      // null if the generated bytecode uses the value types of the MVT
+  final Specializer specializer;    // null if the generic classes are not specialized
+  final ValueCollections collections;  // null if the collections of the JDK are not replaced
   
   ValueTypifier(AnnotationOracle oracle) {
+    this(oracle, null, null, null);
+  }
+  
+  ValueTypifier(AnnotationOracle oracle, TransformCache cache, ClassHierarchy hierarchy) {
+    this(oracle, cache, hierarchy, null);
+  }
+  
+  ValueTypifier(AnnotationOracle oracle, TransformCache cache, ClassHierarchy hierarchy, StaticTwins staticTwins) {
+    this(oracle, cache, hierarchy, staticTwins, false);
+  }
+  
+  ValueTypifier(AnnotationOracle oracle, TransformCache cache, ClassHierarchy hierarchy, StaticTwins staticTwins, boolean segmentArrays) {
+    this(oracle, cache, hierarchy, staticTwins, segmentArrays, null);
+  }
+  
+  ValueTypifier(AnnotationOracle oracle, TransformCache cache, ClassHierarchy hierarchy, StaticTwins staticTwins, boolean segmentArrays, Scalarizer scalarizer) {
+    this(oracle, cache, hierarchy, staticTwins, segmentArrays, scalarizer, null);
+  }
+  
+  ValueTypifier(AnnotationOracle oracle, TransformCache cache, ClassHierarchy hierarchy, StaticTwins staticTwins, boolean segmentArrays, Scalarizer scalarizer, Specializer specializer) {
+    this(oracle, cache, hierarchy, staticTwins, segmentArrays, scalarizer, specializer, null);
+  }
+  
+  ValueTypifier(AnnotationOracle oracle, TransformCache cache, ClassHierarchy hierarchy, StaticTwins staticTwins, boolean segmentArrays, Scalarizer scalarizer, Specializer specializer, ValueCollections collections) {
     this.oracle = Objects.requireNonNull(oracle);
+    this.cache = cache;
+    this.hierarchy = hierarchy;
+    this.staticTwins = staticTwins;
+    this.segmentArrays = segmentArrays;
+    this.scalarizer = scalarizer;
+    this.specializer = specializer;
+    this.collections = collections;
+  }
+  
+  /**
+   * The options that change the generated code, part of the key of the cache.
+   * The hierarchy changes the computed frames, the specializer and the value collections
+   * change the calls (the agent also runs without the static twins once over budget).
+   */
+  String configuration() {
+    return "valuetypify-7 rewrite-array=" + REWRITE_VALUETYPE_ARRAY + " segment-arrays=" + segmentArrays +
+        " static-twins=" + (staticTwins != null) + " hierarchy=" + (hierarchy != null) +
+        " specialize=" + (specializer != null) + " value-collections=" + (collections != null) +
+        " backend=" + ((scalarizer == null)? "mvt": "stock struct-of-arrays=" + scalarizer.structOfArrays + " off-heap=" + scalarizer.offHeap);
   }
   
   boolean isVCC(Type type) {
@@ -74,16 +138,55 @@ public class ValueTypifier {
     return oracle.isAValueCapableClass(type.getInternalName());
   }
   
+  // the element of an array of arrays is not a value capable class
   Type asElementOfAnArrayOfVCC(Type type) {
     Type elementType;
-    return (type.getSort() == Type.ARRAY && isVCC(elementType = type.getElementType()))? elementType: null;
+    return (type.getSort() == Type.ARRAY && type.getDimensions() == 1 && isVCC(elementType = type.getElementType()))? elementType: null;
   }
   
   static String asValueInternalName(Type type) {
     return ";Q" + type.getInternalName() + "$Value;";
   }
-  static String asArrayOfValueInternalName(Type type) {
-    return "[Q" + type.getInternalName() + "$Value;";
+  static String asArrayOfValueInternalName(Type type, int dimensions) {
+    StringBuilder builder = new StringBuilder();
+    for(int i = 0; i < dimensions; i++) {
+      builder.append('[');
+    }
+    return builder.append(asValueDescriptor(type)).toString();
+  }
+  static String asValueDescriptor(Type type) {
+    return "Q" + type.getInternalName() + "$Value;";
+  }
+  
+  /**
+   * Returns the descriptor of the twin of a method, the value capable classes of the parameters are replaced
+   * by value types, the one of the return type only if valueReturn is true (the method never returns null).
+   */
+  String asTwinDescriptor(String desc, boolean valueReturn) {
+    StringBuilder builder = new StringBuilder().append('(');
+    for(Type parameterType: Type.getArgumentTypes(desc)) {
+      builder.append(isVCC(parameterType)? asValueDescriptor(parameterType): parameterType.getDescriptor());
+    }
+    Type returnType = Type.getReturnType(desc);
+    return builder.append(')').append((valueReturn && isVCC(returnType))? asValueDescriptor(returnType): returnType.getDescriptor()).toString();
+  }
+  static String asTwinName(String name) {
+    return name + "$$value";
+  }
+  
+  /**
+   * Returns the descriptor of the static twin of an instance method of a value capable class,
+   * the receiver is the first parameter.
+   */
+  String asStaticTwinDescriptor(String owner, String desc, boolean valueReturn) {
+    return "(" + asValueDescriptor(Type.getObjectType(owner)) + asTwinDescriptor(desc, valueReturn).substring(1);
+  }
+  
+  /**
+   * Returns the descriptor of the value factory of a constructor of a value capable class.
+   */
+  static String asFactoryDescriptor(String owner, String desc) {
+    return desc.substring(0, desc.length() - 1) + asValueDescriptor(Type.getObjectType(owner));
   }
   
   private static class VTValue extends BasicValue {
@@ -108,7 +211,7 @@ public class ValueTypifier {
     }
     
     VTValue appendAll(Set<AbstractInsnNode> sources) {
-      sources.addAll(sources);
+      this.sources.addAll(sources);
       return this;
     }
     
@@ -118,7 +221,8 @@ public class ValueTypifier {
     }
   }
   
-  void rewriteMethod(String owner, MethodNode methodNode, HashMap<AbstractInsnNode, Patch> patchMap, MethodVisitor mv) {
+  void rewriteMethod(String owner, MethodNode methodNode, HashMap<AbstractInsnNode, Patch> patchMap, boolean valueParameters,
+                     Set<Integer> boxedParameters, Map<Integer, Integer> parameterShadows, MethodVisitor mv) {
     // replace instructions
     InsnList list = methodNode.instructions;
     patchMap.forEach((insn, patch) -> {
@@ -143,7 +247,26 @@ public class ValueTypifier {
     // generate bytecodes
     methodNode.accept(new MethodVisitor(ASM6, mv) {
       private void convertArgumentMaybe(Type parameterType, int slot) {
-        if (isVCC(parameterType)) {
+        if (valueParameters && isVCC(parameterType) && boxedParameters.contains(slot)) {  // a value type that may become null
+          visitVarInsn(VLOAD, slot);
+          visitTypeInsn(VBOX, parameterType.getInternalName());
+          visitVarInsn(ASTORE, slot);
+          return;
+        }
+        if (isVCC(parameterType) && !boxedParameters.contains(slot)) {
+          Integer shadow = parameterShadows.get(slot);
+          if (valueParameters) {  // the parameter is already a value type
+            if (shadow != null) {
+              visitVarInsn(VLOAD, slot);
+              visitTypeInsn(VBOX, parameterType.getInternalName());
+              visitVarInsn(ASTORE, shadow);
+            }
+            return;
+          }
+          if (shadow != null) {  // keep the boxed parameter for the loops
+            visitVarInsn(ALOAD, slot);
+            visitVarInsn(ASTORE, shadow);
+          }
           visitVarInsn(ALOAD, slot);
           visitTypeInsn(VUNBOX, asValueInternalName(parameterType));
           visitVarInsn(VSTORE, slot);
@@ -229,384 +352,1720 @@ public class ValueTypifier {
     return value instanceof VTValue;
   }
   
+  private static final Type NULL_TYPE = Type.getObjectType("null");
+  
+  // null merged with a precise type keeps the precise type (an array of value types must stay one)
+  static BasicValue mergeNull(BasicValue v, BasicValue w) {
+    if (NULL_TYPE.equals(v.getType()) && isReference(w)) {
+      return w;
+    }
+    if (NULL_TYPE.equals(w.getType()) && isReference(v)) {
+      return v;
+    }
+    return v.equals(w)? v: BasicValue.UNINITIALIZED_VALUE;
+  }
+  
+  static boolean isReference(BasicValue value) {
+    Type type = value.getType();
+    return type != null && (type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY);
+  }
   
   
-  private void convert(OutputStream outputStream, InputStream inputStream) throws IOException {
-    ClassReader reader = new ClassReader(inputStream);
-    ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_FRAMES);
-    ClassVisitor visitor = writer;
-    if (REWRITE_VALUETYPE_ARRAY) {
-      visitor = new ClassRemapper(writer, new Remapper() {
+  
+  /**
+   * The twins of the methods of a class. A twin is a private synthetic copy of a method that takes
+   * its value capable classes as value types and returns a value type if the method never returns null,
+   * the calls from the methods of the class to a method that can not be overridden (static, private or final)
+   * are redirected to its twin so no box is needed at the call boundary. The original methods are not changed.
+   */
+  class Twins {
+    private final String owner;
+    private final int classAccess;
+    private final HashMap<String, Integer> methods = new HashMap<>();        // name + desc -> access
+    private final LinkedHashSet<String> requests = new LinkedHashSet<>();   // name + desc
+    private final Set<String> nonNullReturns;                               // name + desc
+    
+    Twins(ClassReader reader, Set<String> flattenedFields) {
+      this.owner = reader.getClassName();
+      this.classAccess = reader.getAccess();
+      boolean[] valueReturn = { false };
+      reader.accept(new ClassVisitor(ASM6) {
         @Override
-        public String mapDesc(String desc) {
-          Type type = Type.getType(desc);
-          Type elementType = asElementOfAnArrayOfVCC(type);
-          return (elementType == null)? desc: asArrayOfValueInternalName(elementType);
+        public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+          methods.put(name + desc, access);
+          valueReturn[0] |= isVCC(Type.getReturnType(desc));
+          return null;
         }
-      });
+      }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+      if (!valueReturn[0]) {
+        nonNullReturns = Collections.emptySet();
+        return;
+      }
+      ClassNode classNode = new ClassNode(ASM6);
+      reader.accept(classNode, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+      try {
+        // a flattened field is never null
+        nonNullReturns = Nullness.nonNullReturns(classNode,
+            fieldInsn -> fieldInsn.owner.equals(owner) && flattenedFields.contains(fieldInsn.name + fieldInsn.desc));
+      } catch (AnalyzerException e) {
+        throw new UncheckedIOException(new IOException(e));
+      }
     }
-    reader.accept(new ClassVisitor(ASM6, visitor) {
-      String owner;
-      
-      @Override
-      public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
-        super.visit(version, access, name, signature, superName, interfaces);
-        owner = name;
+    
+    /**
+     * Returns true if the twin of the method returns a value type, the method never returns null.
+     */
+    boolean returnsValueType(String name, String desc) {
+      return isVCC(Type.getReturnType(desc)) && nonNullReturns.contains(name + desc);
+    }
+    
+    /**
+     * Returns true if a call from the class to the method can be redirected to a twin.
+     */
+    boolean canHaveTwin(String owner, String name, String desc) {
+      Integer access;
+      if (!owner.equals(this.owner) || (classAccess & ACC_INTERFACE) != 0 || name.charAt(0) == '<' ||
+          (access = methods.get(name + desc)) == null || (access & (ACC_ABSTRACT | ACC_NATIVE)) != 0) {
+        return false;
       }
-      
-      @Override
-      public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
-        MethodVisitor methodWriter = super.visitMethod(access, name, desc, signature, exceptions);
+      if (!returnsValueType(name, desc) && Arrays.stream(Type.getArgumentTypes(desc)).noneMatch(ValueTypifier.this::isVCC)) {
+        return false;   // nothing to gain
+      }
+      if ((access & ACC_STATIC) != 0) {
+        return true;
+      }
+      if (isVCC(Type.getObjectType(owner))) {
+        return false;   // the receiver would have to be boxed
+      }
+      return (access & (ACC_PRIVATE | ACC_FINAL)) != 0 || (classAccess & ACC_FINAL) != 0;
+    }
+    
+    /**
+     * Returns true if a call from the class never returns null, the called method can not be overridden.
+     */
+    boolean isNonNullCall(MethodInsnNode methodInsn) {
+      Integer access;
+      return !methodInsn.itf && methodInsn.owner.equals(owner) && nonNullReturns.contains(methodInsn.name + methodInsn.desc) &&
+          (access = methods.get(methodInsn.name + methodInsn.desc)) != null &&
+          ((classAccess & ACC_FINAL) != 0 || (access & (ACC_STATIC | ACC_PRIVATE | ACC_FINAL)) != 0);
+    }
+    
+    void request(String name, String desc) {
+      requests.add(name + desc);
+    }
+    
+    /**
+     * Returns the twins requested but not yet generated and mark them as generated.
+     */
+    Set<String> takeRequests(Set<String> generated) {
+      LinkedHashSet<String> pendings = new LinkedHashSet<>(requests);
+      pendings.removeAll(generated);
+      generated.addAll(pendings);
+      return pendings;
+    }
+  }
+  
+  /**
+   * A method that is first analyzed to find the values that can be value types and then rewritten.
+   */
+  class MethodTransformer extends MethodNode {
+    final String owner;
+    final MethodVisitor methodWriter;
+    final HashMap<AbstractInsnNode, Patch> patchMap = new HashMap<>();
+    final HashMap<Integer, Integer> parameterShadows = new HashMap<>();
+    final HashSet<Integer> boxedParameters = new HashSet<>();         // parameters not unboxed
+    final ArrayList<BoxingReport.Decision> decisions = new ArrayList<>();
+    final ClassReader classReader;                        // null if there is no report
+    final List<BoxingReport.MethodReport> reports;        // null if there is no report
+    final Twins twins;                                    // null if the calls are not redirected to twins
+    final Set<String> flattenedFields;                    // name + desc
+    final ArrayIntrinsics arrayIntrinsics;                // null if the intrinsics are not used
+    final boolean valueSignature;                         // true if the method is emitted as a twin
+    final HashMap<AbstractInsnNode, BoxingReport.BoxCause> boxCauses = new HashMap<>();
+    AbstractInsnNode currentInsn;                         // the instruction being analyzed
+    Frame<Nullness.Value>[] nullness;                     // null if the nullness is not analyzed (subroutines)
+    final BitSet nullableLocals = new BitSet();           // the local variables that may be null stay objects
+    final HashSet<AbstractInsnNode> fallthroughs = new HashSet<>();  // constant null checks that jump to the next instruction
+    int temporary;                                        // a free local variable after the shadows
+    
+    MethodTransformer(String owner, MethodVisitor methodWriter, int access, String name, String desc, String signature, String[] exceptions) {
+      this(owner, methodWriter, null, null, null, Collections.emptySet(), null, false, access, name, desc, signature, exceptions);
+    }
+    
+    MethodTransformer(String owner, MethodVisitor methodWriter, ClassReader classReader, List<BoxingReport.MethodReport> reports,
+                      Twins twins, Set<String> flattenedFields, ArrayIntrinsics arrayIntrinsics, boolean valueSignature,
+                      int access, String name, String desc, String signature, String[] exceptions) {
+      super(ASM6, access, name, desc, signature, exceptions);
+      this.owner = owner;
+      this.methodWriter = methodWriter;
+      this.classReader = classReader;
+      this.reports = reports;
+      this.twins = twins;
+      this.flattenedFields = flattenedFields;
+      this.arrayIntrinsics = arrayIntrinsics;
+      this.valueSignature = valueSignature;
+    }
+    
+    // true if the method is emitted as a twin (or a static twin) that returns a value type
+    boolean returnsValueType() {
+      return valueSignature && twins.returnsValueType(name, desc);
+    }
+    
+    void patch(AbstractInsnNode insn, Patch patch) {
+      Patch oldPatch = patchMap.put(insn, patch);
+      if (oldPatch != null && oldPatch.box) {  // an instruction analyzed again stays boxed
+        patch.box = true;
+      }
+    }
+    void markBoxed(BasicValue value) {
+      markBoxed(value, false);
+    }
+    void markBoxed(BasicValue value, boolean merge) {
+      Set<AbstractInsnNode> sources = ((VTValue)value).sources;
+      sources.forEach(source -> patchMap.get(source).box = true);
+      if (reports != null) {
+        sources.stream()
+          .filter(source -> source.getOpcode() != NEW)  // reported with the constructor call
+          .forEach(source -> boxCauses.putIfAbsent(source, new BoxingReport.BoxCause(currentInsn, merge)));
+      }
+    }
+    
+    /**
+     * Analyze the method and compute the patches, can be called several times.
+     * If unboxing some parameters costs more than it saves, the method is analyzed again with these parameters boxed.
+     */
+    void analyze() throws AnalyzerException {
+      analyzeNullness();
+      boxedParameters.clear();
+      nullableLocals.stream().forEach(boxedParameters::add);  // a parameter that may be null is not unboxed
+      BoxHoisting hoisting = analyzeOnce();
+      if (!valueSignature && chooseBoxedParameters(hoisting)) {  // the parameters of a twin are free
+        analyzeOnce();
+      }
+    }
+    
+    // the parameters of a twin and the elements of an array of value types are not null
+    private void analyzeNullness() throws AnalyzerException {
+      nullness = new Nullness(this::isFlattened, this::isNonNullCall,
+          type -> valueSignature && isVCC(type),
+          arrayType -> REWRITE_VALUETYPE_ARRAY && asElementOfAnArrayOfVCC(arrayType) != null).analyze(owner, this, Collections.emptyList());
+      nullableLocals.clear();
+      if (nullness == null) {
+        return;
+      }
+      for(int i = 0; i < nullness.length; i++) {
+        Frame<Nullness.Value> frame = nullness[i];
+        AbstractInsnNode insn = instructions.get(i);
+        if (frame == null) {
+          continue;
+        }
+        int opcode = insn.getOpcode();
+        if (opcode == ASTORE && mayBeNullVCC(frame.getStack(frame.getStackSize() - 1))) {
+          nullableLocals.set(((VarInsnNode)insn).var);
+        }
+        int var;
+        if ((opcode == IFNULL || opcode == IFNONNULL) && (var = Nullness.testedLocal(insn)) != -1 &&
+            mayBeNullVCC(frame.getLocal(var))) {
+          nullableLocals.set(var);   // a parameter tested against null
+        }
+      }
+    }
+    
+    // a slot can be reused by a variable of another type
+    private boolean mayBeNullVCC(Nullness.Value value) {
+      return (value.state & Nullness.NULL) != 0 && (value.type == null || isVCC(value.type));
+    }
+    
+    // a call to a twin or to a static twin that never returns null
+    private boolean isNonNullCall(MethodInsnNode methodInsn) {
+      if (twins != null && twins.isNonNullCall(methodInsn)) {
+        return true;
+      }
+      int opcode = methodInsn.getOpcode();
+      return staticTwins != null && (opcode == INVOKEVIRTUAL || opcode == INVOKESPECIAL) && !methodInsn.itf &&
+          isVCC(Type.getObjectType(methodInsn.owner)) &&
+          staticTwins.hasStaticTwin(methodInsn.owner, methodInsn.name, methodInsn.desc) &&
+          staticTwins.returnsValueType(methodInsn.owner, methodInsn.name, methodInsn.desc);
+    }
+    
+    /**
+     * Returns the nullness (see {@link Nullness}) of a value on the stack before an instruction, depth 0 is the top.
+     */
+    int nullness(AbstractInsnNode insn, int depth) {
+      Frame<Nullness.Value> frame = (nullness == null)? null: nullness[instructions.indexOf(insn)];
+      if (frame == null) {
+        return Nullness.NULL | Nullness.OBJECT;
+      }
+      return frame.getStack(frame.getStackSize() - 1 - depth).state;
+    }
+    
+    private BoxHoisting analyzeOnce() throws AnalyzerException {
+      patchMap.clear();
+      boxCauses.clear();
+      BoxHoisting hoisting = new BoxHoisting(instructions);
+      Analyzer<BasicValue> analyzer = new Analyzer<BasicValue>(new BasicInterpreter(ASM6) {
+        private int newValueState = 0;
         
-        // do not rewrite constructors too much (FIXME !)
-        if (name.equals("<init>")) {
-          if (REWRITE_VALUETYPE_ARRAY) {
-            return new MethodVisitor(ASM6, methodWriter) {
-              @Override
-              public void visitTypeInsn(int opcode, String type) {
-                if (opcode == ANEWARRAY) {
-                  Type elementType = Type.getObjectType(type);
-                  if (isVCC(elementType)) {
-                    super.visitTypeInsn(ANEWARRAY, asValueInternalName(elementType));
-                    return;
-                  }
-                }
-                super.visitTypeInsn(opcode, type);
+        @Override
+        public BasicValue newValue(Type type) {
+          switch(newValueState++) {
+          case 0:  // return type
+            return super.newValue(type);
+            
+          default: // this type, parameter type & local type
+            if (type == null) {  // uninitialized or top for double/long
+              return super.newValue(type);
+            }
+            
+            if (isVCC(type) && !boxedParameters.contains(newValueState - 2)) {
+              return new VTValue(type);
+            }
+            BasicValue value = super.newValue(type);
+            // use precise type for objects and arrays
+            return (value == BasicValue.REFERENCE_VALUE)? new BasicValue(type): value;  
+          }
+        }
+
+        @Override
+        public BasicValue newOperation(AbstractInsnNode insn) throws AnalyzerException {
+          switch(insn.getOpcode()) {
+          case GETSTATIC: {
+            FieldInsnNode fieldInsn = (FieldInsnNode)insn;
+            Type type = Type.getType(fieldInsn.desc);
+            if (isVCC(type) ) {
+              if (isFlattened(fieldInsn)) {
+                patch(insn, new Patch((mv, __) -> mv.visitFieldInsn(GETSTATIC, fieldInsn.owner, fieldInsn.name, asValueDescriptor(type)), VALUE, type));
+              } else {
+                patch(insn, new Patch(DEFAULT_ACTION, OBJECT, type));
               }
-            };
-          } else {
-            return methodWriter;
+              return new VTValue(type).append(insn);
+            }
+            return super.newOperation(insn);
+          }
+          case NEW: {
+            Type type = Type.getObjectType(((TypeInsnNode)insn).desc);
+            if (isVCC(type)) {
+              // the allocation may be removed, see construct()
+              patch(insn, new Patch(DEFAULT_ACTION, NONE, null));
+              return new VTValue(type).append(insn);
+            }
+            return super.newOperation(insn);
+          }
+          default:
+            return super.newOperation(insn);
           }
         }
-        
-        return new MethodNode(ASM6, access, name, desc, signature, exceptions) {
-          final HashMap<AbstractInsnNode, Patch> patchMap = new HashMap<>();
-          
-          void patch(AbstractInsnNode insn, Patch patch) {
-            patchMap.put(insn, patch);
+
+        @Override
+        public BasicValue copyOperation(AbstractInsnNode insn, BasicValue value) throws AnalyzerException {
+          switch(insn.getOpcode()) {
+          case ASTORE: {
+            if (!isValueType(value)) {
+              return super.copyOperation(insn, value);
+            }
+            VarInsnNode varInsn = (VarInsnNode)insn;
+            if (nullableLocals.get(varInsn.var)) {  // a value type can not be null
+              markBoxed(value);
+              return new BasicValue(value.getType());
+            }
+            patch(insn, new Patch((mv, __) -> mv.visitVarInsn(VSTORE, varInsn.var), NONE, null));
+            return new VTValue(value.getType());
           }
-          void markBoxed(BasicValue value) {
-            Set<AbstractInsnNode> sources = ((VTValue)value).sources;
-            sources.forEach(source -> patchMap.get(source).box = true); 
+          case ALOAD:
+            if (!isValueType(value)) {
+              return super.copyOperation(insn, value);
+            }
+            VarInsnNode varInsn = (VarInsnNode)insn;
+            patch(insn, new Patch((mv, __) -> mv.visitVarInsn(VLOAD, varInsn.var), VALUE, value.getType()));
+            return new VTValue(value.getType()).append(insn);
+          default:
+            return super.copyOperation(insn, value);
           }
-          
-          @Override
-          public void visitEnd() {
-            super.visitEnd();
-            
-            // analyze the method
-            Analyzer<BasicValue> analyzer = new Analyzer<>(new BasicInterpreter(ASM6) {
-              private int newValueState = 0;
-              
-              @Override
-              public BasicValue newValue(Type type) {
-                switch(newValueState++) {
-                case 0:  // return type
-                  return super.newValue(type);
-                  
-                default: // this type, parameter type & local type
-                  if (type == null) {  // uninitialized or top for double/long
-                    return super.newValue(type);
-                  }
-                  
-                  if (isVCC(type)) {
-                    return new VTValue(type);
-                  }
-                  BasicValue value = super.newValue(type);
-                  // use precise type for objects and arrays
-                  return (value == BasicValue.REFERENCE_VALUE)? new BasicValue(type): value;  
-                }
-              }
+        }
 
-              @Override
-              public BasicValue newOperation(AbstractInsnNode insn) throws AnalyzerException {
-                switch(insn.getOpcode()) {
-                case GETSTATIC: {
-                  FieldInsnNode fieldInsn = (FieldInsnNode)insn;
-                  Type type = Type.getType(fieldInsn.desc);
-                  if (isVCC(type) ) {
-                    patch(insn, new Patch(DEFAULT_ACTION, VALUE, type));
-                    return new VTValue(type).append(insn);
-                  }
-                  return super.newOperation(insn);
-                }
-                default:
-                  return super.newOperation(insn);
-                }
+        @Override
+        public BasicValue unaryOperation(AbstractInsnNode insn, BasicValue value) throws AnalyzerException {
+          switch(insn.getOpcode()) {
+          case MONITORENTER:
+          case MONITOREXIT:
+            if (isValueType(value)) {
+              throw new AnalyzerException(insn, "try to enter/exit a monitor on a value type !!");
+            }
+            return super.unaryOperation(insn, value);
+            
+          case PUTSTATIC: {
+            FieldInsnNode fieldInsn = (FieldInsnNode)insn;
+            if (isFlattened(fieldInsn)) {
+              storeFlattened(fieldInsn, value);
+              return null;
+            }
+            if (isValueType(value)) {
+              markBoxed(value);
+            }
+            return null;
+          }
+          case INSTANCEOF:
+          case ATHROW: {
+            if (!isValueType(value)) {
+              return super.unaryOperation(insn, value);
+            }
+            markBoxed(value);
+            return null;
+          }
+          case IFNULL:
+          case IFNONNULL: {
+            int state = nullness(insn, 0);
+            boolean mayBeNull = (state & Nullness.NULL) != 0;
+            if (state == 0 || (mayBeNull && state != Nullness.NULL)) {
+              patchMap.remove(insn);  // may have been analyzed before with a value type
+              if (isValueType(value)) {
+                markBoxed(value);
               }
-
-              @Override
-              public BasicValue copyOperation(AbstractInsnNode insn, BasicValue value) throws AnalyzerException {
-                switch(insn.getOpcode()) {
-                case ASTORE: {
-                  if (!isValueType(value)) {
-                    return super.copyOperation(insn, value);
-                  }
-                  VarInsnNode varInsn = (VarInsnNode)insn;
-                  patch(insn, new Patch((mv, __) -> mv.visitVarInsn(VSTORE, varInsn.var), NONE, null));
-                  return new VTValue(value.getType());
-                }
-                case ALOAD:
-                  if (!isValueType(value)) {
-                    return super.copyOperation(insn, value);
-                  }
-                  VarInsnNode varInsn = (VarInsnNode)insn;
-                  patch(insn, new Patch((mv, __) -> mv.visitVarInsn(VLOAD, varInsn.var), VALUE, value.getType()));
-                  return new VTValue(value.getType()).append(insn);
-                default:
-                  return super.copyOperation(insn, value);
-                }
+              return super.unaryOperation(insn, value);
+            }
+            // the value is provably non null (or null), the test is constant, see removeDeadCode()
+            JumpInsnNode jumpInsn = (JumpInsnNode)insn;
+            boolean jump = mayBeNull == (jumpInsn.getOpcode() == IFNULL);
+            patch(insn, new Patch((mv, __) -> {
+              mv.visitInsn(POP);
+              if (jump && !fallthroughs.contains(jumpInsn)) {
+                mv.visitJumpInsn(GOTO, jumpInsn.label.getLabel());
               }
-
-              @Override
-              public BasicValue unaryOperation(AbstractInsnNode insn, BasicValue value) throws AnalyzerException {
-                switch(insn.getOpcode()) {
-                case MONITORENTER:
-                case MONITOREXIT:
-                  if (isValueType(value)) {
-                    throw new AnalyzerException(insn, "try to enter/exit a monitor on a value type !!");
-                  }
-                  return super.unaryOperation(insn, value);
-                  
-                case PUTSTATIC:
-                case INSTANCEOF:
-                case ATHROW:
-                case IFNULL:       // TODO revisit
-                case IFNONNULL: {  // TODO revisit
-                  if (!isValueType(value)) {
-                    return super.unaryOperation(insn, value);
-                  }
-                  markBoxed(value);
-                  return null;
-                }
-                case GETFIELD: {
-                  FieldInsnNode fieldInsn = (FieldInsnNode)insn;
-                  Type type = Type.getType(fieldInsn.desc);
-                  patch(insn, new Patch((mv, defaultAction) -> {
-                      if (isValueType(value)) {
-                        mv.visitFieldInsn(GETFIELD, asValueInternalName(Type.getObjectType(fieldInsn.owner)), fieldInsn.name, fieldInsn.desc);
-                      } else {
-                        defaultAction.run();
-                      }
-                    },
-                    VALUE, type));
-                  return isVCC(type)? new VTValue(type).append(insn): super.unaryOperation(insn, value);
-                }
-                case CHECKCAST: {
-                  TypeInsnNode typeInsn = (TypeInsnNode)insn;
-                  Type type = Type.getObjectType(typeInsn.desc);
-                  if (isValueType(value)) {
-                    markBoxed(value);
-                  }
-                  if (isVCC(type)) {
-                    patch(insn, new Patch(DEFAULT_ACTION, OBJECT, type));
-                    return new VTValue(type).append(insn);
-                  }
-                  return super.unaryOperation(insn, value);
-                }
-                  
-                case ANEWARRAY:
-                  if (REWRITE_VALUETYPE_ARRAY) {
-                    TypeInsnNode typeInsn = (TypeInsnNode)insn;
-                    Type elementType = Type.getObjectType(typeInsn.desc);
-                    if (isVCC(elementType)) {
-                      patch(insn, new Patch((mv, __) -> mv.visitTypeInsn(ANEWARRAY, asValueInternalName(elementType)), NONE, null));
-                    }
-                  }
-                  return super.unaryOperation(insn, value);
-                  
-                default:
-                  return super.unaryOperation(insn, value);
+            }, NONE, null));
+            return null;
+          }
+          case GETFIELD: {
+            FieldInsnNode fieldInsn = (FieldInsnNode)insn;
+            Type type = Type.getType(fieldInsn.desc);
+            String fieldDesc = isFlattened(fieldInsn)? asValueDescriptor(type): fieldInsn.desc;
+            // a field typed by a value capable class is unboxed after the load unless it is flattened
+            State state = !isVCC(type)? NONE: (fieldDesc != fieldInsn.desc)? VALUE: OBJECT;
+            patch(insn, new Patch((mv, defaultAction) -> {
+                if (isValueType(value)) {
+                  mv.visitFieldInsn(GETFIELD, asValueInternalName(Type.getObjectType(fieldInsn.owner)), fieldInsn.name, fieldDesc);
+                } else {
+                  mv.visitFieldInsn(GETFIELD, fieldInsn.owner, fieldInsn.name, fieldDesc);
                 }
+              },
+              state, type));
+            return isVCC(type)? new VTValue(type).append(insn): super.unaryOperation(insn, value);
+          }
+          case CHECKCAST: {
+            TypeInsnNode typeInsn = (TypeInsnNode)insn;
+            Type type = Type.getObjectType(typeInsn.desc);
+            if (isValueType(value) && value.getType().equals(type)) {  // always succeeds
+              patch(insn, new Patch((mv, __) -> { /* empty */ }, NONE, null));
+              return value;
+            }
+            if (isValueType(value)) {
+              markBoxed(value);
+            }
+            if (isVCC(type)) {
+              patch(insn, new Patch(DEFAULT_ACTION, OBJECT, type));
+              return new VTValue(type).append(insn);
+            }
+            return super.unaryOperation(insn, value);
+          }
+            
+          case ANEWARRAY:
+            if (REWRITE_VALUETYPE_ARRAY) {
+              TypeInsnNode typeInsn = (TypeInsnNode)insn;
+              Type elementType = Type.getObjectType(typeInsn.desc);
+              if (isSegmented(Type.getType("[" + elementType.getDescriptor()))) {
+                String helperDesc = arrayIntrinsics.segmentedArrays.request("newArray", SegmentedArrays.NEW_ARRAY_DESC, elementType);
+                patch(insn, new Patch((mv, __) -> mv.visitMethodInsn(INVOKESTATIC, owner, SegmentedArrays.helperName("newArray"), helperDesc, false), NONE, null));
+              } else if (isVCC(elementType)) {
+                patch(insn, new Patch((mv, __) -> mv.visitTypeInsn(ANEWARRAY, asValueInternalName(elementType)), NONE, null));
               }
+            }
+            return super.unaryOperation(insn, value);
+            
+          case ARRAYLENGTH:
+            if (isSegmented(value.getType())) {
+              String helperDesc = arrayIntrinsics.segmentedArrays.request("length", SegmentedArrays.LENGTH_DESC, value.getType().getElementType());
+              patch(insn, new Patch((mv, __) -> mv.visitMethodInsn(INVOKESTATIC, owner, SegmentedArrays.helperName("length"), helperDesc, false), NONE, null));
+            }
+            return super.unaryOperation(insn, value);
+            
+          default:
+            return super.unaryOperation(insn, value);
+          }
+        }
 
-              @Override
-              public BasicValue binaryOperation(AbstractInsnNode insn, BasicValue value1, BasicValue value2) throws AnalyzerException {
-                switch(insn.getOpcode()) {
-                case IF_ACMPEQ:
-                case IF_ACMPNE: {
-                  if (isValueType(value1)) {
-                    markBoxed(value1);
-                  }
-                  if (isValueType(value2)) {
-                    markBoxed(value2);
-                  }
-                  return super.binaryOperation(insn, value1, value2);
-                }
-                case PUTFIELD:
-                  if (isValueType(value2)) {
-                    markBoxed(value2);
-                  }
-                  return super.binaryOperation(insn, value1, value2);
-                case AALOAD: {
-                  Type elementType = asElementOfAnArrayOfVCC(value1.getType());
-                  if (elementType != null) {
-                    if (REWRITE_VALUETYPE_ARRAY) {
-                      patch(insn, new Patch((mv, __) -> mv.visitInsn(VALOAD), VALUE, elementType));
-                    } else {
-                      patch(insn, new Patch(DEFAULT_ACTION, OBJECT, elementType));
-                    }
-                    return new VTValue(elementType).append(insn);
-                  }
-                  return super.binaryOperation(insn, value1, value2);
-                }
-                default:
-                }
-                return super.binaryOperation(insn, value1, value2);
+        @Override
+        public BasicValue binaryOperation(AbstractInsnNode insn, BasicValue value1, BasicValue value2) throws AnalyzerException {
+          switch(insn.getOpcode()) {
+          case IF_ACMPEQ:
+          case IF_ACMPNE: {
+            if (isValueType(value1)) {
+              markBoxed(value1);
+            }
+            if (isValueType(value2)) {
+              markBoxed(value2);
+            }
+            return super.binaryOperation(insn, value1, value2);
+          }
+          case PUTFIELD:
+            if (isFlattened((FieldInsnNode)insn)) {
+              storeFlattened((FieldInsnNode)insn, value2);
+              return super.binaryOperation(insn, value1, value2);
+            }
+            if (isValueType(value2)) {
+              markBoxed(value2);
+            }
+            return super.binaryOperation(insn, value1, value2);
+          case AALOAD: {
+            Type elementType = asElementOfAnArrayOfVCC(value1.getType());
+            if (elementType != null) {
+              if (isSegmented(value1.getType())) {
+                patch(insn, new Patch((mv, __) -> SegmentedArrays.load(mv), VALUE, elementType));
+              } else if (REWRITE_VALUETYPE_ARRAY) {
+                patch(insn, new Patch((mv, __) -> mv.visitInsn(VALOAD), VALUE, elementType));
+              } else {
+                patch(insn, new Patch(DEFAULT_ACTION, OBJECT, elementType));
               }
+              return new VTValue(elementType).append(insn);
+            }
+            Type arrayType = value1.getType();
+            if (arrayType.getSort() == Type.ARRAY && arrayType.getDimensions() > 1) {
+              // use precise type for the arrays of an array of arrays
+              return new BasicValue(Type.getType(arrayType.getDescriptor().substring(1)));
+            }
+            return super.binaryOperation(insn, value1, value2);
+          }
+          default:
+          }
+          return super.binaryOperation(insn, value1, value2);
+        }
 
-              @Override
-              public BasicValue ternaryOperation(AbstractInsnNode insn, BasicValue value1, BasicValue value2, BasicValue value3) throws AnalyzerException {
-                switch(insn.getOpcode()) {
-                case AASTORE:
-                  if (isValueType(value3)) {
-                    if (REWRITE_VALUETYPE_ARRAY) {
-                      Type elementType = value3.getType();
-                      patch(insn, new Patch((mv, __) -> mv.visitInsn(VASTORE), VALUE, elementType));
-                    } else {
-                      markBoxed(value3);
-                    }
-                  }
-                  return super.ternaryOperation(insn, value1, value2, value3);
-                default:
-                  return super.ternaryOperation(insn, value1, value2, value3);
+        @Override
+        public BasicValue ternaryOperation(AbstractInsnNode insn, BasicValue value1, BasicValue value2, BasicValue value3) throws AnalyzerException {
+          switch(insn.getOpcode()) {
+          case AASTORE:
+            if (isSegmented(value1.getType())) {
+              boolean valueType = isValueType(value3);
+              Type elementType = value1.getType().getElementType();
+              patch(insn, new Patch((mv, __) -> {
+                if (!valueType) {
+                  unbox(mv, elementType);
                 }
+                SegmentedArrays.store(mv, temporary);
+              }, NONE, null));
+            } else if (isValueType(value3)) {
+              if (REWRITE_VALUETYPE_ARRAY) {
+                Type elementType = value3.getType();
+                patch(insn, new Patch((mv, __) -> mv.visitInsn(VASTORE), VALUE, elementType));
+              } else {
+                markBoxed(value3);
               }
-
-              @Override
-              public BasicValue naryOperation(AbstractInsnNode insn, List<? extends BasicValue> values) throws AnalyzerException {
-                for(BasicValue value: values) {
-                  if (isValueType(value)) {
-                    markBoxed(value);
-                  }
-                }
-                
-                String desc, name;
-                int opcode = insn.getOpcode();
-                switch(opcode) {
-                case MULTIANEWARRAY:
-                  return super.naryOperation(insn, values);
-                case INVOKEDYNAMIC: {
-                  InvokeDynamicInsnNode indyInsn = (InvokeDynamicInsnNode)insn;
-                  desc = indyInsn.desc;
-                  name = "";
-                  break;
-                }
-                default: {
-                  MethodInsnNode methodInsn = (MethodInsnNode)insn;
-                  desc = methodInsn.desc;
-                  name = methodInsn.name;
-                }
-                }
-                Type type = Type.getReturnType(desc);
-                if (isVCC(type)) {
-                  patch(insn, new Patch(DEFAULT_ACTION, OBJECT, type));
-                  return new VTValue(type).append(insn);
-                }
-                
-                // may need to unbox after the call to the constructor
-                if (opcode == INVOKESPECIAL && name.equals("<init>")) { // constructor call
-                  BasicValue receiverValue =  values.get(0); 
-                  if (isValueType(receiverValue)) {                     // receiver is a value type
-                    patch(insn, new Patch(DEFAULT_ACTION, OBJECT, receiverValue.getType()));
-                    
-                    // register to emit the unbox or not
-                    ((VTValue)receiverValue).append(insn);
-                  }
-                }
-                
-                return super.naryOperation(insn, values);
+            } else if (REWRITE_VALUETYPE_ARRAY) {
+              // an object (a boxed parameter by example) stored in an array of value types
+              Type elementType = asElementOfAnArrayOfVCC(value1.getType());
+              if (elementType != null) {
+                patch(insn, new Patch((mv, __) -> { unbox(mv, elementType); mv.visitInsn(VASTORE); }, NONE, null));
               }
+            }
+            return super.ternaryOperation(insn, value1, value2, value3);
+          default:
+            return super.ternaryOperation(insn, value1, value2, value3);
+          }
+        }
 
-              @Override
-              public void returnOperation(AbstractInsnNode insn, BasicValue value, BasicValue expected) throws AnalyzerException {
-                switch(insn.getOpcode()) {
-                case ARETURN: {
-                  if (!isValueType(value)) {
-                    return;
-                  }
-                  markBoxed(value);
-                  return;
-                }
-                default:
-                  return;
-                }
-              }
+        @Override
+        public BasicValue naryOperation(AbstractInsnNode insn, List<? extends BasicValue> values) throws AnalyzerException {
+          if (canCallStaticTwin(insn, values)) {
+            callStaticTwin((MethodInsnNode)insn, values);
+            Type returnType = Type.getReturnType(((MethodInsnNode)insn).desc);
+            return isVCC(returnType)? new VTValue(returnType).append(insn): super.naryOperation(insn, values);
+          }
+          if (canCallTwin(insn, values)) {
+            callTwin((MethodInsnNode)insn, values);
+            Type returnType = Type.getReturnType(((MethodInsnNode)insn).desc);
+            return isVCC(returnType)? new VTValue(returnType).append(insn): super.naryOperation(insn, values);
+          }
+          if (isRequireNonNull(insn)) {
+            BasicValue value = values.get(0);
+            if (isValueType(value) && Nullness.isNonNull(nullness(insn, values.size() - 1))) {
+              // the check is removed, the other argument (the message) is popped
+              int arity = values.size();
+              patch(insn, new Patch((mv, __) -> { if (arity == 2) { mv.visitInsn(POP); } }, NONE, null));
+              return value;
+            }
+            patchMap.remove(insn);  // may have been analyzed before with a value type
+          }
+          if (canCallArrayIntrinsic(insn, values)) {
+            callArrayIntrinsic((MethodInsnNode)insn, values);
+            return super.naryOperation(insn, values);
+          }
+          if (insn.getOpcode() == INVOKESPECIAL && ((MethodInsnNode)insn).name.equals("<init>") && isValueType(values.get(0))) {
+            construct((MethodInsnNode)insn, values);
+            return super.naryOperation(insn, values);
+          }
+          for(BasicValue value: values) {
+            if (isValueType(value)) {
+              markBoxed(value);
+            }
+          }
+          
+          String desc;
+          switch(insn.getOpcode()) {
+          case MULTIANEWARRAY:
+            return super.naryOperation(insn, values);
+          case INVOKEDYNAMIC:
+            desc = ((InvokeDynamicInsnNode)insn).desc;
+            break;
+          default:
+            desc = ((MethodInsnNode)insn).desc;
+          }
+          Type type = Type.getReturnType(desc);
+          if (isVCC(type)) {
+            patch(insn, new Patch(DEFAULT_ACTION, OBJECT, type));
+            return new VTValue(type).append(insn);
+          }
+          return super.naryOperation(insn, values);
+        }
 
-              @Override
-              public BasicValue merge(BasicValue v, BasicValue w) {
-                if (!isValueType(v)) {
-                  if (!isValueType(w)) {
-                    return super.merge(v, w);
-                  }
-                  markBoxed(w);
-                  return super.merge(v, w);
-                } else {
-                  if (!isValueType(w)) {
-                    markBoxed(v);
-                    return super.merge(v, w);
-                  }
-                }
-                if (v.getType().equals(w.getType())) {
-                  return new VTValue(v.getType()).appendAll(((VTValue)v).sources).appendAll(((VTValue)w).sources);
-                }
-                markBoxed(w);
-                markBoxed(v);
-                return super.merge(v, w);
+        @Override
+        public void returnOperation(AbstractInsnNode insn, BasicValue value, BasicValue expected) throws AnalyzerException {
+          switch(insn.getOpcode()) {
+          case ARETURN: {
+            Type returnType = Type.getReturnType(MethodTransformer.this.desc);
+            if (returnsValueType()) {
+              if (isValueType(value)) {
+                patch(insn, new Patch((mv, __) -> mv.visitInsn(VRETURN), NONE, null));
+              } else {
+                patch(insn, new Patch((mv, __) -> { unbox(mv, returnType); mv.visitInsn(VRETURN); }, NONE, null));
               }
-
-            });
-            
-            try {
-              analyzer.analyze(owner, this);
-            } catch (AnalyzerException e) {
-              throw new UncheckedIOException(new IOException(e));
+              return;
             }
-            
-            //DEBUG
-            //TraceClassVisitor traceClassVisitor = new TraceClassVisitor(new PrintWriter(System.err));
-            //rewriteMethod(owner, this, patchMap,
-            //    traceClassVisitor.visitMethod(access, name, desc, signature, exceptions.toArray(new String[0])));
-            //traceClassVisitor.visitEnd();
-            
-            rewriteMethod(owner, this, patchMap, methodWriter);
+            if (!isValueType(value)) {
+              return;
+            }
+            markBoxed(value);
+            return;
+          }
+          default:
+            return;
           }
+        }
 
-          
-        };
-      }
-    }, 0);
+        @Override
+        public BasicValue merge(BasicValue v, BasicValue w) {
+          if (!isValueType(v)) {
+            if (!isValueType(w)) {
+              return mergeNull(v, w);
+            }
+            markBoxed(w, true);
+            return super.merge(v, w);
+          } else {
+            if (!isValueType(w)) {
+              markBoxed(v, true);
+              return super.merge(v, w);
+            }
+          }
+          if (v.getType().equals(w.getType())) {
+            return new VTValue(v.getType()).appendAll(((VTValue)v).sources).appendAll(((VTValue)w).sources);
+          }
+          markBoxed(w, true);
+          markBoxed(v, true);
+          return super.merge(v, w);
+        }
 
-    byte[] code = writer.toByteArray();
-    
-    // DEBUG
-    //ClassReader reader2 = new ClassReader(code);
-    //reader2.accept(new TraceClassVisitor(new PrintWriter(System.err)), 0);
+      }) {
+        @Override
+        protected Frame<BasicValue> newFrame(int nLocals, int nStack) {
+          // track the instruction being analyzed, merges are done after its execution
+          return new Frame<BasicValue>(nLocals, nStack) {
+            @Override
+            public void execute(AbstractInsnNode insn, Interpreter<BasicValue> interpreter) throws AnalyzerException {
+              currentInsn = insn;
+              super.execute(insn, interpreter);
+            }
+          };
+        }
+        
+        @Override
+        protected void newControlFlowEdge(int insn, int successor) {
+          hoisting.addEdge(insn, successor);
+        }
+        
+        @Override
+        protected boolean newControlFlowExceptionEdge(int insn, int successor) {
+          hoisting.addEdge(insn, successor);
+          return true;
+        }
+      };
+      
+      analyzer.analyze(owner, this);
+      hoistBoxes(hoisting);
+      return hoisting;
+    }
+    
+    // a call to a method of the class that has a twin, all the value capable classes arguments must be value types
+    boolean canCallTwin(AbstractInsnNode insn, List<? extends BasicValue> values) {
+      int opcode = insn.getOpcode();
+      if (twins == null || (opcode != INVOKESTATIC && opcode != INVOKESPECIAL && opcode != INVOKEVIRTUAL)) {
+        return false;
+      }
+      MethodInsnNode methodInsn = (MethodInsnNode)insn;
+      if (methodInsn.itf || !twins.canHaveTwin(methodInsn.owner, methodInsn.name, methodInsn.desc)) {
+        return false;
+      }
+      Type[] parameterTypes = Type.getArgumentTypes(methodInsn.desc);
+      int offset = values.size() - parameterTypes.length;   // skip the receiver
+      for(int i = 0; i < parameterTypes.length; i++) {
+        if (isVCC(parameterTypes[i]) && !isValueType(values.get(offset + i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+    
+    // a call on a receiver that is a value type to a method that has a static twin,
+    // all the value capable classes arguments must be value types
+    boolean canCallStaticTwin(AbstractInsnNode insn, List<? extends BasicValue> values) {
+      int opcode = insn.getOpcode();
+      if (staticTwins == null || (opcode != INVOKEVIRTUAL && opcode != INVOKESPECIAL) || !isValueType(values.get(0))) {
+        return false;
+      }
+      MethodInsnNode methodInsn = (MethodInsnNode)insn;
+      if (methodInsn.itf || !isVCC(Type.getObjectType(methodInsn.owner)) ||
+          !staticTwins.hasStaticTwin(methodInsn.owner, methodInsn.name, methodInsn.desc)) {
+        return false;
+      }
+      Type[] parameterTypes = Type.getArgumentTypes(methodInsn.desc);
+      for(int i = 0; i < parameterTypes.length; i++) {
+        if (isVCC(parameterTypes[i]) && !isValueType(values.get(1 + i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+    
+    void callStaticTwin(MethodInsnNode methodInsn, List<? extends BasicValue> values) {
+      Type[] parameterTypes = Type.getArgumentTypes(methodInsn.desc);
+      for(int i = 0; i < parameterTypes.length; i++) {
+        BasicValue value = values.get(1 + i);
+        if (isValueType(value) && !isVCC(parameterTypes[i])) {
+          markBoxed(value);
+        }
+      }
+      
+      String twinName = StaticTwins.asStaticTwinName(methodInsn.name);
+      Type returnType = Type.getReturnType(methodInsn.desc);
+      boolean valueReturn = isVCC(returnType) && staticTwins.returnsValueType(methodInsn.owner, methodInsn.name, methodInsn.desc);
+      String twinDesc = asStaticTwinDescriptor(methodInsn.owner, methodInsn.desc, valueReturn);
+      BiConsumer<MethodVisitor, Runnable> action = (mv, __) -> mv.visitMethodInsn(INVOKESTATIC, methodInsn.owner, twinName, twinDesc, false);
+      // a static twin that may return null returns an object
+      patch(methodInsn, !isVCC(returnType)? new Patch(action, NONE, null): new Patch(action, valueReturn? VALUE: OBJECT, returnType));
+    }
+    
+    void callTwin(MethodInsnNode methodInsn, List<? extends BasicValue> values) {
+      Type[] parameterTypes = Type.getArgumentTypes(methodInsn.desc);
+      int offset = values.size() - parameterTypes.length;
+      for(int i = 0; i < values.size(); i++) {
+        BasicValue value = values.get(i);
+        if (isValueType(value) && (i < offset || !isVCC(parameterTypes[i - offset]))) {
+          markBoxed(value);
+        }
+      }
+      
+      twins.request(methodInsn.name, methodInsn.desc);
+      int opcode = (methodInsn.getOpcode() == INVOKESTATIC)? INVOKESTATIC: INVOKESPECIAL;
+      String twinName = asTwinName(methodInsn.name);
+      boolean valueReturn = twins.returnsValueType(methodInsn.name, methodInsn.desc);
+      String twinDesc = asTwinDescriptor(methodInsn.desc, valueReturn);
+      BiConsumer<MethodVisitor, Runnable> action = (mv, __) -> mv.visitMethodInsn(opcode, methodInsn.owner, twinName, twinDesc, false);
+      Type returnType = Type.getReturnType(methodInsn.desc);
+      // a twin that may return null returns an object, like the original method
+      patch(methodInsn, !isVCC(returnType)? new Patch(action, NONE, null): new Patch(action, valueReturn? VALUE: OBJECT, returnType));
+    }
+    
+    boolean isSegmented(Type arrayType) {
+      return arrayIntrinsics != null && arrayIntrinsics.segmentedArrays != null && arrayIntrinsics.segmentedArrays.isSegmented(arrayType);
+    }
+    
+    // a call to Arrays.copyOf, copyOfRange or fill on an array of value types or to System.arraycopy on a segmented array
+    boolean canCallArrayIntrinsic(AbstractInsnNode insn, List<? extends BasicValue> values) {
+      if (arrayIntrinsics == null) {
+        return false;
+      }
+      if (SegmentedArrays.isArraycopy(insn)) {
+        return isSegmented(values.get(0).getType());
+      }
+      return ArrayIntrinsics.helperName(insn) != null && asElementOfAnArrayOfVCC(values.get(0).getType()) != null;
+    }
+    
+    void callArrayIntrinsic(MethodInsnNode methodInsn, List<? extends BasicValue> values) {
+      Type elementType = asElementOfAnArrayOfVCC(values.get(0).getType());
+      String helperName;
+      String helperDesc;
+      if (isSegmented(values.get(0).getType())) {
+        String desc = SegmentedArrays.isArraycopy(methodInsn)? SegmentedArrays.ARRAYCOPY_DESC: methodInsn.desc;
+        helperName = SegmentedArrays.helperName(methodInsn.name);
+        helperDesc = arrayIntrinsics.segmentedArrays.request(methodInsn.name, desc, elementType);
+      } else {
+        helperName = ArrayIntrinsics.helperName(methodInsn);
+        helperDesc = ArrayIntrinsics.helperDescriptor(methodInsn.desc, elementType);
+        arrayIntrinsics.request(helperName, helperDesc, elementType);
+      }
+      
+      // the value of fill is the last argument, an object is unboxed
+      BasicValue last = values.get(values.size() - 1);
+      boolean unboxLast = methodInsn.name.equals("fill") && !(isValueType(last) && last.getType().equals(elementType));
+      if (isValueType(last) && unboxLast) {
+        markBoxed(last);
+      }
+      patch(methodInsn, new Patch((mv, __) -> {
+        if (unboxLast) {
+          mv.visitTypeInsn(CHECKCAST, elementType.getInternalName());
+          unbox(mv, elementType);
+        }
+        mv.visitMethodInsn(INVOKESTATIC, owner, helperName, helperDesc, false);
+      }, NONE, null));
+    }
+    
+    boolean isFlattened(FieldInsnNode fieldInsn) {
+      return fieldInsn.owner.equals(owner) && flattenedFields.contains(fieldInsn.name + fieldInsn.desc);
+    }
+    
+    // a store in a flattened field, an object is unboxed before being stored
+    void storeFlattened(FieldInsnNode fieldInsn, BasicValue value) {
+      Type type = Type.getType(fieldInsn.desc);
+      String fieldDesc = asValueDescriptor(type);
+      boolean valueType = isValueType(value);
+      patch(fieldInsn, new Patch((mv, __) -> {
+        if (!valueType) {
+          unbox(mv, type);
+        }
+        mv.visitFieldInsn(fieldInsn.getOpcode(), fieldInsn.owner, fieldInsn.name, fieldDesc);
+      }, NONE, null));
+    }
+    
+    /**
+     * A call to the constructor of a value capable class, the NEW, the DUP and the call are replaced
+     * by a call to the value factory if the constructor has one and if the constructed value is not boxed,
+     * otherwise the constructed object is unboxed after the call if it is not boxed.
+     */
+    void construct(MethodInsnNode methodInsn, List<? extends BasicValue> values) {
+      for(int i = 1; i < values.size(); i++) {
+        BasicValue value = values.get(i);
+        if (isValueType(value)) {
+          markBoxed(value);
+        }
+      }
+      
+      VTValue receiverValue = (VTValue)values.get(0);
+      receiverValue.append(methodInsn);  // the DUP of the receiver is the constructed value
+      AbstractInsnNode newInsn = allocation(methodInsn, receiverValue);
+      if (newInsn == null) {
+        patch(methodInsn, new Patch(DEFAULT_ACTION, OBJECT, receiverValue.getType()));
+        return;
+      }
+      
+      // the decision is taken when the code is emitted, the constructed value may be boxed later in the analysis
+      BiConsumer<MethodVisitor, Runnable> allocate = (mv, defaultAction) -> {
+        if (patchMap.get(newInsn).box) {
+          defaultAction.run();
+        }
+      };
+      patch(newInsn, new Patch(allocate, NONE, null));
+      patch(nextInsn(newInsn), new Patch(allocate, NONE, null));
+      String factoryDesc = asFactoryDescriptor(methodInsn.owner, methodInsn.desc);
+      patch(methodInsn, new Patch((mv, defaultAction) -> {
+        if (patchMap.get(newInsn).box) {
+          defaultAction.run();
+          return;
+        }
+        mv.visitMethodInsn(INVOKESTATIC, methodInsn.owner, StaticTwins.FACTORY_NAME, factoryDesc, false);
+      }, NONE, null));
+    }
+    
+    // returns the NEW of a NEW + DUP that creates the receiver of the constructor if the constructor
+    // has a value factory, null otherwise
+    private AbstractInsnNode allocation(MethodInsnNode methodInsn, VTValue receiverValue) {
+      if (staticTwins == null || !staticTwins.hasFactory(methodInsn.owner, methodInsn.desc)) {
+        return null;
+      }
+      AbstractInsnNode newInsn = null;
+      for(AbstractInsnNode source: receiverValue.sources) {
+        if (source == methodInsn) {
+          continue;
+        }
+        if (newInsn != null || source.getOpcode() != NEW) {
+          return null;
+        }
+        newInsn = source;
+      }
+      if (newInsn == null || !((TypeInsnNode)newInsn).desc.equals(methodInsn.owner)) {
+        return null;
+      }
+      AbstractInsnNode dupInsn = nextInsn(newInsn);
+      return (dupInsn != null && dupInsn.getOpcode() == DUP)? newInsn: null;
+    }
     
-    outputStream.write(code);
+    /**
+     * The cost model: a parameter is unboxed in the preamble (one VUNBOX) and each load of the parameter
+     * is either used as a value type or boxed again, each load being weighted by its loop depth.
+     * If the boxes cost more than the loads used as value types save, the parameter is left boxed.
+     * Returns true if at least one parameter is left boxed.
+     */
+    private boolean chooseBoxedParameters(BoxHoisting hoisting) {
+      decisions.clear();
+      HashMap<Integer, int[]> uses = new HashMap<>();  // slot -> [valueUses, boxedUses]
+      int slot = 0;
+      if ((access & ACC_STATIC) == 0) {
+        if (isVCC(Type.getObjectType(owner))) {
+          uses.put(slot, new int[2]);
+        }
+        slot = 1;
+      }
+      for(Type parameterType: Type.getArgumentTypes(desc)) {
+        if (isVCC(parameterType)) {
+          uses.put(slot, new int[2]);
+        }
+        slot += parameterType.getSize();
+      }
+      if (uses.isEmpty()) {
+        return false;
+      }
+      
+      for(AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+        Patch patch;
+        int[] counts;
+        if (insn.getOpcode() != ALOAD || (counts = uses.get(((VarInsnNode)insn).var)) == null || (patch = patchMap.get(insn)) == null) {
+          continue;
+        }
+        int index = instructions.indexOf(insn);
+        if (patch.state != VALUE || !hoisting.reachingStores(index, ((VarInsnNode)insn).var).contains(BoxHoisting.ENTRY)) {
+          continue;  // load of a shadow local or of another value stored in the parameter
+        }
+        counts[patch.box? 1: 0] += hoisting.weight(index);
+      }
+      
+      boolean leaveBoxed = false;
+      for(int parameterSlot: new TreeSet<>(uses.keySet())) {
+        int[] counts = uses.get(parameterSlot);
+        boolean valueType = counts[0] >= counts[1] + 1;   // + 1 for the VUNBOX of the preamble
+        if (!valueType) {
+          boxedParameters.add(parameterSlot);
+          leaveBoxed = true;
+        }
+        decisions.add(new BoxingReport.Decision(parameterSlot, valueType, counts[0], counts[1]));
+      }
+      return leaveBoxed;
+    }
+    
+    /**
+     * A local variable boxed inside a loop that doesn't modify it is boxed once where it is stored
+     * (or not boxed at all for a parameter) in a shadow local variable that is loaded in the loop.
+     */
+    private void hoistBoxes(BoxHoisting hoisting) {
+      parameterShadows.clear();
+      HashMap<String, Integer> shadows = new HashMap<>();
+      HashSet<AbstractInsnNode> shadowedStores = new HashSet<>();
+      for(AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+        Patch patch;
+        if (insn.getOpcode() != ALOAD || (patch = patchMap.get(insn)) == null || !patch.box) {
+          continue;
+        }
+        int var = ((VarInsnNode)insn).var;
+        int index = instructions.indexOf(insn);
+        List<Integer> stores = hoisting.reachingStores(index, var);
+        if (!hoisting.isInvariantInALoop(index, stores) || !canBeShadowed(var, patch.type, stores)) {
+          continue;
+        }
+        
+        Type type = patch.type;
+        int shadow = shadows.computeIfAbsent(var + " " + type.getDescriptor(), __ -> maxLocals + shadows.size());
+        for(int store: stores) {
+          if (store == BoxHoisting.ENTRY) {
+            parameterShadows.put(var, shadow);
+            continue;
+          }
+          AbstractInsnNode storeInsn = instructions.get(store);
+          if (shadowedStores.add(storeInsn)) {
+            patchMap.put(storeInsn, new Patch((mv, __) -> {
+              mv.visitVarInsn(VSTORE, var);
+              mv.visitVarInsn(VLOAD, var);
+              box(mv, type);
+              mv.visitVarInsn(ASTORE, shadow);
+            }, NONE, null));
+          }
+        }
+        patchMap.put(insn, new Patch((mv, __) -> mv.visitVarInsn(ALOAD, shadow), NONE, null));
+      }
+      temporary = maxLocals + shadows.size();
+    }
+    
+    private boolean canBeShadowed(int var, Type type, List<Integer> stores) {
+      for(int store: stores) {
+        if (store == BoxHoisting.ENTRY) {
+          if (!type.equals(parameterType(var))) {
+            return false;
+          }
+          continue;
+        }
+        AbstractInsnNode storeInsn = instructions.get(store);
+        if (storeInsn.getOpcode() != ASTORE || !patchMap.containsKey(storeInsn) ||
+            BoxHoisting.isInATryBlock(instructions, tryCatchBlocks, store)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    
+    // returns the type of the parameter (or the receiver) stored in the local variable var or null
+    private Type parameterType(int var) {
+      int slot = 0;
+      if ((access & ACC_STATIC) == 0) {
+        if (var == 0) {
+          return Type.getObjectType(owner);
+        }
+        slot = 1;
+      }
+      for(Type parameterType: Type.getArgumentTypes(desc)) {
+        if (slot == var) {
+          return parameterType;
+        }
+        slot += parameterType.getSize();
+      }
+      return null;
+    }
+    
+    /**
+     * Removes the instructions only reachable through a null check that is constant (the test is replaced by a POP
+     * or a POP and a GOTO) and the exception handlers that only cover removed instructions.
+     */
+    private void removeDeadCode() {
+      if (nullness == null) {
+        return;
+      }
+      AbstractInsnNode[] insns = instructions.toArray();
+      for(int i = 0; i < insns.length; i++) {
+        if (nullness[i] == null && insns[i].getOpcode() != -1) {  // keep the labels, line numbers and frames
+          patchMap.remove(insns[i]);
+          instructions.remove(insns[i]);
+        }
+      }
+      nullness = null;  // the indexes have changed
+      for(AbstractInsnNode insn: insns) {
+        if ((insn.getOpcode() == IFNULL || insn.getOpcode() == IFNONNULL) && patchMap.containsKey(insn) &&
+            nextInsn(insn) == nextInsn(((JumpInsnNode)insn).label)) {
+          fallthroughs.add(insn);
+        }
+      }
+      tryCatchBlocks.removeIf(block -> {
+        for(AbstractInsnNode insn = block.start; insn != block.end; insn = insn.getNext()) {
+          if (insn.getOpcode() != -1) {
+            return false;
+          }
+        }
+        return true;
+      });
+    }
+    
+    /**
+     * Emit the patched method to the method writer, the instructions of this method are replaced.
+     */
+    void rewrite() {
+      if (reports == null) {
+        removeDeadCode();
+        rewriteMethod(owner, this, patchMap, valueSignature, boxedParameters, parameterShadows, methodWriter);
+        return;
+      }
+      BoxingReport.MethodReport report;
+      if (!valueSignature) {
+        report = new BoxingReport.MethodReport(name, desc);
+      } else if ((access & ACC_STATIC) == 0 && isVCC(Type.getObjectType(owner))) {
+        report = new BoxingReport.MethodReport(StaticTwins.asStaticTwinName(name), asStaticTwinDescriptor(owner, desc, returnsValueType()));
+      } else {
+        report = new BoxingReport.MethodReport(asTwinName(name), asTwinDescriptor(desc, returnsValueType()));
+      }
+      report.addBoxes(classReader, this, boxCauses);
+      report.decisions.addAll(decisions);
+      reports.add(report);
+      removeDeadCode();
+      rewriteMethod(owner, this, patchMap, valueSignature, boxedParameters, parameterShadows, report.counter(methodWriter));
+    }
+    
+    @Override
+    public void visitEnd() {
+      super.visitEnd();
+      
+      try {
+        analyze();
+      } catch (AnalyzerException e) {
+        throw new UncheckedIOException(new IOException(e));
+      }
+      
+      //DEBUG
+      //TraceClassVisitor traceClassVisitor = new TraceClassVisitor(new PrintWriter(System.err));
+      //rewriteMethod(owner, this, patchMap, valueSignature, boxedParameters, parameterShadows,
+      //    traceClassVisitor.visitMethod(access, name, desc, signature, exceptions.toArray(new String[0])));
+      //traceClassVisitor.visitEnd();
+      
+      rewrite();
+    }
   }
   
-  private static void copy(OutputStream jarOutputStream, InputStream inputStream) throws IOException {
-    int read;
-    byte[] buffer = new byte[8192];
-    while((read = inputStream.read()) != -1) {
-      jarOutputStream.write(buffer, 0, read);
+  /**
+   * Returns the fields (name + desc) of a class that are flattened, a private field typed by a value capable class
+   * is stored as a value type. Because a value type can not be null, a field is only flattened if it can not be
+   * observed as null: all the values stored in the field are non null (see {@link Nullness}) and each constructor
+   * (the static initializer for a static field) assigns the field on all paths before {@code this} escapes
+   * or the field is read. The fields of a value capable class, of an interface and of a class that may have
+   * nestmates (that can access its private fields) are not flattened.
+   */
+  Set<String> flattenedFields(ClassReader reader) {
+    if ((reader.getAccess() & ACC_INTERFACE) != 0 || isVCC(Type.getObjectType(reader.getClassName())) ||
+        reader.readUnsignedShort(6) >= 55) {  // major version of Java 11, the nestmates
+      return Collections.emptySet();
     }
+    HashSet<String> fields = new HashSet<>();
+    HashSet<String> staticFields = new HashSet<>();
+    reader.accept(new ClassVisitor(ASM6) {
+      @Override
+      public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+        if ((access & (ACC_PRIVATE | ACC_VOLATILE)) == ACC_PRIVATE && isVCC(Type.getType(desc))) {
+          fields.add(name + desc);
+          if ((access & ACC_STATIC) != 0) {
+            staticFields.add(name + desc);
+          }
+        }
+        return null;
+      }
+    }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    if (fields.isEmpty()) {
+      return fields;
+    }
+    
+    ClassNode classNode = new ClassNode(ASM6);
+    reader.accept(classNode, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    try {
+      // the fields are supposed non null, removing a field may make the others nullable
+      while(fields.removeAll(nullableFields(classNode, fields, staticFields))) {
+        // empty
+      }
+    } catch (AnalyzerException e) {
+      throw new UncheckedIOException(new IOException(e));
+    }
+    return fields;
   }
+  
+  // the fields that may be null if the fields are non null
+  private static Set<String> nullableFields(ClassNode classNode, Set<String> fields, Set<String> staticFields) throws AnalyzerException {
+    String owner = classNode.name;
+    Nullness nullness = new Nullness(fieldInsn -> isField(owner, fieldInsn, fields), __ -> false, __ -> false, __ -> false);
+    HashSet<String> nullables = new HashSet<>();
+    boolean hasStaticInitializer = false;
+    for(MethodNode method: classNode.methods) {
+      boolean constructor = method.name.equals("<init>");
+      boolean staticInitializer = method.name.equals("<clinit>");
+      hasStaticInitializer |= staticInitializer;
+      ArrayList<String> trackedFields = new ArrayList<>();
+      if (constructor || staticInitializer) {
+        fields.stream().filter(field -> staticFields.contains(field) == staticInitializer).forEach(trackedFields::add);
+      }
+      Frame<Nullness.Value>[] frames = nullness.analyze(owner, method, trackedFields);
+      if (frames == null) {  // subroutines are not analyzed
+        return fields;
+      }
+      InsnList instructions = method.instructions;
+      for(int i = 0; i < frames.length; i++) {
+        Frame<Nullness.Value> frame = frames[i];
+        AbstractInsnNode insn = instructions.get(i);
+        if (frame == null || !(insn instanceof FieldInsnNode || insn instanceof MethodInsnNode ||
+            insn instanceof InvokeDynamicInsnNode || insn.getOpcode() == AASTORE || insn.getOpcode() == RETURN)) {
+          continue;
+        }
+        int opcode = insn.getOpcode();
+        if ((opcode == PUTFIELD || opcode == PUTSTATIC) && isField(owner, (FieldInsnNode)insn, fields) && !Nullness.isNonNullOnTop(frame)) {
+          FieldInsnNode fieldInsn = (FieldInsnNode)insn;
+          nullables.add(fieldInsn.name + fieldInsn.desc);
+        }
+        if (trackedFields.isEmpty()) {
+          continue;
+        }
+        if ((opcode == GETFIELD && (frame.getStack(frame.getStackSize() - 1).state & Nullness.THIS) != 0) || opcode == GETSTATIC) {
+          // a read of a field of this before the field is assigned
+          FieldInsnNode fieldInsn = (FieldInsnNode)insn;
+          int index = fieldInsn.owner.equals(owner)? trackedFields.indexOf(fieldInsn.name + fieldInsn.desc): -1;
+          if (index != -1 && !frame.getLocal(Nullness.fieldSlot(method, index)).isNonNull()) {
+            nullables.add(trackedFields.get(index));
+          }
+          continue;
+        }
+        if (opcode == RETURN || (constructor? escapesThis(owner, classNode.superName, insn, frame): callsTheClass(owner, insn))) {
+          // the fields not yet assigned are null or may be observed as null
+          for(int j = 0; j < trackedFields.size(); j++) {
+            if (!frame.getLocal(Nullness.fieldSlot(method, j)).isNonNull()) {
+              nullables.add(trackedFields.get(j));
+            }
+          }
+        }
+      }
+    }
+    if (!hasStaticInitializer) {
+      nullables.addAll(staticFields);
+    }
+    return nullables;
+  }
+  
+  private static boolean isField(String owner, FieldInsnNode fieldInsn, Set<String> fields) {
+    return fieldInsn.owner.equals(owner) && fields.contains(fieldInsn.name + fieldInsn.desc);
+  }
+  
+  // true if the instruction lets this escape in a constructor, the call to the constructor of Object
+  // or to another constructor of the class (that is analyzed separately) is not an escape
+  private static boolean escapesThis(String owner, String superName, AbstractInsnNode insn, Frame<Nullness.Value> frame) {
+    int opcode = insn.getOpcode();
+    int arity;
+    if (insn instanceof MethodInsnNode) {
+      MethodInsnNode methodInsn = (MethodInsnNode)insn;
+      arity = Type.getArgumentTypes(methodInsn.desc).length + ((opcode == INVOKESTATIC)? 0: 1);
+      if (opcode == INVOKESPECIAL && methodInsn.name.equals("<init>") &&
+          (methodInsn.owner.equals(owner) || (methodInsn.owner.equals(superName) && superName.equals("java/lang/Object")))) {
+        arity--;  // the receiver
+      }
+    } else if (insn instanceof InvokeDynamicInsnNode) {
+      arity = Type.getArgumentTypes(((InvokeDynamicInsnNode)insn).desc).length;
+    } else if (opcode == PUTFIELD || opcode == PUTSTATIC || opcode == AASTORE) {
+      arity = 1;  // the stored value
+    } else {
+      return false;
+    }
+    int top = frame.getStackSize() - 1;
+    for(int i = 0; i < arity; i++) {
+      if ((frame.getStack(top - i).state & Nullness.THIS) != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  // true if the instruction of a static initializer calls a method of the class that may read the static fields
+  private static boolean callsTheClass(String owner, AbstractInsnNode insn) {
+    return insn instanceof MethodInsnNode && ((MethodInsnNode)insn).owner.equals(owner);
+  }
+  
+  static boolean isRequireNonNull(AbstractInsnNode insn) {
+    if (insn.getOpcode() != INVOKESTATIC) {
+      return false;
+    }
+    MethodInsnNode methodInsn = (MethodInsnNode)insn;
+    return methodInsn.owner.equals("java/util/Objects") && methodInsn.name.equals("requireNonNull") &&
+        methodInsn.desc.startsWith("(Ljava/lang/Object;") && methodInsn.desc.endsWith(")Ljava/lang/Object;");
+  }
+  
+  static AbstractInsnNode nextInsn(AbstractInsnNode insn) {
+    AbstractInsnNode next = insn.getNext();
+    while(next != null && next.getOpcode() == -1) {  // skip labels, line numbers and frames
+      next = next.getNext();
+    }
+    return next;
+  }
+  static AbstractInsnNode previousInsn(AbstractInsnNode insn) {
+    AbstractInsnNode previous = insn.getPrevious();
+    while(previous != null && previous.getOpcode() == -1) {
+      previous = previous.getPrevious();
+    }
+    return previous;
+  }
+  
+  private String generatedSuperClass(String className) {
+    if (specializer != null) {
+      className = specializer.superClass(className);
+    }
+    if (collections != null) {
+      className = collections.superClass(className);
+    }
+    return className;
+  }
+  
+  private ClassWriter newClassWriter(ClassReader reader) {
+    return new ClassWriter(reader, ClassWriter.COMPUTE_FRAMES) {
+      @Override
+      protected String getCommonSuperClass(String type1, String type2) {
+        if (specializer != null || collections != null) {
+          // a specialized class or a copy of a collection is not known by the hierarchy
+          type1 = generatedSuperClass(type1);
+          type2 = generatedSuperClass(type2);
+          if (type1.equals(type2)) {
+            return type1;
+          }
+        }
+        if (hierarchy != null) {
+          return hierarchy.getCommonSuperClass(type1, type2);
+        }
+        return super.getCommonSuperClass(type1, type2);
+      }
+    };
+  }
+  
+  private byte[] convert(ClassReader reader, BoxingReport report) {
+    if (scalarizer != null) {
+      return scalarizer.convert(reader, newClassWriter(reader));
+    }
+    List<BoxingReport.MethodReport> methodReports = (report == null)? null: new ArrayList<>();
+    Set<String> flattenedFields = flattenedFields(reader);
+    Twins twins = new Twins(reader, flattenedFields);
+    SegmentedArrays segmentedArrays = (REWRITE_VALUETYPE_ARRAY && segmentArrays)? SegmentedArrays.of(reader, this::isVCC): null;
+    ArrayIntrinsics arrayIntrinsics = REWRITE_VALUETYPE_ARRAY? new ArrayIntrinsics(segmentedArrays): null;
+    ClassWriter writer = newClassWriter(reader);
+    ClassVisitor visitor = writer;
+    if (REWRITE_VALUETYPE_ARRAY) {
+      visitor = new ClassRemapper(writer, new Remapper() {
+        @Override
+        public String mapDesc(String desc) {
+          Type type = Type.getType(desc);
+          if (segmentedArrays != null && segmentedArrays.isSegmented(type)) {
+            return SegmentedArrays.asSegmentedDescriptor(type.getElementType());
+          }
+          return (type.getSort() == Type.ARRAY && isVCC(type.getElementType()))?
+              asArrayOfValueInternalName(type.getElementType(), type.getDimensions()): desc;
+        }
+        
+        @Override
+        public String mapType(String type) {
+          // the array types of the CHECKCAST, ANEWARRAY, etc are descriptors
+          return (type != null && type.charAt(0) == '[')? mapDesc(type): super.mapType(type);
+        }
+      });
+    }
+    reader.accept(new ClassVisitor(ASM6, visitor) {
+      String owner;
+      
+      @Override
+      public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        super.visit(version, access, name, signature, superName, interfaces);
+        owner = name;
+      }
+      
+      @Override
+      public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+        if (flattenedFields.contains(name + desc)) {
+          desc = asValueDescriptor(Type.getType(desc));
+        }
+        return super.visitField(access, name, desc, signature, value);
+      }
+      
+      @Override
+      public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        MethodVisitor methodWriter = super.visitMethod(access, name, desc, signature, exceptions);
+        
+        // do not rewrite constructors too much, a value capable class has value factories instead
+        if (name.equals("<init>")) {
+          return new MethodVisitor(ASM6, methodWriter) {
+            @Override
+            public void visitTypeInsn(int opcode, String type) {
+              if (REWRITE_VALUETYPE_ARRAY && opcode == ANEWARRAY) {
+                Type elementType = Type.getObjectType(type);
+                if (segmentedArrays != null && segmentedArrays.isSegmented(Type.getType("[" + elementType.getDescriptor()))) {
+                  String helperDesc = segmentedArrays.request("newArray", SegmentedArrays.NEW_ARRAY_DESC, elementType);
+                  super.visitMethodInsn(INVOKESTATIC, owner, SegmentedArrays.helperName("newArray"), helperDesc, false);
+                  return;
+                }
+                if (isVCC(elementType)) {
+                  super.visitTypeInsn(ANEWARRAY, asValueInternalName(elementType));
+                  return;
+                }
+              }
+              super.visitTypeInsn(opcode, type);
+            }
+            
+            @Override
+            public void visitFieldInsn(int opcode, String fieldOwner, String fieldName, String fieldDesc) {
+              if (!fieldOwner.equals(owner) || !flattenedFields.contains(fieldName + fieldDesc)) {
+                super.visitFieldInsn(opcode, fieldOwner, fieldName, fieldDesc);
+                return;
+              }
+              // the constructor is not analyzed, so the flattened fields are boxed
+              Type type = Type.getType(fieldDesc);
+              if (opcode == PUTFIELD || opcode == PUTSTATIC) {
+                unbox(this, type);
+              }
+              super.visitFieldInsn(opcode, fieldOwner, fieldName, asValueDescriptor(type));
+              if (opcode == GETFIELD || opcode == GETSTATIC) {
+                box(this, type);
+              }
+            }
+          };
+        }
+        
+        return new MethodTransformer(owner, methodWriter, reader, methodReports, twins, flattenedFields, arrayIntrinsics, false, access, name, desc, signature, exceptions);
+      }
+      
+      MethodVisitor visitTwin(int access, String name, String desc, String[] exceptions) {
+        int twinAccess = ACC_PRIVATE | ACC_SYNTHETIC | (access & (ACC_STATIC | ACC_SYNCHRONIZED | ACC_STRICT));
+        return super.visitMethod(twinAccess, asTwinName(name), asTwinDescriptor(desc, twins.returnsValueType(name, desc)), null, exceptions);
+      }
+      
+      void visitFactory(MethodNode constructor, List<AbstractInsnNode> assignments) {
+        int factoryAccess = ACC_STATIC | ACC_SYNTHETIC | (constructor.access & (ACC_PUBLIC | ACC_PROTECTED | ACC_PRIVATE));
+        String[] exceptions = constructor.exceptions.toArray(new String[0]);
+        MethodVisitor mv = super.visitMethod(factoryAccess, StaticTwins.FACTORY_NAME, asFactoryDescriptor(owner, constructor.desc), null, exceptions);
+        String valueName = asValueInternalName(Type.getObjectType(owner));
+        mv.visitCode();
+        mv.visitTypeInsn(VDEFAULT, valueName);
+        for(int i = 0; i < assignments.size(); i += 2) {
+          VarInsnNode load = (VarInsnNode)assignments.get(i);
+          FieldInsnNode field = (FieldInsnNode)assignments.get(i + 1);
+          mv.visitVarInsn(load.getOpcode(), load.var - 1);  // the factory has no this
+          mv.visitFieldInsn(VWITHFIELD, valueName, field.name, field.desc);
+        }
+        mv.visitInsn(VRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+      }
+      
+      MethodVisitor visitStaticTwin(int access, String name, String desc, String[] exceptions) {
+        int twinAccess = ACC_STATIC | ACC_SYNTHETIC | (access & (ACC_PUBLIC | ACC_PROTECTED | ACC_PRIVATE | ACC_STRICT));
+        return super.visitMethod(twinAccess, StaticTwins.asStaticTwinName(name), asStaticTwinDescriptor(owner, desc, twins.returnsValueType(name, desc)), null, exceptions);
+      }
+      
+      @Override
+      public void visitEnd() {
+        // generate the static twins of the instance methods and the value factories of a value capable class
+        if (isVCC(Type.getObjectType(owner))) {
+          int classAccess = reader.getAccess();
+          reader.accept(new ClassVisitor(ASM6) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+              if (name.equals("<init>")) {
+                return new MethodNode(ASM6, access, name, desc, signature, exceptions) {
+                  @Override
+                  public void visitEnd() {
+                    List<AbstractInsnNode> assignments = StaticTwins.fieldAssignments(owner, this);
+                    if (assignments != null) {
+                      visitFactory(this, assignments);
+                    }
+                  }
+                };
+              }
+              if (!StaticTwins.hasStaticTwin(classAccess, access, name)) {
+                return null;
+              }
+              MethodVisitor twinWriter = visitStaticTwin(access, name, desc, exceptions);
+              return new MethodTransformer(owner, twinWriter, reader, methodReports, twins, flattenedFields, arrayIntrinsics, true, access, name, desc, signature, exceptions);
+            }
+          }, 0);
+        }
+        
+        // generate the requested twins, a twin can request other twins
+        HashSet<String> generated = new HashSet<>();
+        Set<String> pendings;
+        while(!(pendings = twins.takeRequests(generated)).isEmpty()) {
+          Set<String> twinsToGenerate = pendings;
+          reader.accept(new ClassVisitor(ASM6) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+              if (!twinsToGenerate.contains(name + desc)) {
+                return null;
+              }
+              MethodVisitor twinWriter = visitTwin(access, name, desc, exceptions);
+              return new MethodTransformer(owner, twinWriter, reader, methodReports, twins, flattenedFields, arrayIntrinsics, true, access, name, desc, signature, exceptions);
+            }
+          }, 0);
+        }
+        if (arrayIntrinsics != null) {
+          arrayIntrinsics.generate(cv);
+        }
+        super.visitEnd();
+      }
+    }, 0);
+    if (report != null) {
+      report.add(reader.getClassName(), methodReports);
+    }
 
+    byte[] code = writer.toByteArray();
+    
+    // DEBUG
+    //ClassReader reader2 = new ClassReader(code);
+    //reader2.accept(new TraceClassVisitor(new PrintWriter(System.err)), 0);
+    
+    return code;
+  }
+  
+  /**
+   * Returns the transformed class or null if the class can be copied as is.
+   */
+  private byte[] convert(RawZip.Reader input, RawZip.Entry entry, BoxingReport report) throws IOException {
+    byte[] classFile = input.read(entry);
+    byte[] redirected = classFile;
+    if (specializer != null) {
+      redirected = specializer.redirect(redirected);
+    }
+    if (collections != null) {
+      redirected = collections.redirect(redirected);
+    }
+    byte[] code = transform(redirected, report);
+    return (code == null && redirected != classFile)? redirected: code;
+  }
+  
+  /**
+   * Returns the transformed class or null if the class doesn't reference any value capable class.
+   */
+  byte[] transform(byte[] classFile) throws IOException {
+    return transform(classFile, null);
+  }
+  
+  /**
+   * Returns the transformed class or null if the class doesn't reference any value capable class,
+   * the boxing of the methods of the transformed class is recorded in the report if the report is not null.
+   */
+  byte[] transform(byte[] classFile, BoxingReport report) throws IOException {
+    ClassReader reader = new ClassReader(classFile);
+    if (cache == null) {
+      if (!ConstantPoolScanner.anyReferencedClass(reader, oracle::isAValueCapableClass)) {
+        return null;
+      }
+      return convert(reader, report);
+    }
+    
+    TreeSet<String> valueCapableClasses = new TreeSet<>();
+    ConstantPoolScanner.anyReferencedClass(reader, className -> {
+      if (oracle.isAValueCapableClass(className)) {
+        // the twins, the factories and the fields of the value capable class change the transformed code,
+        // a call can use the static twins only if the value capable class is transformed
+        String hash = oracle.classFileHash(className);
+        valueCapableClasses.add(className + ' ' + hash + ((staticTwins != null && staticTwins.isTransformed(className))? " twins": ""));
+      }
+      return false;  // visit all classes
+    });
+    if (valueCapableClasses.isEmpty()) {
+      return null;
+    }
+    String key = TransformCache.key(configuration(), classFile, valueCapableClasses);
+    // a class of the cache is not analyzed, so there is nothing to report
+    Optional<byte[]> cachedCode = (report == null)? cache.get(key): Optional.empty();
+    if (cachedCode.isPresent()) {
+      return cachedCode.get();
+    }
+    byte[] code = convert(reader, report);
+    cache.put(key, code);
+    return code;
+  }
+  
+  private static boolean isClassEntry(RawZip.Entry entry) {
+    return entry.name.endsWith(".class");
+  }
 
-  private JarEntry convert(JarFile input, JarOutputStream jarOutputStream, JarEntry entry) throws IOException {
-    String name = entry.getName();
-    JarEntry newEntry = new JarEntry(name);
-    jarOutputStream.putNextEntry(newEntry);
-    try(InputStream inputStream = input.getInputStream(entry)) {
-      if (name.endsWith(".class")) {
-        convert(jarOutputStream, inputStream);
-      } else {
-        copy(jarOutputStream, inputStream);
+  private static void write(RawZip.Reader input, RawZip.Writer output, RawZip.Entry entry, byte[] code) throws IOException {
+    if (code == null) {
+      output.copy(input, entry);  // copy the compressed bytes
+    } else {
+      output.write(entry, code);
+    }
+  }
+  
+  static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof UncheckedIOException) {
+        throw ((UncheckedIOException)cause).getCause();
+      }
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new UndeclaredThrowableException(cause);
+    }
+  }
+  
+  static final class PendingEntry {
+    final RawZip.Entry entry;
+    final Future<byte[]> code;   // null if the entry is not a class
+    
+    PendingEntry(RawZip.Entry entry, Future<byte[]> code) {
+      this.entry = entry;
+      this.code = code;
+    }
+    
+    byte[] code() throws IOException {
+      return (code == null)? null: await(code);
+    }
+  }
+  
+  private static String internalName(RawZip.Entry entry) {
+    return entry.name.substring(0, entry.name.length() - ".class".length());
+  }
+  
+  // the value capable classes of a jar generated by the stock backend have no static twins, so no index
+  private VCCIndex newIndexMaybe() {
+    return (scalarizer == null)? new VCCIndex(): null;
+  }
+  
+  /**
+   * Record a value capable class in the index with the class file written in the output jar.
+   */
+  private void index(VCCIndex index, RawZip.Reader input, RawZip.Entry entry, byte[] code) throws IOException {
+    if (index == null || !isClassEntry(entry)) {
+      return;
+    }
+    String className = internalName(entry);
+    if (oracle.isAValueCapableClass(className)) {
+      index.add(className, (code == null)? input.read(entry): code);
+    }
+  }
+  
+  /**
+   * Write the index of the value capable classes of the input jar at the end of the output jar.
+   */
+  private static void writeIndex(RawZip.Writer output, VCCIndex index) throws IOException {
+    if (index == null) {
+      return;
+    }
+    output.write(RawZip.newEntry(VCCIndex.ENTRY_NAME), index.toByteArray());
+  }
+  
+  /**
+   * Write the classes generated for the input jar (the specialized classes of its generic classes
+   * and the copies of the collections used by its classes) at the end of the output jar.
+   */
+  private void writeGeneratedClasses(RawZip.Reader input, RawZip.Writer output, BoxingReport report) throws IOException {
+    LinkedHashMap<String, byte[]> generatedClasses = new LinkedHashMap<>();
+    if (specializer != null) {
+      generatedClasses.putAll(specializer.specializedClasses(input));
+    }
+    if (collections != null) {
+      generatedClasses.putAll(collections.copiedClasses(input));
+    }
+    for(Map.Entry<String, byte[]> generated: generatedClasses.entrySet()) {
+      byte[] classFile = generated.getValue();
+      byte[] code = transform(classFile, report);
+      output.write(RawZip.newEntry(generated.getKey() + ".class"), (code == null)? classFile: code);
+    }
+  }
+  
+  private void convert(RawZip.Reader input, RawZip.Writer output, BoxingReport report) throws IOException {
+    VCCIndex index = newIndexMaybe();
+    for(RawZip.Entry entry: input.entries()) {
+      if (entry.name.equals(VCCIndex.ENTRY_NAME)) {  // an old index is replaced
+        continue;
       }
+      byte[] code = isClassEntry(entry)? convert(input, entry, report): null;
+      write(input, output, entry, code);
+      index(index, input, entry, code);
+    }
+    writeGeneratedClasses(input, output, report);
+    writeIndex(output, index);
+  }
+  
+  /**
+   * Convert all the entries of the input jar using the threads of the executor.
+   * The classes are transformed concurrently but the entries are written in the order of the input jar
+   * so the resulting jar is the same as the one produced by a sequential conversion.
+   */
+  private void convert(RawZip.Reader input, RawZip.Writer output, BoxingReport report, ExecutorService executor, int window) throws IOException {
+    // bound the number of in-flight classes to avoid to keep the whole jar in memory
+    ArrayDeque<PendingEntry> pendings = new ArrayDeque<>();
+    VCCIndex index = newIndexMaybe();
+    try {
+      for(RawZip.Entry entry: input.entries()) {
+        if (entry.name.equals(VCCIndex.ENTRY_NAME)) {  // an old index is replaced
+          continue;
+        }
+        Future<byte[]> code = isClassEntry(entry)? executor.submit(() -> convert(input, entry, report)): null;
+        pendings.offer(new PendingEntry(entry, code));
+        if (pendings.size() > window) {
+          PendingEntry pending = pendings.poll();
+          byte[] pendingCode = pending.code();
+          write(input, output, pending.entry, pendingCode);
+          index(index, input, pending.entry, pendingCode);
+        }
+      }
+      PendingEntry pending;
+      while((pending = pendings.poll()) != null) {
+        byte[] pendingCode = pending.code();
+        write(input, output, pending.entry, pendingCode);
+        index(index, input, pending.entry, pendingCode);
+      }
+      writeGeneratedClasses(input, output, report);
+      writeIndex(output, index);
+    } finally {
+      pendings.forEach(pending -> { if (pending.code != null) { pending.code.cancel(true); }});
+    }
+  }
+  
+  private static ExecutorService newDaemonThreadPool(int threads) {
+    return Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable);
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+  
+  private static BoxingReport newReportMaybe(boolean report) {
+    return report? new BoxingReport(): null;
+  }
+  
+  private static void writeReportMaybe(BoxingReport report, Path jar) throws IOException {
+    if (report == null) {
+      return;
+    }
+    Path reportPath = toReportPath(jar);
+    report.write(reportPath, jar.getFileName().toString());
+    System.out.println(reportPath + " generated");
+  }
+  
+  private void convert(ClassPath classPath, Path jar, boolean report) throws IOException {
+    Path outputPath = toOutputPath(jar);
+    BoxingReport boxingReport = newReportMaybe(report);
+    try(RawZip.Writer output = RawZip.Writer.create(outputPath)) {
+      convert(classPath.jar(jar), output, boxingReport);
+    }
+    System.out.println(outputPath + " generated");
+    writeReportMaybe(boxingReport, jar);
+  }
+  
+  /**
+   * Convert several jars of the class path, the jars are converted in parallel
+   * and the classes of all jars share the same pool of threads.
+   * If report is true, a boxing report is generated for each jar.
+   */
+  private void convert(ClassPath classPath, List<Path> jars, int parallelism, boolean report) throws IOException {
+    if (parallelism <= 1) {
+      for(Path jar: jars) {
+        convert(classPath, jar, report);
+      }
+      return;
+    }
+    
+    ExecutorService executor = newDaemonThreadPool(parallelism);
+    ExecutorService jarExecutor = newDaemonThreadPool(Math.min(jars.size(), parallelism));
+    try {
+      int window = parallelism * 4;
+      ArrayList<Future<Void>> futures = new ArrayList<>();
+      for(Path jar: jars) {
+        futures.add(jarExecutor.submit(() -> {
+          Path outputPath = toOutputPath(jar);
+          BoxingReport boxingReport = newReportMaybe(report);
+          try(RawZip.Writer output = RawZip.Writer.create(outputPath)) {
+            convert(classPath.jar(jar), output, boxingReport, executor, window);
+          }
+          System.out.println(outputPath + " generated");
+          writeReportMaybe(boxingReport, jar);
+          return null;
+        }));
+      }
+      for(Future<Void> future: futures) {
+        await(future);
+      }
+    } finally {
+      jarExecutor.shutdownNow();
+      executor.shutdownNow();
     }
-    return newEntry;
   }
 
   static interface IOConsumer<T> {
@@ -637,30 +2096,113 @@ public class ValueTypifier {
   }
 
 
-  private static String toOutputName(String pathName) {
-    return pathName.substring(0, pathName.length() - ".jar".length()) + "-valuetypified.jar";
+  private static Path toOutputPath(Path path) {
+    String pathName = path.toString();
+    return Paths.get(pathName.substring(0, pathName.length() - ".jar".length()) + "-valuetypified.jar");
+  }
+  private static Path toReportPath(Path path) {
+    String pathName = path.toString();
+    return Paths.get(pathName.substring(0, pathName.length() - ".jar".length()) + "-boxing.json");
+  }
+  
+  private static void usage() {
+    System.err.println("java fr.umlv.valuetypifier [--threads n] [--classpath path] [--cache directory] [--report] [--segmented-arrays] [--backend mvt|stock] [--struct-of-arrays|--off-heap-arrays] [--specialize] [--value-collections] foo.jar bar.jar ...");
   }
 
   public static void main(String[] args) throws IOException {
-    if (args.length != 1) {
-      System.err.println("java fr.umlv.valuetypifier foo.jar");
+    int parallelism = Runtime.getRuntime().availableProcessors();
+    ArrayList<Path> jars = new ArrayList<>();
+    ArrayList<Path> dependencies = new ArrayList<>();
+    Path cacheDirectory = null;
+    boolean report = false;
+    boolean segmentArrays = false;
+    boolean stock = false;
+    boolean structOfArrays = false;
+    boolean offHeap = false;
+    boolean specialize = false;
+    boolean valueCollections = false;
+    for(int i = 0; i < args.length; i++) {
+      switch(args[i]) {
+      case "--report":
+        report = true;
+        break;
+      case "--segmented-arrays":
+        segmentArrays = true;
+        break;
+      case "--struct-of-arrays":
+        structOfArrays = true;
+        break;
+      case "--off-heap-arrays":
+        offHeap = true;
+        break;
+      case "--specialize":
+        specialize = true;
+        break;
+      case "--value-collections":
+        valueCollections = true;
+        break;
+      case "--threads":
+      case "--classpath":
+      case "--cache":
+      case "--backend":
+        if (i + 1 == args.length) {
+          usage();
+          return;
+        }
+        String option = args[i];
+        String value = args[++i];
+        if (option.equals("--threads")) {
+          parallelism = Integer.parseInt(value);
+        } else if (option.equals("--backend")) {
+          if (!value.equals("mvt") && !value.equals("stock")) {
+            usage();
+            return;
+          }
+          stock = value.equals("stock");
+        } else if (option.equals("--classpath")) {
+          for(String element: value.split(File.pathSeparator)) {
+            dependencies.add(Paths.get(element));
+          }
+        } else {
+          cacheDirectory = Paths.get(value);
+        }
+        break;
+      default:
+        jars.add(Paths.get(args[i]));
+      }
+    }
+    // the struct of arrays and the off-heap arrays are only supported by the stock backend,
+    // the segmented arrays only by the MVT backend
+    if (jars.isEmpty() || ((structOfArrays || offHeap) && !stock) || (structOfArrays && offHeap) || (segmentArrays && stock)) {
+      usage();
       return;
     }
     
-    Path path = Paths.get(args[0]);
-    String pathName = path.toString();
-    Path outputPath = Paths.get(toOutputName(pathName));
-    
-    try(JarFile input = new JarFile(pathName);
-        JarOutputStream jarOutputStream = new JarOutputStream(Files.newOutputStream(outputPath));
-        Stream<JarEntry> stream = input.stream()) {
-      AnnotationOracle oracle = new AnnotationOracle(
-          name -> Optional.ofNullable(input.getJarEntry(name + ".class")).map(IOFunction.unchecked(input::getInputStream)));
-      ValueTypifier valueTypifier = new ValueTypifier(oracle);
+    // the jars to convert are searched before their dependencies
+    try(ClassPath classPath = ClassPath.open(jars, dependencies)) {
+      AnnotationOracle oracle = new AnnotationOracle(classPath::find, classPath.knownClasses());
+      classPath.indexedVCCs().forEach(oracle::addValueCapableClass);
+      TransformCache cache = (cacheDirectory == null)? null: TransformCache.open(cacheDirectory);
+      // the classes of the jars and the indexed value capable classes are transformed so have their static twins
+      HashSet<String> transformedClasses = new HashSet<>(classPath.indexedVCCs());
+      for(Path jar: jars) {
+        for(RawZip.Entry entry: classPath.jar(jar).entries()) {
+          if (isClassEntry(entry)) {
+            transformedClasses.add(internalName(entry));
+          }
+        }
+      }
+      StaticTwins staticTwins = new StaticTwins(classPath::find, transformedClasses::contains);
+      Scalarizer scalarizer = stock? new Scalarizer(oracle::isAValueCapableClass, classPath::find, structOfArrays, offHeap): null;
+      Specializer specializer = specialize? Specializer.of(classPath, jars, oracle::isAValueCapableClass): null;
+      ValueCollections collections = valueCollections? ValueCollections.of(classPath, jars, oracle::isAValueCapableClass): null;
+      ValueTypifier valueTypifier = new ValueTypifier(oracle, cache, null, staticTwins, segmentArrays, scalarizer, specializer, collections);
       
-      stream.forEach(IOConsumer.unchecked(entry -> valueTypifier.convert(input, jarOutputStream, entry)));
-    }    
-    
-    System.out.println(outputPath + " generated");
+      valueTypifier.convert(classPath, jars, parallelism, report);
+      
+      if (cache != null) {
+        System.out.println(cache.hits() + " classes reused from the cache, " + cache.misses() + " classes transformed");
+      }
+    }
   }  
 }
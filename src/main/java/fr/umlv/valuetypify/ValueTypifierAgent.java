@@ -0,0 +1,208 @@
+package fr.umlv.valuetypify;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.nio.file.Paths;
+import java.security.ProtectionDomain;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * A java agent that valuetypifies the classes when they are loaded.
+ * 
+ * The value capable classes are found using the class loader that loads the class,
+ * and the transformed classes are kept in a bounded memory cache and optionally in an on-disk cache
+ * so a restart doesn't have to analyze the classes again.
+ * 
+ * The agent options are a comma separated list of
+ * <ul>
+ *   <li>cache=directory, the directory of the on-disk cache
+ *   <li>disk=size, the maximum number of bytes of the on-disk cache (default 256M), the least recently used classes are removed
+ *   <li>memory=size, the maximum number of bytes of the memory cache (default 16M), 'k' and 'm' suffixes are allowed
+ *   <li>budget=milliseconds, once the transformer has spent this time, the classes are loaded unchanged
+ *   <li>verbose, print the statistics when the VM exits
+ *   <li>jmx, register the statistics as the MXBean fr.umlv.valuetypify:type=Agent
+ * </ul>
+ * by example
+ * <pre>
+ *   java -XX:+EnableMVT -javaagent:valuetypifier.jar=cache=/tmp/vt,budget=500,verbose -cp your.jar Main
+ * </pre>
+ */
+public final class ValueTypifierAgent implements ClassFileTransformer, ValueTypifierAgentMXBean {
+  private final TransformCache cache;
+  private final long budget;   // in nanoseconds
+  
+  // one transformer by class loader, the transformer doesn't keep its class loader alive
+  private final Map<ClassLoader, ValueTypifier> valueTypifiers = Collections.synchronizedMap(new WeakHashMap<>());
+  
+  private final AtomicLong transformTime = new AtomicLong();
+  private final AtomicLong transformedClassCount = new AtomicLong();
+  private final AtomicLong unchangedClassCount = new AtomicLong();
+  
+  ValueTypifierAgent(TransformCache cache, long budget) {
+    this.cache = cache;
+    this.budget = budget;
+  }
+  
+  private static Function<String, Optional<InputStream>> classFileFinder(ClassLoader loader) {
+    WeakReference<ClassLoader> loaderRef = new WeakReference<>(loader);
+    return className -> {
+      ClassLoader classLoader = loaderRef.get();
+      if (classLoader == null) {
+        return Optional.empty();
+      }
+      return Optional.ofNullable(classLoader.getResourceAsStream(className + ".class"));
+    };
+  }
+  
+  private ValueTypifier valueTypifier(ClassLoader loader) {
+    return valueTypifiers.computeIfAbsent(loader, classLoader -> {
+      Function<String, Optional<InputStream>> classFileFinder = classFileFinder(classLoader);
+      // with a budget, a value capable class may be loaded unchanged so without its static twins
+      StaticTwins staticTwins = (budget == Long.MAX_VALUE)? new StaticTwins(classFileFinder, __ -> true): null;
+      return new ValueTypifier(new AnnotationOracle(classFileFinder), cache, new ClassHierarchy(classFileFinder), staticTwins);
+    });
+  }
+  
+  private static boolean isExcluded(ClassLoader loader, String className) {
+    if (loader == null || className == null) {  // bootstrap classes or lambda proxies
+      return true;
+    }
+    return className.startsWith("java/") ||
+           className.startsWith("javax/") ||
+           className.startsWith("jdk/") ||
+           className.startsWith("sun/") ||
+           className.startsWith("com/sun/") ||
+           className.startsWith("org/objectweb/asm/") ||
+           className.startsWith("jvm/internal/value/") ||
+           (className.startsWith("fr/umlv/valuetypify/") && className.indexOf('/', "fr/umlv/valuetypify/".length()) == -1);
+  }
+  
+  @Override
+  public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                          ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+    if (classBeingRedefined != null || isExcluded(loader, className) || isBudgetExhausted()) {
+      return null;
+    }
+    long start = System.nanoTime();
+    try {
+      byte[] code = valueTypifier(loader).transform(classfileBuffer);
+      (code == null? unchangedClassCount: transformedClassCount).incrementAndGet();
+      return code;
+    } catch(IOException | RuntimeException e) {
+      // the class is loaded unchanged
+      System.err.println("valuetypifier: error while transforming " + className + " " + e);
+      unchangedClassCount.incrementAndGet();
+      return null;
+    } finally {
+      transformTime.addAndGet(System.nanoTime() - start);
+    }
+  }
+  
+  @Override
+  public long getTransformTime() {
+    return transformTime.get();
+  }
+  @Override
+  public long getTransformedClassCount() {
+    return transformedClassCount.get();
+  }
+  @Override
+  public long getUnchangedClassCount() {
+    return unchangedClassCount.get();
+  }
+  @Override
+  public long getCacheHitCount() {
+    return cache.hits();
+  }
+  @Override
+  public boolean isBudgetExhausted() {
+    return transformTime.get() >= budget;
+  }
+  
+  @Override
+  public String toString() {
+    return "valuetypifier: " + getTransformedClassCount() + " classes transformed (" + getCacheHitCount() + " from the cache), " +
+        getUnchangedClassCount() + " classes unchanged, in " + TimeUnit.NANOSECONDS.toMillis(getTransformTime()) + " ms" +
+        (isBudgetExhausted()? " (budget exhausted)": "");
+  }
+  
+  private static long parseSize(String size) {
+    switch(size.charAt(size.length() - 1)) {
+    case 'k': case 'K':
+      return Long.parseLong(size.substring(0, size.length() - 1)) << 10;
+    case 'm': case 'M':
+      return Long.parseLong(size.substring(0, size.length() - 1)) << 20;
+    default:
+      return Long.parseLong(size);
+    }
+  }
+  
+  public static void premain(String agentArgs, Instrumentation instrumentation) throws IOException {
+    String cacheDirectory = null;
+    long memory = 16 << 20;
+    long disk = TransformCache.DEFAULT_MAX_DISK;
+    long budget = Long.MAX_VALUE;
+    boolean verbose = false;
+    boolean jmx = false;
+    if (agentArgs != null && !agentArgs.isEmpty()) {
+      for(String option: agentArgs.split(",")) {
+        int equals = option.indexOf('=');
+        String name = (equals == -1)? option: option.substring(0, equals);
+        String value = (equals == -1)? null: option.substring(equals + 1);
+        switch(name) {
+        case "cache":
+          cacheDirectory = value;
+          break;
+        case "memory":
+          memory = parseSize(value);
+          break;
+        case "disk":
+          disk = parseSize(value);
+          break;
+        case "budget":
+          budget = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(value));
+          break;
+        case "verbose":
+          verbose = true;
+          break;
+        case "jmx":
+          jmx = true;
+          break;
+        default:
+          throw new IllegalArgumentException("valuetypifier: unknown agent option " + option);
+        }
+      }
+    }
+    
+    TransformCache cache = TransformCache.open((cacheDirectory == null)? null: Paths.get(cacheDirectory), memory, disk);
+    ValueTypifierAgent agent = new ValueTypifierAgent(cache, budget);
+    if (jmx) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(agent, new ObjectName("fr.umlv.valuetypify:type=Agent"));
+      } catch (JMException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    if (verbose) {
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println(agent)));
+    }
+    instrumentation.addTransformer(agent);
+  }
+  
+  public static void agentmain(String agentArgs, Instrumentation instrumentation) throws IOException {
+    premain(agentArgs, instrumentation);
+  }
+}
@@ -0,0 +1,31 @@
+package fr.umlv.valuetypify;
+
+/**
+ * Statistics of the valuetypifier agent, registered as {@code fr.umlv.valuetypify:type=Agent}.
+ */
+public interface ValueTypifierAgentMXBean {
+  /**
+   * Returns the time spent in the transformer in nanoseconds, including the classes that are not transformed.
+   */
+  long getTransformTime();
+  
+  /**
+   * Returns the number of classes that have been transformed (or reused from the cache).
+   */
+  long getTransformedClassCount();
+  
+  /**
+   * Returns the number of classes that have been seen by the transformer but left unchanged.
+   */
+  long getUnchangedClassCount();
+  
+  /**
+   * Returns the number of transformed classes that have been found in the cache.
+   */
+  long getCacheHitCount();
+  
+  /**
+   * Returns true if the time budget is exhausted, the next classes will be loaded unchanged.
+   */
+  boolean isBudgetExhausted();
+}
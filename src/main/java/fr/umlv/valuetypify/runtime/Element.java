@@ -0,0 +1,11 @@
+package fr.umlv.valuetypify.runtime;
+
+/**
+ * The placeholder of the type of the elements of the collections of this package,
+ * replaced by a value capable class when a collection is copied by the transformer.
+ */
+final class Element {
+  private Element() {
+    throw new AssertionError();
+  }
+}
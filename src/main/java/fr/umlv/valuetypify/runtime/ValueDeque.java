@@ -0,0 +1,180 @@
+package fr.umlv.valuetypify.runtime;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A resizable ring buffer that stores its elements inline in an array of a value capable class,
+ * the replacement of an {@code ArrayDeque} that doesn't escape a method.
+ * An element can not be null.
+ */
+public final class ValueDeque {
+  private Element[] elements;   // the length is a power of 2
+  private int head;
+  private int size;
+
+  public ValueDeque() {
+    elements = new Element[16];
+  }
+
+  public ValueDeque(int capacity) {
+    elements = new Element[tableSize(capacity)];
+  }
+
+  private static int tableSize(int capacity) {
+    int size = 8;
+    while(size < capacity && size < 1 << 30) {
+      size <<= 1;
+    }
+    return size;
+  }
+
+  private void grow() {
+    Element[] elements = this.elements;
+    int length = elements.length;
+    if (size != length) {
+      return;
+    }
+    Element[] newElements = new Element[length << 1];
+    for(int i = 0; i < length; i++) {
+      newElements[i] = elements[(head + i) & (length - 1)];
+    }
+    this.elements = newElements;
+    head = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void addFirst(Element element) {
+    grow();
+    Element[] elements = this.elements;
+    int head = this.head = (this.head - 1) & (elements.length - 1);
+    elements[head] = element;
+    size++;
+  }
+
+  public void addLast(Element element) {
+    grow();
+    Element[] elements = this.elements;
+    elements[(head + size) & (elements.length - 1)] = element;
+    size++;
+  }
+
+  public boolean offerFirst(Element element) {
+    addFirst(element);
+    return true;
+  }
+
+  public boolean offerLast(Element element) {
+    addLast(element);
+    return true;
+  }
+
+  public boolean add(Element element) {
+    addLast(element);
+    return true;
+  }
+
+  public boolean offer(Element element) {
+    addLast(element);
+    return true;
+  }
+
+  public void push(Element element) {
+    addFirst(element);
+  }
+
+  public Element pollFirst() {
+    if (size == 0) {
+      return null;
+    }
+    Element[] elements = this.elements;
+    Element element = elements[head];
+    head = (head + 1) & (elements.length - 1);
+    size--;
+    return element;
+  }
+
+  public Element pollLast() {
+    if (size == 0) {
+      return null;
+    }
+    Element[] elements = this.elements;
+    int size = --this.size;
+    return elements[(head + size) & (elements.length - 1)];
+  }
+
+  public Element poll() {
+    return pollFirst();
+  }
+
+  public Element removeFirst() {
+    if (size == 0) {
+      throw new NoSuchElementException();
+    }
+    return pollFirst();
+  }
+
+  public Element removeLast() {
+    if (size == 0) {
+      throw new NoSuchElementException();
+    }
+    return pollLast();
+  }
+
+  public Element remove() {
+    return removeFirst();
+  }
+
+  public Element pop() {
+    return removeFirst();
+  }
+
+  public Element peekFirst() {
+    if (size == 0) {
+      return null;
+    }
+    return elements[head];
+  }
+
+  public Element peekLast() {
+    if (size == 0) {
+      return null;
+    }
+    Element[] elements = this.elements;
+    return elements[(head + size - 1) & (elements.length - 1)];
+  }
+
+  public Element peek() {
+    return peekFirst();
+  }
+
+  public Element getFirst() {
+    if (size == 0) {
+      throw new NoSuchElementException();
+    }
+    return elements[head];
+  }
+
+  public Element getLast() {
+    if (size == 0) {
+      throw new NoSuchElementException();
+    }
+    Element[] elements = this.elements;
+    return elements[(head + size - 1) & (elements.length - 1)];
+  }
+
+  public Element element() {
+    return getFirst();
+  }
+
+  public void clear() {
+    head = 0;
+    size = 0;
+  }
+}
@@ -0,0 +1,70 @@
+package fr.umlv.valuetypify.runtime;
+
+import java.util.Arrays;
+
+/**
+ * A growable list that stores its elements inline in an array of a value capable class,
+ * the replacement of an {@code ArrayList} that doesn't escape a method.
+ * An element can not be null.
+ */
+public final class ValueList {
+  private Element[] elements;
+  private int size;
+
+  public ValueList() {
+    elements = new Element[10];
+  }
+
+  public ValueList(int capacity) {
+    elements = new Element[checkCapacity(capacity)];
+  }
+
+  private static int checkCapacity(int capacity) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Illegal Capacity: " + capacity);
+    }
+    return capacity;
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean add(Element element) {
+    Element[] elements = this.elements;
+    int size = this.size;
+    if (size == elements.length) {
+      elements = this.elements = Arrays.copyOf(elements, Math.max(10, size + (size >> 1)));
+    }
+    elements[size] = element;
+    this.size = size + 1;
+    return true;
+  }
+
+  public Element get(int index) {
+    checkIndex(index);
+    return elements[index];
+  }
+
+  public Element set(int index, Element element) {
+    checkIndex(index);
+    Element[] elements = this.elements;
+    Element old = elements[index];
+    elements[index] = element;
+    return old;
+  }
+
+  public void clear() {
+    size = 0;  // the elements are values, there is no reference to clear
+  }
+}
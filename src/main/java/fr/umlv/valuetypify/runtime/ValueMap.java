@@ -0,0 +1,154 @@
+package fr.umlv.valuetypify.runtime;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing map (with a linear probing) that stores its values inline in an array
+ * of a value capable class, the replacement of a {@code HashMap} that doesn't escape a method.
+ * A key can be null but a value can not.
+ */
+public final class ValueMap {
+  private static final Object NULL_KEY = new Object();
+
+  private Object[] keys;      // null if the slot is empty
+  private Element[] values;   // the values of the non empty slots
+  private int size;
+
+  public ValueMap() {
+    keys = new Object[32];
+    values = new Element[32];
+  }
+
+  public ValueMap(int capacity) {
+    keys = new Object[tableSize(capacity)];
+    values = new Element[tableSize(capacity)];
+  }
+
+  // a power of 2, at least twice the capacity so there is always an empty slot
+  private static int tableSize(int capacity) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Illegal initial capacity: " + capacity);
+    }
+    int size = 2;
+    while(size < capacity << 1 && size < 1 << 30) {
+      size <<= 1;
+    }
+    return size;
+  }
+
+  private static Object mask(Object key) {
+    return (key == null)? NULL_KEY: key;
+  }
+
+  private static int hash(Object key) {
+    int hash = key.hashCode();
+    return hash ^ (hash >>> 16);
+  }
+
+  // the slot of the key or the empty slot where the key should be inserted
+  private int slot(Object key) {
+    Object[] keys = this.keys;
+    int mask = keys.length - 1;
+    for(int index = hash(key) & mask;; index = (index + 1) & mask) {
+      Object k = keys[index];
+      if (k == null || key.equals(k)) {
+        return index;
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean containsKey(Object key) {
+    return keys[slot(mask(key))] != null;
+  }
+
+  public Element get(Object key) {
+    int slot = slot(mask(key));
+    if (keys[slot] == null) {
+      return null;
+    }
+    return values[slot];
+  }
+
+  public Element getOrDefault(Object key, Element defaultValue) {
+    int slot = slot(mask(key));
+    if (keys[slot] == null) {
+      return defaultValue;
+    }
+    return values[slot];
+  }
+
+  public Element put(Object key, Element value) {
+    key = mask(key);
+    int slot = slot(key);
+    Element[] values = this.values;
+    if (keys[slot] != null) {
+      Element old = values[slot];
+      values[slot] = value;
+      return old;
+    }
+    keys[slot] = key;
+    values[slot] = value;
+    if (++size << 1 > keys.length) {
+      rehash();
+    }
+    return null;
+  }
+
+  private void rehash() {
+    Object[] oldKeys = keys;
+    Element[] oldValues = values;
+    int length = oldKeys.length << 1;
+    Object[] keys = this.keys = new Object[length];
+    Element[] values = this.values = new Element[length];
+    int mask = length - 1;
+    for(int i = 0; i < oldKeys.length; i++) {
+      Object key = oldKeys[i];
+      if (key == null) {
+        continue;
+      }
+      int index = hash(key) & mask;
+      while(keys[index] != null) {
+        index = (index + 1) & mask;
+      }
+      keys[index] = key;
+      values[index] = oldValues[i];
+    }
+  }
+
+  public Element remove(Object key) {
+    int slot = slot(mask(key));
+    Object[] keys = this.keys;
+    Element[] values = this.values;
+    if (keys[slot] == null) {
+      return null;
+    }
+    Element old = values[slot];
+    // move back the keys of the cluster that can not be found anymore once the slot is empty
+    int mask = keys.length - 1;
+    int hole = slot;
+    for(int index = (hole + 1) & mask; keys[index] != null; index = (index + 1) & mask) {
+      int home = hash(keys[index]) & mask;
+      if (((index - home) & mask) >= ((index - hole) & mask)) {
+        keys[hole] = keys[index];
+        values[hole] = values[index];
+        hole = index;
+      }
+    }
+    keys[hole] = null;
+    size--;
+    return old;
+  }
+
+  public void clear() {
+    Arrays.fill(keys, null);
+    size = 0;
+  }
+}